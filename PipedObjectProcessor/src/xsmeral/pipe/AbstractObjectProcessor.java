@@ -59,6 +59,11 @@ import xsmeral.pipe.interfaces.ObjectProcessorInterface;
  *   </ol>
  *  </li>
  * </ol>
+ * A {@link Pipe} initializes its processors concurrently. {@code initContext()}
+ * of a processor is called as soon as all processors supplying the parameters
+ * of its {@link FromContext} fields have set context, so in
+ * {@code initPostContext()} only those parameters (and parameters set by an
+ * external entity) are guaranteed to be present.
  * <br />
  *
  * <a name="running" />
@@ -78,6 +83,10 @@ import xsmeral.pipe.interfaces.ObjectProcessorInterface;
  *      and releasing resources</li>
  *
  * </ol>
+ * A running processor can be {@link #pause() paused} and {@link #resume() resumed}.
+ * The default run cycle waits before each call to {@code process()} while paused,
+ * processors overriding {@code run()} should call {@link #awaitResume() awaitResume()}
+ * at a convenient point of their work loop.
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  */
 public abstract class AbstractObjectProcessor implements ObjectProcessor {
@@ -96,6 +105,8 @@ public abstract class AbstractObjectProcessor implements ObjectProcessor {
      */
     protected boolean canStart = true;
     private boolean initialized = false;
+    private volatile boolean paused = false;
+    private final Object pauseLock = new Object();
 
     /**
      * Sets the status to {@link Status#NOT_STARTED NOT_STARTED}.
@@ -161,6 +172,9 @@ public abstract class AbstractObjectProcessor implements ObjectProcessor {
             preRun();
             status = Status.RUNNING;
             while (status == Status.RUNNING) {
+                if (!awaitResume()) {
+                    break;
+                }
                 process();
             }
         } catch (ProcessorStoppedException ex) {
@@ -169,6 +183,54 @@ public abstract class AbstractObjectProcessor implements ObjectProcessor {
         postRun();
     }
 
+    /**
+     * Pauses the processor. Takes effect at the next call to {@link #awaitResume() awaitResume()}.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /**
+     * Resumes the paused processor.
+     */
+    public void resume() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Indicates whether the processor is paused.
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Blocks while the processor is paused.
+     * If the thread is interrupted meanwhile, the interrupt status is restored
+     * and the processor {@link #stop() stop}s.
+     * @return False if interrupted while paused
+     */
+    protected final boolean awaitResume() {
+        if (paused) {
+            synchronized (pauseLock) {
+                try {
+                    while (paused) {
+                        pauseLock.wait();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    Logger.getLogger(AbstractObjectProcessor.class.getName()).log(Level.INFO, "Interrupted while paused, stopping");
+                    stop();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     @Override
     public final Class getOutType() {
         return getClass().getAnnotation(ObjectProcessorInterface.class).out();
@@ -0,0 +1,319 @@
+package xsmeral.pipe;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking queue used as a buffer between two object processors,
+ * whose capacity can be changed while in use.
+ * <br />
+ * Lowering the capacity below the current size doesn't drop any objects, it only
+ * blocks producers until the size falls below the new capacity.
+ * The iterator works on a snapshot of the queue and doesn't support removal.
+ * <br />
+ * {@linkplain Tap Taps} can be attached to observe all objects passing through the buffer.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ * @param <E> Element type
+ */
+public class LinkBuffer<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * Observer of objects added to the buffer.
+     * It is called by the producer while holding the lock of the buffer,
+     * so the objects are observed in the order of the buffer and
+     * the implementation must not block.
+     */
+    public interface Tap<E> {
+
+        /**
+         * Called when an object is added to the buffer.
+         */
+        public void objectAdded(E obj);
+    }
+
+    private final LinkedList<E> items;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+    private volatile int capacity;
+    private final List<Tap<? super E>> taps;
+
+    /**
+     * Creates an empty buffer with the given capacity.
+     * @throws IllegalArgumentException If capacity is less than 1
+     */
+    public LinkBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.items = new LinkedList<E>();
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+        this.taps = new CopyOnWriteArrayList<Tap<? super E>>();
+    }
+
+    /**
+     * Attaches a tap.
+     */
+    public void addTap(Tap<? super E> tap) {
+        taps.add(tap);
+    }
+
+    /**
+     * Detaches a tap.
+     */
+    public void removeTap(Tap<? super E> tap) {
+        taps.remove(tap);
+    }
+
+    /**
+     * Returns the current capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the capacity, wakes producers waiting for space.
+     * @throws IllegalArgumentException If capacity is less than 1
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        lock.lock();
+        try {
+            this.capacity = capacity;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the element, must be called while holding the lock.
+     */
+    private void enqueue(E e) {
+        items.addLast(e);
+        notEmpty.signal();
+        for (Tap<? super E> tap : taps) {
+            tap.objectAdded(e);
+        }
+    }
+
+    /**
+     * Removes the head element, must be called while holding the lock.
+     */
+    private E dequeue() {
+        E e = items.removeFirst();
+        notFull.signal();
+        return e;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (items.size() >= capacity) {
+                return false;
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (items.size() >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(e);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (items.size() >= capacity) {
+                notFull.await();
+            }
+            enqueue(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return items.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (items.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return items.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return Math.max(0, capacity - items.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            boolean removed = items.remove(o);
+            if (removed) {
+                notFull.signal();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && !items.isEmpty()) {
+                c.add(items.removeFirst());
+                n++;
+            }
+            if (n > 0) {
+                notFull.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> snapshot;
+        lock.lock();
+        try {
+            snapshot = new ArrayList<E>(items).iterator();
+        } finally {
+            lock.unlock();
+        }
+        return new Iterator<E>() {
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return snapshot.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Not supported");
+            }
+        };
+    }
+}
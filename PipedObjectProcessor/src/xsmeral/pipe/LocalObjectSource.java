@@ -1,6 +1,5 @@
 package xsmeral.pipe;
 
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -15,7 +14,7 @@ import xsmeral.pipe.interfaces.ObjectSource;
  * Can only be placed as the first processor in a processor chain.
  * Provides default {@link ObjectProcessorInterface} set to {@code Object}s.
  * <br />
- * Uses {@link java.util.concurrent.ArrayBlockingQueue} as the output buffer.
+ * Uses {@link LinkBuffer} as the output buffer, its capacity can be changed while running.
  *
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  * @param <O> Output object type
@@ -41,7 +40,7 @@ public class LocalObjectSource<O> extends AbstractObjectProcessor implements Obj
      * Instantiates the output buffer, set to {@linkplain #outBufferCapacity the default capacity}
      */
     public LocalObjectSource() {
-        outBuffer = new ArrayBlockingQueue<O>(outBufferCapacity);
+        outBuffer = new LinkBuffer<O>(outBufferCapacity);
     }
 
     /**
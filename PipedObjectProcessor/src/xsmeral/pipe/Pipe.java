@@ -1,5 +1,6 @@
 package xsmeral.pipe;
 
+import java.lang.reflect.Field;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import xsmeral.pipe.context.PipeContext;
@@ -7,13 +8,27 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import xsmeral.pipe.context.FromContext;
+import xsmeral.pipe.context.ToContext;
 import xsmeral.pipe.interfaces.ObjectSource;
 import xsmeral.pipe.interfaces.ObjectSink;
 import xsmeral.pipe.interfaces.ObjectProcessor;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import xsmeral.pipe.interfaces.ObjectProcessor.Status;
+import xsmeral.pipe.stats.Stats;
+import xsmeral.pipe.stats.Sum;
+import xsmeral.pipe.tune.Tunable;
+import xsmeral.pipe.tune.Tunables;
 
 /**
  * A simple implementation of the Chain of Responsibility pattern.
@@ -38,6 +53,48 @@ public class Pipe {
         }
     }
 
+    /**
+     * Context initialization of one processor, used by {@link Pipe#initProcessors()}.
+     * Sets the context, waits for the processors supplying its dependencies to
+     * set their context, then initializes the context-dependent fields.
+     */
+    private class InitTask implements Callable<Void> {
+
+        private final ObjectProcessor processor;
+        private final CountDownLatch contextSet;
+        private final Collection<CountDownLatch> dependencies;
+        private long setContextTime;
+        private long waitTime;
+        private long initContextTime;
+
+        public InitTask(ObjectProcessor processor, CountDownLatch contextSet, Collection<CountDownLatch> dependencies) {
+            this.processor = processor;
+            this.contextSet = contextSet;
+            this.dependencies = dependencies;
+        }
+
+        @Override
+        public Void call() throws ObjectProcessorException, InterruptedException {
+            long start = System.currentTimeMillis();
+            try {
+                processor.setContext(ctx);
+            } finally {
+                // never leave dependent processors waiting
+                contextSet.countDown();
+            }
+            long setAt = System.currentTimeMillis();
+            setContextTime = setAt - start;
+            for (CountDownLatch dependency : dependencies) {
+                dependency.await();
+            }
+            long initStart = System.currentTimeMillis();
+            waitTime = initStart - setAt;
+            processor.initContext();
+            initContextTime = System.currentTimeMillis() - initStart;
+            return null;
+        }
+    }
+
     private final List<ObjectProcessor> processors;
     private final Collection<AttachedProcessor> attached;
     private List<Thread> threads;
@@ -135,6 +192,8 @@ public class Pipe {
      * Connects processors, checks input-output type match, assigns and initializes context.
      * More information about context initialization in description of
      * {@link AbstractObjectProcessor} class, section "Context initialization".
+     * Processors are initialized concurrently, respecting the context parameter
+     * dependencies between them.
      *
      * @param blocking If set to true, the method doesn't return until all
      * processor threads stop
@@ -169,15 +228,9 @@ public class Pipe {
         for (AttachedProcessor att : attached) {
             att.preContext();
         }
-        // set context
-        for (ObjectProcessor p : processors) {
-            p.setContext(ctx);
-        }
-
-        // init fields dependent on context, must be run after all processors have set context
-        for (ObjectProcessor p : processors) {
-            p.initContext();
-        }
+        // set and init context, concurrently where dependencies allow it
+        initProcessors();
+        registerLinkTunables();
 
         // check starting condition, then run, first to last
         boolean canStart = true;
@@ -213,11 +266,18 @@ public class Pipe {
      * Signals the first processor to stop, which should propagate to all following
      * processors.
      * The processing stops as soon as all objects in buffers are processed.
+     * Paused processors are resumed.
      *
      * @param blocking If set to true, the method doesn't return until all
      * threads stop
      */
     public void stop(boolean blocking) {
+        // paused processors would never stop
+        for (ObjectProcessor p : processors) {
+            if (p instanceof AbstractObjectProcessor) {
+                ((AbstractObjectProcessor) p).resume();
+            }
+        }
         processors.get(0).requestStop();
         if (blocking) {
             joinThreads();
@@ -237,6 +297,110 @@ public class Pipe {
         }
     }
 
+    /**
+     * Assigns context to all processors and initializes their context-dependent fields.
+     * <br />
+     * The processors are initialized concurrently, each in its own thread.
+     * A processor's {@link ObjectProcessor#initContext() initContext()} is only
+     * run after {@link ObjectProcessor#setContext(xsmeral.pipe.context.ProcessingContext) setContext()}
+     * has finished in all processors that supply (by a {@link ToContext} field)
+     * a parameter it depends on (by a {@link FromContext} field).
+     * Processors with no such dependency between them are initialized independently.
+     * <br />
+     * Time spent in each phase is logged and stored in context stats.
+     *
+     * @throws ObjectProcessorException The first exception thrown by a processor
+     *  (in chain order), or if interrupted while waiting for initialization to finish
+     */
+    private void initProcessors() throws ObjectProcessorException {
+        int count = processors.size();
+        // find processors supplying the context parameters
+        Map<String, Integer> suppliers = new HashMap<String, Integer>();
+        for (int i = 0; i < count; i++) {
+            for (Field f : processors.get(i).getClass().getDeclaredFields()) {
+                ToContext annot = f.getAnnotation(ToContext.class);
+                if (annot != null) {
+                    suppliers.put(!annot.value().isEmpty() ? annot.value() : f.getName(), i);
+                }
+            }
+        }
+        List<CountDownLatch> contextSet = new ArrayList<CountDownLatch>(count);
+        for (int i = 0; i < count; i++) {
+            contextSet.add(new CountDownLatch(1));
+        }
+        // create tasks, each waiting only for the suppliers of its dependencies
+        List<InitTask> tasks = new ArrayList<InitTask>(count);
+        for (int i = 0; i < count; i++) {
+            ObjectProcessor p = processors.get(i);
+            Collection<CountDownLatch> dependencies = new ArrayList<CountDownLatch>();
+            for (Field f : p.getClass().getDeclaredFields()) {
+                FromContext annot = f.getAnnotation(FromContext.class);
+                if (annot != null) {
+                    Integer supplier = suppliers.get(!annot.value().isEmpty() ? annot.value() : f.getName());
+                    if (supplier != null && supplier != i) {
+                        dependencies.add(contextSet.get(supplier));
+                    }
+                }
+            }
+            tasks.add(new InitTask(p, contextSet.get(i), dependencies));
+        }
+
+        long start = System.currentTimeMillis();
+        ExecutorService initExec = Executors.newFixedThreadPool(Math.max(count, 1));
+        try {
+            List<Future<Void>> results = initExec.invokeAll(tasks);
+            Logger.getLogger(Pipe.class.getName()).log(Level.INFO, "Processors initialized in {0} ms", System.currentTimeMillis() - start);
+            Stats stats = new Stats(Pipe.class.getSimpleName(), ctx);
+            for (int i = 0; i < count; i++) {
+                InitTask task = tasks.get(i);
+                String name = i + "-" + task.processor.getClass().getSimpleName();
+                Logger.getLogger(Pipe.class.getName()).log(Level.INFO, "{0}: setContext {1} ms, waiting {2} ms, initContext {3} ms",
+                        new Object[]{name, task.setContextTime, task.waitTime, task.initContextTime});
+                stats.newFunction("perf.init." + name, Sum.class).add(task.setContextTime + task.initContextTime);
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof ObjectProcessorException) {
+                        throw (ObjectProcessorException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else {
+                        throw new ObjectProcessorException("Processor failed to initialize", cause);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new ObjectProcessorException("Interrupted while initializing processors", ex);
+        } finally {
+            initExec.shutdownNow();
+        }
+    }
+
+    /**
+     * Publishes capacities of output buffers of type {@link LinkBuffer} as
+     * {@link Tunable}s in group {@code Pipe}, named
+     * {@code link.<index>-<processor class>.capacity}.
+     */
+    private void registerLinkTunables() {
+        Tunables tunables = new Tunables(Pipe.class.getSimpleName(), ctx);
+        for (int i = 0; i < processors.size(); i++) {
+            ObjectProcessor p = processors.get(i);
+            if (p instanceof ObjectSource && ((ObjectSource) p).getOutBuffer() instanceof LinkBuffer) {
+                final LinkBuffer<?> buffer = (LinkBuffer<?>) ((ObjectSource) p).getOutBuffer();
+                tunables.newTunable("link." + i + "-" + p.getClass().getSimpleName() + ".capacity", buffer.getCapacity(), 1, Integer.MAX_VALUE).addListener(new Tunable.Listener() {
+
+                    @Override
+                    public void valueChanged(Tunable tunable, int oldValue) {
+                        buffer.setCapacity(tunable.get());
+                    }
+                });
+            }
+        }
+    }
+
     /**
      * Interrupts all threads sequentially, possibly leaving the processors
      * in an indeterminate and erroneous state.<br />
@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import xsmeral.pipe.Pipe;
@@ -37,9 +38,16 @@ public class PipeContext implements ProcessingContext, FSContext {
         this.pipe = pipe;
     }
 
+    /**
+     * {@inheritDoc}
+     * The returned set is a copy, which can be iterated while other threads
+     * change the context.
+     */
     @Override
     public Set<String> getParameterNames() {
-        return parameterMap.keySet();
+        synchronized (parameterMap) {
+            return new TreeSet<String>(parameterMap.keySet());
+        }
     }
 
     /**
@@ -96,7 +104,9 @@ public class PipeContext implements ProcessingContext, FSContext {
 
     @Override
     public void removeParameter(String name) {
-        parameterMap.remove(name);
+        synchronized (parameterMap) {
+            parameterMap.remove(name);
+        }
     }
 
     /**
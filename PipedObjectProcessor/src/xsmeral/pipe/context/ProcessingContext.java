@@ -35,6 +35,7 @@ public interface ProcessingContext {
     /**
      * Returns set of all parameter names currently present in the map
      * (also those mapped to {@code null}).
+     * The set is a snapshot, it doesn't reflect later changes of the map.
      */
     Set<String> getParameterNames();
 
@@ -0,0 +1,192 @@
+package xsmeral.pipe.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import xsmeral.pipe.LinkBuffer;
+import xsmeral.pipe.PipeAttachedProcessor;
+import xsmeral.pipe.interfaces.ObjectProcessor;
+import xsmeral.pipe.interfaces.ObjectSource;
+import xsmeral.pipe.interfaces.Param;
+
+/**
+ * Records objects passing through one link of a pipe (the output buffer of
+ * a processor) to a file, along with their timing.
+ * <br />
+ * The objects are captured by a {@link LinkBuffer.Tap tap} and written in
+ * a separate thread, so the recorded processors are not slowed down by I/O.
+ * At most {@code queueSize} captured objects wait to be written, objects captured
+ * while the queue is full are dropped from the recording (and counted), so the recorded
+ * processors never wait for the writer.
+ * The recording can be replayed by {@link ReplaySource}.
+ * Format of the file is described in {@link TapeFormat}.
+ *
+ * @init link Index (in the chain, starting from 0) of the processor whose output is recorded
+ * @init file Name of the file to write
+ * @init codec (Optional) Class name of the {@link ObjectCodec} to use,
+ *  default is {@link SerializationCodec}
+ * @init queueSize (Optional) Maximum number of captured objects waiting to be written,
+ *  default is {@value #DEF_QUEUE_SIZE}
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class LinkRecorder extends PipeAttachedProcessor {
+
+    /**
+     * Default maximum number of captured objects waiting to be written.
+     */
+    public static final int DEF_QUEUE_SIZE = 10000;
+    private static final int STOP_TIMEOUT = 60000;
+    @Param
+    private int link;
+    @Param("file")
+    private String fileName;
+    @Param("codec")
+    private String codecName = SerializationCodec.class.getName();
+    @Param
+    private int queueSize = DEF_QUEUE_SIZE;
+    private ObjectCodec<Object> codec;
+    private DataOutputStream out;
+    private LinkBuffer<?> buffer;
+    private BlockingQueue<Record> records;
+    private volatile boolean closed = false;
+    private final AtomicLong dropped = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Record end = new Record(null);
+    private long startTime;
+    private final LinkBuffer.Tap<Object> tap = new LinkBuffer.Tap<Object>() {
+
+        @Override
+        public void objectAdded(Object obj) {
+            if (!closed && !records.offer(new Record(obj))) {
+                dropped.incrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * Captured object with time of capture.
+     */
+    private static class Record {
+
+        private final long time = System.nanoTime();
+        private final Object obj;
+
+        public Record(Object obj) {
+            this.obj = obj;
+        }
+    }
+
+    /**
+     * Opens the file, writes the header and attaches the tap.
+     * Detaches itself if the link can't be recorded.
+     */
+    @Override
+    public void postContext() {
+        List<ObjectProcessor> processors = getPipe().getProcessors();
+        if (link < 0 || link >= processors.size() || !(processors.get(link) instanceof ObjectSource)) {
+            Logger.getLogger(LinkRecorder.class.getName()).log(Level.WARNING, "No link with index {0}, not recording", link);
+            detach();
+            return;
+        }
+        Object outBuffer = ((ObjectSource) processors.get(link)).getOutBuffer();
+        if (!(outBuffer instanceof LinkBuffer)) {
+            Logger.getLogger(LinkRecorder.class.getName()).log(Level.WARNING, "Output buffer of {0} can''t be tapped, not recording", processors.get(link).getClass().getSimpleName());
+            detach();
+            return;
+        }
+        try {
+            codec = TapeFormat.newCodec(codecName);
+            File file = getPipe().getContext().getFile(fileName);
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+            out.writeInt(TapeFormat.MAGIC);
+            out.writeByte(TapeFormat.VERSION);
+            out.writeUTF(codecName);
+        } catch (Exception ex) {
+            Logger.getLogger(LinkRecorder.class.getName()).log(Level.WARNING, "Can''t start recording: {0}", ex.getMessage());
+            out = null;
+            detach();
+            return;
+        }
+        records = new LinkedBlockingQueue<Record>(Math.max(1, queueSize));
+        startTime = System.nanoTime();
+        buffer = (LinkBuffer<?>) outBuffer;
+        buffer.addTap(tap);
+    }
+
+    /**
+     * Writes captured objects until stopped.
+     */
+    @Override
+    public void run() {
+        if (out == null) {
+            return;
+        }
+        long last = startTime;
+        long count = 0;
+        try {
+            Record record;
+            while ((record = records.take()) != end) {
+                out.writeByte(TapeFormat.RECORD);
+                TapeFormat.writeVarLong(out, Math.max(0, record.time - last) / 1000);
+                last = record.time;
+                codec.write(record.obj, out);
+                count++;
+            }
+            out.writeByte(TapeFormat.END);
+        } catch (IOException ex) {
+            Logger.getLogger(LinkRecorder.class.getName()).log(Level.SEVERE, "Recording failed: {0}", ex.getMessage());
+            LinkBuffer<?> tapped = buffer;
+            if (tapped != null) {
+                tapped.removeTap(tap);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            Logger.getLogger(LinkRecorder.class.getName()).log(Level.WARNING, "Recording interrupted");
+        } finally {
+            closed = true;
+            records.clear();
+            try {
+                out.close();
+            } catch (IOException ex) {
+                Logger.getLogger(LinkRecorder.class.getName()).log(Level.WARNING, "Can''t close recording file: {0}", ex.getMessage());
+            }
+            Logger.getLogger(LinkRecorder.class.getName()).log(dropped.get() > 0 ? Level.WARNING : Level.INFO, "Recorded {0} objects, dropped {1} (queue full)", new Object[]{count, dropped.get()});
+            done.countDown();
+        }
+    }
+
+    @Override
+    public void chainStopped() {
+        stop();
+    }
+
+    /**
+     * Detaches the tap and waits for the captured objects to be written.
+     */
+    @Override
+    public void stop() {
+        if (buffer != null) {
+            buffer.removeTap(tap);
+            buffer = null;
+            try {
+                if (!closed) {
+                    records.offer(end, STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                done.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Logger.getLogger(LinkRecorder.class.getName()).log(Level.WARNING, "Interrupted while finishing recording");
+            }
+        }
+    }
+}
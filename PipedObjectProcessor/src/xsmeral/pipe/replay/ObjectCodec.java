@@ -0,0 +1,28 @@
+package xsmeral.pipe.replay;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary encoding of objects recorded by {@link LinkRecorder}.
+ * <br />
+ * One instance is used for one whole stream, so an implementation can keep
+ * state between objects (e.g. a dictionary of repeated values), as long as
+ * decoding mirrors it. Implementations must have a public no-arg constructor.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ * @param <T> Type of encoded objects
+ */
+public interface ObjectCodec<T> {
+
+    /**
+     * Encodes one object.
+     */
+    public void write(T obj, DataOutput out) throws IOException;
+
+    /**
+     * Decodes one object.
+     */
+    public T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,117 @@
+package xsmeral.pipe.replay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import xsmeral.pipe.LocalObjectSource;
+import xsmeral.pipe.ProcessorStoppedException;
+import xsmeral.pipe.context.FSContext;
+import xsmeral.pipe.interfaces.ObjectProcessorInterface;
+import xsmeral.pipe.interfaces.Param;
+import xsmeral.pipe.stats.StatFunction;
+import xsmeral.pipe.stats.Stats;
+import xsmeral.pipe.stats.Sum;
+
+/**
+ * Replays objects recorded by {@link LinkRecorder}, either as fast as the
+ * following processors accept them, or with the recorded timing.
+ * <br />
+ * Can replace the processors preceding the recorded link, so that
+ * the rest of the chain can be run (e.g. benchmarked) repeatedly with the same input.
+ *
+ * @init file Name of the recording file
+ * @init timing (Optional) If true, the recorded intervals between objects are kept,
+ *  otherwise objects are written as fast as possible. Default is false.
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+@ObjectProcessorInterface(out = Object.class)
+public class ReplaySource extends LocalObjectSource<Object> {
+
+    @Param("file")
+    private String fileName;
+    @Param
+    private boolean timing = false;
+    private DataInputStream in;
+    private ObjectCodec<Object> codec;
+    private long nextAt;
+    private StatFunction<Long> count;
+
+    /**
+     * Opens the file, reads the header and instantiates the codec.
+     */
+    @Override
+    protected void initPostContext() {
+        try {
+            File file = ((FSContext) getContext()).getFile(fileName);
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            if (in.readInt() != TapeFormat.MAGIC) {
+                failStart("Not a recording: " + fileName);
+            } else if (in.readByte() != TapeFormat.VERSION) {
+                failStart("Unsupported recording version: " + fileName);
+            } else {
+                codec = TapeFormat.newCodec(in.readUTF());
+            }
+            count = new Stats(this).newFunction("stat.count", Sum.class);
+        } catch (IOException ex) {
+            failStart("Can't read recording: " + ex.getMessage());
+        } catch (ClassNotFoundException ex) {
+            failStart("Codec class not found", ex);
+        } catch (ReflectiveOperationException ex) {
+            failStart("Can't instantiate codec", ex);
+        } catch (ClassCastException ex) {
+            failStart("Not a codec class", ex);
+        }
+    }
+
+    @Override
+    protected void preRun() {
+        nextAt = System.nanoTime();
+    }
+
+    /**
+     * Reads and writes one recorded object, stops at the end of recording.
+     */
+    @Override
+    protected void process() throws ProcessorStoppedException {
+        try {
+            if (in.readByte() != TapeFormat.RECORD) {
+                stop();
+                return;
+            }
+            long delay = TapeFormat.readVarLong(in);
+            Object obj = codec.read(in);
+            if (timing) {
+                nextAt += delay * 1000;
+                long wait = (nextAt - System.nanoTime()) / 1000000;
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+            write(obj);
+            count.add();
+        } catch (EOFException ex) {
+            Logger.getLogger(ReplaySource.class.getName()).log(Level.WARNING, "Recording ended unexpectedly");
+            stop();
+        } catch (IOException ex) {
+            Logger.getLogger(ReplaySource.class.getName()).log(Level.SEVERE, "Can''t read recording, stopping", ex);
+            stop();
+        } catch (InterruptedException ex) {
+            stop();
+        }
+    }
+
+    @Override
+    protected void postRun() {
+        try {
+            in.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ReplaySource.class.getName()).log(Level.WARNING, "Can''t close recording: {0}", ex.getMessage());
+        }
+    }
+}
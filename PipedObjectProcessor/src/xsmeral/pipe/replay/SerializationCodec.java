@@ -0,0 +1,41 @@
+package xsmeral.pipe.replay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Codec using Java serialization, works for any {@link java.io.Serializable} object.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class SerializationCodec implements ObjectCodec<Object> {
+
+    @Override
+    public void write(Object obj, DataOutput out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(obj);
+        oos.close();
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    @Override
+    public Object read(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Class of recorded object not found: " + ex.getMessage());
+        } finally {
+            ois.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package xsmeral.pipe.replay;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Constants and helpers of the recording file format.
+ * <br />
+ * The file is GZIP-compressed and contains:
+ * <ol>
+ *  <li>header - {@link #MAGIC}, {@link #VERSION}, class name of the codec</li>
+ *  <li>records - each is {@link #RECORD}, time since the previous record
+ *      in microseconds (as {@linkplain #writeVarLong var-long}) and the object
+ *      encoded by the codec</li>
+ *  <li>{@link #END}</li>
+ * </ol>
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public final class TapeFormat {
+
+    public static final int MAGIC = 0x50495045;// "PIPE"
+    public static final byte VERSION = 1;
+    public static final byte RECORD = 1;
+    public static final byte END = 0;
+
+    private TapeFormat() {
+    }
+
+    /**
+     * Writes a non-negative long in 7-bit groups, least significant first.
+     * Small values take less space (e.g. values below 128 take one byte).
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a long written by {@link #writeVarLong(java.io.DataOutput, long) writeVarLong}.
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Instantiates the codec of the specified class.
+     * The codec is used for objects of the recorded link, whose type is only known at run time.
+     */
+    @SuppressWarnings("unchecked")
+    public static ObjectCodec<Object> newCodec(String className) throws ReflectiveOperationException {
+        return (ObjectCodec<Object>) Class.forName(className).asSubclass(ObjectCodec.class).getDeclaredConstructor().newInstance();
+    }
+}
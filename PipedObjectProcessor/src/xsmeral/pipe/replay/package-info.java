@@ -0,0 +1,4 @@
+/**
+ * Provides recording of objects passing between processors and their replay.
+ */
+package xsmeral.pipe.replay;
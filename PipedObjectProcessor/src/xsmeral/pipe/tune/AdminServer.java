@@ -0,0 +1,356 @@
+package xsmeral.pipe.tune;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import xsmeral.pipe.AbstractObjectProcessor;
+import xsmeral.pipe.PipeAttachedProcessor;
+import xsmeral.pipe.context.PipeContext;
+import xsmeral.pipe.interfaces.ObjectProcessor;
+import xsmeral.pipe.interfaces.Param;
+
+/**
+ * Administration interface of a running pipe, served over HTTP on the loopback
+ * interface only.
+ * <br />
+ * All responses are plain text. Supported requests:
+ * <ul>
+ *  <li><code>GET /tunables</code> - lists all {@linkplain Tunables published tunables}
+ *      as <code>name=value [min, max]</code></li>
+ *  <li><code>POST /set?name=[full name]&amp;value=[value]</code> - changes value of a tunable</li>
+ *  <li><code>GET /stages</code> - lists processors (stages) of the pipe
+ *      with their index, status and pause state</li>
+ *  <li><code>POST /pause?stage=[index]</code> - pauses a stage</li>
+ *  <li><code>POST /resume?stage=[index]</code> - resumes a paused stage</li>
+ * </ul>
+ * Parameters of POST requests may also be sent as a form in the body.
+ * Only processors extending {@link AbstractObjectProcessor} can be paused.
+ * <br />
+ * Since any local program (including web pages open in a browser) can connect
+ * to the loopback interface, requests whose {@code Host} or {@code Origin} header
+ * names another host are rejected, and the requests changing the pipe must carry
+ * a token generated for each run, in the {@value #TOKEN_HEADER} header or the
+ * {@code token} parameter. The token is written to {@code tokenFile}, readable
+ * only by its owner, e.g.
+ * <pre>    curl -X POST -H "X-Admin-Token: $(cat admin.token)" "http://localhost:8642/pause?stage=1"</pre>
+ *
+ * @init port (Optional) TCP port to listen on, default is {@value #DEF_PORT}
+ * @init tokenFile (Optional) Name of the file the token is written to, default is {@value #DEF_TOKEN_FILE}
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class AdminServer extends PipeAttachedProcessor {
+
+    public static final int DEF_PORT = 8642;
+    public static final String DEF_TOKEN_FILE = "admin.token";
+    public static final String TOKEN_HEADER = "X-Admin-Token";
+    private static final String CHARSET = "UTF-8";
+    private static final String METHOD_POST = "POST";
+    private static final int MAX_BODY = 8192;
+    private static final int TOKEN_BITS = 128;
+    private static final Set<String> LOCAL_HOSTS = new HashSet<String>(Arrays.asList("localhost", "127.0.0.1", "[::1]"));
+    private static final int STATUS_OK = 200;
+    private static final int STATUS_BAD_REQUEST = 400;
+    private static final int STATUS_FORBIDDEN = 403;
+    private static final int STATUS_NOT_FOUND = 404;
+    private static final int STATUS_BAD_METHOD = 405;
+    @Param
+    private int port = DEF_PORT;
+    @Param
+    private String tokenFile = DEF_TOKEN_FILE;
+    private PipeContext ctx;
+    private HttpServer server;
+    private String token;
+
+    /**
+     * Response of a handled request.
+     */
+    private static class Response {
+
+        private final int status;
+        private final String body;
+
+        public Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Handles one type of request.
+     * Rejects requests from foreign hosts and, if the request changes the pipe,
+     * requests other than POST or without the token.
+     */
+    private abstract class Handler implements HttpHandler {
+
+        private final boolean changing;
+
+        /**
+         * @param changing Whether the request changes the pipe
+         */
+        public Handler(boolean changing) {
+            this.changing = changing;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Response response;
+            try {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                if (!isLocal(exchange.getRequestHeaders().getFirst("Host"), false)
+                        || !isLocal(exchange.getRequestHeaders().getFirst("Origin"), true)) {
+                    response = new Response(STATUS_FORBIDDEN, "Foreign host");
+                } else if (!changing) {
+                    response = handle(query);
+                } else if (!METHOD_POST.equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", METHOD_POST);
+                    response = new Response(STATUS_BAD_METHOD, "Use POST");
+                } else {
+                    query.putAll(parseQuery(readBody(exchange.getRequestBody())));
+                    String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+                    if (!isToken(sent != null ? sent : query.get("token"))) {
+                        response = new Response(STATUS_FORBIDDEN, "Missing or wrong token");
+                    } else {
+                        response = handle(query);
+                    }
+                }
+            } catch (IllegalArgumentException ex) {
+                response = new Response(STATUS_BAD_REQUEST, ex.getMessage());
+            }
+            byte[] body = (response.body + "\n").getBytes(CHARSET);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=" + CHARSET);
+            exchange.sendResponseHeaders(response.status, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+
+        protected abstract Response handle(Map<String, String> query);
+    }
+
+    /**
+     * Indicates whether the value of a {@code Host} or {@code Origin} header names the loopback interface.
+     * @param origin Whether the value is an origin (with scheme), which may be missing
+     */
+    private static boolean isLocal(String value, boolean origin) {
+        if (value == null) {
+            return origin;
+        }
+        String host = value.trim().toLowerCase(Locale.ENGLISH);
+        if (origin) {
+            int scheme = host.indexOf("://");
+            if (scheme < 0) {
+                return false;// e.g. "null"
+            }
+            host = host.substring(scheme + 3);
+        }
+        int port = host.lastIndexOf(':');
+        if (port > host.lastIndexOf(']')) {
+            host = host.substring(0, port);
+        }
+        return LOCAL_HOSTS.contains(host);
+    }
+
+    /**
+     * Compares the sent token with the token of this run in constant time.
+     */
+    private boolean isToken(String sent) throws UnsupportedEncodingException {
+        return sent != null && MessageDigest.isEqual(token.getBytes(CHARSET), sent.trim().getBytes(CHARSET));
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            body.write(buf, 0, read);
+            if (body.size() > MAX_BODY) {
+                throw new IllegalArgumentException("Request too large");
+            }
+        }
+        return body.toString(CHARSET);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), CHARSET), URLDecoder.decode(pair.substring(eq + 1), CHARSET));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+
+    /**
+     * Returns the stage with the index specified in the {@code stage} parameter.
+     */
+    private AbstractObjectProcessor getStage(Map<String, String> query) {
+        int index = intParam(query, "stage");
+        List<ObjectProcessor> processors = getPipe().getProcessors();
+        if (index < 0 || index >= processors.size()) {
+            throw new IllegalArgumentException("No such stage: " + index);
+        }
+        ObjectProcessor p = processors.get(index);
+        if (!(p instanceof AbstractObjectProcessor)) {
+            throw new IllegalArgumentException("Stage " + index + " can't be paused");
+        }
+        return (AbstractObjectProcessor) p;
+    }
+
+    @Override
+    public void postContext() {
+        ctx = getPipe().getContext();
+    }
+
+    /**
+     * Generates the token of this run and writes it to the token file, readable only by its owner.
+     */
+    private void writeToken() throws IOException {
+        token = new BigInteger(TOKEN_BITS, new SecureRandom()).toString(Character.MAX_RADIX);
+        File file = ctx.getFile(tokenFile);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't replace " + file);
+        }
+        if (!file.createNewFile() || !file.setReadable(false, false) || !file.setReadable(true, true)
+                || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+            throw new IOException("Can't create " + file + " readable only by owner");
+        }
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(token.getBytes(CHARSET));
+        } finally {
+            os.close();
+        }
+        Logger.getLogger(AdminServer.class.getName()).log(Level.INFO, "Admin token written to {0}", file);
+    }
+
+    /**
+     * Starts the HTTP server.
+     */
+    @Override
+    public void run() {
+        try {
+            writeToken();
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+        } catch (IOException ex) {
+            Logger.getLogger(AdminServer.class.getName()).log(Level.SEVERE, "Can''t start admin server on port {0}: {1}", new Object[]{port, ex.getMessage()});
+            return;
+        }
+        server.createContext("/tunables", new Handler(false) {
+
+            @Override
+            protected Response handle(Map<String, String> query) {
+                StringBuilder sb = new StringBuilder();
+                for (Map.Entry<String, Tunable> entry : Tunables.list(ctx).entrySet()) {
+                    sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+                }
+                return new Response(STATUS_OK, sb.toString());
+            }
+        });
+        server.createContext("/set", new Handler(true) {
+
+            @Override
+            protected Response handle(Map<String, String> query) {
+                String name = query.get("name");
+                Tunable tunable = name != null ? Tunables.get(ctx, name) : null;
+                if (tunable == null) {
+                    return new Response(STATUS_NOT_FOUND, "No such tunable: " + name);
+                }
+                tunable.set(intParam(query, "value"));
+                Logger.getLogger(AdminServer.class.getName()).log(Level.INFO, "Tunable {0} set to {1}", new Object[]{name, tunable.get()});
+                return new Response(STATUS_OK, name + "=" + tunable);
+            }
+        });
+        server.createContext("/stages", new Handler(false) {
+
+            @Override
+            protected Response handle(Map<String, String> query) {
+                StringBuilder sb = new StringBuilder();
+                List<ObjectProcessor> processors = getPipe().getProcessors();
+                for (int i = 0; i < processors.size(); i++) {
+                    ObjectProcessor p = processors.get(i);
+                    sb.append(i).append(' ').append(p.getClass().getSimpleName()).append(' ').append(p.getStatus());
+                    if (p instanceof AbstractObjectProcessor && ((AbstractObjectProcessor) p).isPaused()) {
+                        sb.append(" PAUSED");
+                    }
+                    sb.append('\n');
+                }
+                return new Response(STATUS_OK, sb.toString());
+            }
+        });
+        server.createContext("/pause", new Handler(true) {
+
+            @Override
+            protected Response handle(Map<String, String> query) {
+                AbstractObjectProcessor stage = getStage(query);
+                stage.pause();
+                Logger.getLogger(AdminServer.class.getName()).log(Level.INFO, "Stage {0} paused", stage.getClass().getSimpleName());
+                return new Response(STATUS_OK, "Paused");
+            }
+        });
+        server.createContext("/resume", new Handler(true) {
+
+            @Override
+            protected Response handle(Map<String, String> query) {
+                AbstractObjectProcessor stage = getStage(query);
+                stage.resume();
+                Logger.getLogger(AdminServer.class.getName()).log(Level.INFO, "Stage {0} resumed", stage.getClass().getSimpleName());
+                return new Response(STATUS_OK, "Resumed");
+            }
+        });
+        server.start();
+        Logger.getLogger(AdminServer.class.getName()).log(Level.INFO, "Admin server listening on {0}", server.getAddress());
+    }
+
+    @Override
+    public void chainStopped() {
+        stop();
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            if (!ctx.getFile(tokenFile).delete()) {
+                Logger.getLogger(AdminServer.class.getName()).log(Level.WARNING, "Can''t delete admin token file {0}", tokenFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package xsmeral.pipe.tune;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An integer parameter of a processor that can be changed at runtime.
+ * <br />
+ * The value is always within the bounds supplied at creation. Processors
+ * either read the value each time they need it or register a {@link Listener}
+ * to be notified of changes. Listeners are called in the thread that changes
+ * the value.
+ *
+ * @see Tunables
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class Tunable {
+
+    /**
+     * Listener of value changes.
+     */
+    public interface Listener {
+
+        /**
+         * Called after the value of the tunable has changed.
+         */
+        public void valueChanged(Tunable tunable, int oldValue);
+    }
+
+    private final String name;
+    private final int min;
+    private final int max;
+    private volatile int value;
+    private final List<Listener> listeners;
+
+    /**
+     * Creates a tunable with the given initial value and bounds.
+     * @throws IllegalArgumentException If the initial value is out of bounds
+     */
+    public Tunable(String name, int value, int min, int max) {
+        if (min > max) {
+            throw new IllegalArgumentException("Invalid bounds of tunable " + name);
+        }
+        this.name = name;
+        this.min = min;
+        this.max = max;
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+        checkBounds(value);
+        this.value = value;
+    }
+
+    private void checkBounds(int value) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException("Value of " + name + " must be between " + min + " and " + max);
+        }
+    }
+
+    /**
+     * Returns the current value.
+     */
+    public int get() {
+        return value;
+    }
+
+    /**
+     * Sets the value and notifies listeners, if it has changed.
+     * @throws IllegalArgumentException If the value is out of bounds
+     */
+    public synchronized void set(int value) {
+        checkBounds(value);
+        int oldValue = this.value;
+        this.value = value;
+        if (oldValue != value) {
+            for (Listener listener : listeners) {
+                listener.valueChanged(this, oldValue);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener of value changes and returns this tunable.
+     */
+    public Tunable addListener(Listener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Returns the name (without group prefix).
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the minimum value.
+     */
+    public int getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the maximum value.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the value and bounds, e.g. &quot;50 [1, 1000]&quot;.
+     */
+    @Override
+    public String toString() {
+        return value + " [" + min + ", " + max + "]";
+    }
+}
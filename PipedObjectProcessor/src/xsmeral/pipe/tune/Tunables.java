@@ -0,0 +1,95 @@
+package xsmeral.pipe.tune;
+
+import java.util.Map;
+import java.util.TreeMap;
+import xsmeral.pipe.context.ProcessingContext;
+import xsmeral.pipe.interfaces.ObjectProcessor;
+
+/**
+ * Publishes {@link Tunable}s of processors in a processing context, so that
+ * they can be found and changed by other entities (e.g. {@link AdminServer}).
+ * <br />
+ * The names of context parameters that hold the tunables have specific format: <br />
+ * <pre>    tune.[group].[name]</pre>
+ * where <code>[group]</code> is either a class name of the processor or name
+ * of other logical grouping and <code>[name]</code> is name of the tunable.
+ *
+ * @see ProcessingContext
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class Tunables {
+
+    /*
+     * The "namespace" for tunables in processing context.
+     */
+    public static final String PARAM_TUNE = "tune";
+    private static final String PARAM_FORMAT = "%s.%s.%s";
+    private String group;
+    private ProcessingContext ctx;
+
+    /**
+     * Convenience constructor, creates the instance with <tt>group</tt> equal to
+     * the processor's simple class name and its associated context.
+     */
+    public Tunables(ObjectProcessor processor) {
+        this(processor.getClass().getSimpleName(), processor.getContext());
+    }
+
+    /**
+     * Creates an instance for the specified group and context.
+     */
+    public Tunables(String group, ProcessingContext ctx) {
+        if (ctx == null) {
+            throw new IllegalArgumentException("No context supplied.");
+        }
+        this.group = group;
+        this.ctx = ctx;
+    }
+
+    /**
+     * Returns group name.
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Publishes the supplied tunable in the context and returns it.
+     */
+    public Tunable register(Tunable tunable) {
+        ctx.setParameter(String.format(PARAM_FORMAT, PARAM_TUNE, group, tunable.getName()), tunable);
+        return tunable;
+    }
+
+    /**
+     * Creates a new tunable, publishes it in the context and returns it.
+     * @see Tunable#Tunable(java.lang.String, int, int, int)
+     */
+    public Tunable newTunable(String name, int value, int min, int max) {
+        return register(new Tunable(name, value, min, max));
+    }
+
+    /**
+     * Returns all tunables published in the context, mapped by full names.
+     */
+    public static Map<String, Tunable> list(ProcessingContext ctx) {
+        Map<String, Tunable> tunables = new TreeMap<String, Tunable>();
+        for (String name : ctx.getParameterNames()) {
+            if (name.startsWith(PARAM_TUNE + ".")) {
+                Object value = ctx.getParameterValue(name);
+                if (value instanceof Tunable) {
+                    tunables.put(name, (Tunable) value);
+                }
+            }
+        }
+        return tunables;
+    }
+
+    /**
+     * Returns the tunable with the specified full name, or null if there is none.
+     */
+    public static Tunable get(ProcessingContext ctx, String fullName) {
+        Object value = ctx.getParameterValue(fullName);
+        return value instanceof Tunable ? (Tunable) value : null;
+    }
+}
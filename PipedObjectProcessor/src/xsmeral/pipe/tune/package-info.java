@@ -0,0 +1,4 @@
+/**
+ * Provides classes for changing parameters of processors at runtime.
+ */
+package xsmeral.pipe.tune;
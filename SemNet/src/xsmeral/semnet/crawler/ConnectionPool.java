@@ -0,0 +1,491 @@
+package xsmeral.semnet.crawler;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import xsmeral.pipe.stats.Average;
+import xsmeral.pipe.stats.StatFunction;
+import xsmeral.pipe.stats.Stats;
+import xsmeral.pipe.stats.Sum;
+
+/**
+ * Bounded pool of connections of one {@link RDBLayer}.
+ * <br />
+ * Connections handed out by {@link #borrow(Client) borrow} are proxies of pooled physical
+ * connections, closing the proxy returns the physical connection to the pool.
+ * A connection that has been idle for a while is validated before it is handed
+ * out, invalid connections are replaced by new ones. If all connections are in use,
+ * the caller waits until one is returned, up to the configured timeout.
+ * <br />
+ * Each connection caches the statements prepared by
+ * {@link Connection#prepareStatement(java.lang.String) prepareStatement(sql)},
+ * closing such a statement returns it to the cache of its connection,
+ * where it is found by the next {@code prepareStatement} call with the same SQL.
+ * Statements left open when the connection is returned are closed.
+ * <br />
+ * The transaction isolation of a connection is tracked by the pool, so setting
+ * the isolation a connection already has (e.g. on each borrowing) costs no round-trip.
+ * <br />
+ * <br />
+ * Connections are borrowed by {@linkplain Client clients} (e.g. one per job sharing
+ * the pool), each of which may be limited in the number of connections it has
+ * in use, so that one client can't take all connections of the pool.
+ * If {@linkplain Client#setStats(xsmeral.pipe.stats.Stats) stats} of a client are set,
+ * the following are reported for the connections it borrows:
+ * <ul>
+ *  <li>{@code db.borrowed} - number of connections handed out</li>
+ *  <li>{@code db.waited} - number of connections the caller had to wait for</li>
+ *  <li>{@code db.timeouts} - number of times the wait timed out</li>
+ *  <li>{@code db.avgWait} - average wait for a connection in milliseconds</li>
+ *  <li>{@code db.active} - number of connections currently in use</li>
+ *  <li>{@code db.avgUtilisation} - average fraction of the pool in use at the time of borrowing</li>
+ *  <li>{@code db.stmtHits} - number of statements found in the cache</li>
+ * </ul>
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+class ConnectionPool {
+
+    private static final long VALIDATION_INTERVAL = 30000;
+    private static final int VALIDATION_TIMEOUT = 5;
+    private final RDBLayer db;
+    private final int maxSize;
+    private final long timeout;
+    private final int statementCacheSize;
+    private final LinkedList<PooledConnection> idle;
+    private int open = 0;
+    private int active = 0;
+
+    /**
+     * User of the pool with its own limit of connections in use and its own stats.
+     * The state is guarded by the pool.
+     */
+    class Client {
+
+        private final int quota;
+        private int active = 0;
+        private StatFunction<Long> borrowed;
+        private StatFunction<Long> waited;
+        private StatFunction<Long> timeouts;
+        private StatFunction<Double> avgWait;
+        private StatFunction<Long> activeStat;
+        private StatFunction<Double> avgUtilisation;
+        private StatFunction<Long> stmtHits;
+
+        /**
+         * @param quota Maximum number of connections in use, 0 for no limit
+         */
+        private Client(int quota) {
+            this.quota = Math.max(0, quota);
+        }
+
+        /**
+         * Starts reporting stats of this client to the supplied stats group.
+         */
+        public void setStats(Stats stats) {
+            synchronized (ConnectionPool.this) {
+                borrowed = stats.newFunction("db.borrowed", Sum.class);
+                waited = stats.newFunction("db.waited", Sum.class);
+                timeouts = stats.newFunction("db.timeouts", Sum.class);
+                avgWait = stats.newFunction("db.avgWait", Average.class);
+                activeStat = stats.newFunction("db.active", Sum.class);
+                avgUtilisation = stats.newFunction("db.avgUtilisation", Average.class);
+                stmtHits = stats.newFunction("db.stmtHits", Sum.class);
+                activeStat.add((long) active);
+            }
+        }
+
+        private boolean isFull() {
+            return quota > 0 && active >= quota;
+        }
+    }
+
+    /**
+     * Physical connection with its statement cache.
+     */
+    private class PooledConnection {
+
+        private final Connection conn;
+        private final int isolation;
+        private int currentIsolation;
+        private final Map<String, PreparedStatement> statements;
+        private final List<PreparedStatement> checkedOut;
+        private long lastUsed;
+        // the client that borrowed the connection
+        private Client client;
+
+        public PooledConnection(Connection conn) throws SQLException {
+            this.conn = conn;
+            this.isolation = conn.getTransactionIsolation();
+            this.currentIsolation = isolation;
+            this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            this.checkedOut = new ArrayList<PreparedStatement>();
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Returns a cached statement for the SQL, or prepares a new one.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement st = statements.remove(sql);
+            if (st != null) {
+                count(client.stmtHits, 1);
+            } else {
+                st = conn.prepareStatement(sql);
+            }
+            checkedOut.add(st);
+            return st;
+        }
+
+        /**
+         * Returns the statement to the cache.
+         */
+        public void release(String sql, PreparedStatement st) {
+            checkedOut.remove(st);
+            try {
+                st.clearParameters();
+                PreparedStatement prev = statements.put(sql, st);
+                if (prev != null && prev != st) {
+                    closeQuietly(prev);
+                }
+            } catch (SQLException ex) {
+                closeQuietly(st);
+            }
+        }
+
+        /**
+         * Closes statements left open and restores the initial state of the connection.
+         * @throws SQLException If the connection can't be reset and should be discarded
+         */
+        public void reset() throws SQLException {
+            for (PreparedStatement st : checkedOut) {
+                closeQuietly(st);
+            }
+            checkedOut.clear();
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+            }
+            conn.setAutoCommit(db.isAutoCommit());
+            setIsolation(isolation);
+            conn.clearWarnings();
+            lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Sets the transaction isolation, unless the connection already has it.
+         */
+        public void setIsolation(int level) throws SQLException {
+            if (level != currentIsolation) {
+                conn.setTransactionIsolation(level);
+                currentIsolation = level;
+            }
+        }
+
+        /**
+         * Closes the statements and the physical connection.
+         */
+        public void close() {
+            for (PreparedStatement st : checkedOut) {
+                closeQuietly(st);
+            }
+            for (PreparedStatement st : statements.values()) {
+                closeQuietly(st);
+            }
+            checkedOut.clear();
+            statements.clear();
+            try {
+                conn.close();
+            } catch (SQLException ex) {
+                Logger.getLogger(ConnectionPool.class.getName()).log(Level.FINE, "Failed to close DB connection: {0}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Handler of the connection proxy handed out to callers.
+     */
+    private class ConnectionHandler implements InvocationHandler {
+
+        private final PooledConnection pooled;
+        private boolean closed = false;
+
+        public ConnectionHandler(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!closed) {
+                    closed = true;
+                    release(pooled);
+                }
+                return null;
+            } else if ("isClosed".equals(name) && method.getParameterTypes().length == 0) {
+                return closed;
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return "Pooled " + pooled.conn.toString();
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if ("setTransactionIsolation".equals(name)) {
+                pooled.setIsolation((Integer) args[0]);
+                return null;
+            } else if ("getTransactionIsolation".equals(name)) {
+                return pooled.currentIsolation;
+            } else if ("prepareStatement".equals(name) && args.length == 1) {
+                String sql = (String) args[0];
+                return Proxy.newProxyInstance(
+                        PreparedStatement.class.getClassLoader(),
+                        new Class<?>[]{PreparedStatement.class},
+                        new StatementHandler(pooled, sql, pooled.prepare(sql), (Connection) proxy));
+            }
+            return invokeOn(pooled.conn, method, args);
+        }
+    }
+
+    /**
+     * Handler of the statement proxy, returns the statement to the cache on close.
+     */
+    private class StatementHandler implements InvocationHandler {
+
+        private final PooledConnection pooled;
+        private final String sql;
+        private final PreparedStatement st;
+        private final Connection conn;
+        private boolean closed = false;
+
+        public StatementHandler(PooledConnection pooled, String sql, PreparedStatement st, Connection conn) {
+            this.pooled = pooled;
+            this.sql = sql;
+            this.st = st;
+            this.conn = conn;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!closed) {
+                    closed = true;
+                    pooled.release(sql, st);
+                }
+                return null;
+            } else if ("isClosed".equals(name) && method.getParameterTypes().length == 0) {
+                return closed;
+            } else if ("getConnection".equals(name)) {
+                return conn;
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name)) {
+                return st.toString();
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            return invokeOn(st, method, args);
+        }
+    }
+
+    /**
+     * Creates an empty pool.
+     * @param db The DB layer to open connections of
+     * @param maxSize Maximum number of open connections
+     * @param timeout Maximum time to wait for a connection, in seconds
+     * @param statementCacheSize Maximum number of cached statements per connection
+     */
+    public ConnectionPool(RDBLayer db, int maxSize, int timeout, int statementCacheSize) {
+        this.db = db;
+        this.maxSize = Math.max(1, maxSize);
+        this.timeout = 1000L * Math.max(0, timeout);
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.idle = new LinkedList<PooledConnection>();
+    }
+
+    /**
+     * Returns a new client of the pool.
+     * @param quota Maximum number of connections the client can have in use, 0 for no limit
+     */
+    public Client newClient(int quota) {
+        return new Client(quota);
+    }
+
+    /**
+     * Returns a connection from the pool, or a new one if there is no idle
+     * connection and the pool is not full. Waits while the client has
+     * its quota of connections in use.
+     * The caller must close the returned connection, which returns it to the pool.
+     * @param client The client borrowing the connection
+     * @throws SQLException If no connection is returned to the full pool (or by the client
+     * over its quota) in time, or if a new connection can't be opened
+     */
+    public Connection borrow(Client client) throws SQLException {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + timeout;
+        PooledConnection pooled = null;
+        boolean wait = false;
+        synchronized (this) {
+            while (client.isFull() || (open >= maxSize && idle.isEmpty())) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    count(client.timeouts, 1);
+                    throw new SQLException("Timed out waiting for a connection to " + db.getURL() + ", all "
+                            + (client.isFull() ? client.quota + " connections of the quota" : maxSize + " connections") + " are in use");
+                }
+                wait = true;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection to " + db.getURL());
+                }
+            }
+            if (!idle.isEmpty()) {
+                pooled = idle.removeLast();
+            } else {
+                open++;
+            }
+            active++;
+            client.active++;
+            long waitTime = System.currentTimeMillis() - start;
+            count(client.borrowed, 1);
+            count(client.activeStat, 1);
+            if (wait) {
+                count(client.waited, 1);
+            }
+            if (client.avgWait != null) {
+                client.avgWait.add((double) waitTime);
+                client.avgUtilisation.add((double) active / maxSize);
+            }
+        }
+        try {
+            if (pooled != null && System.currentTimeMillis() - pooled.lastUsed > VALIDATION_INTERVAL && !isValid(pooled)) {
+                Logger.getLogger(ConnectionPool.class.getName()).log(Level.INFO, "Replacing invalid connection to {0}", db.getURL());
+                pooled.close();
+                pooled = null;
+            }
+            if (pooled == null) {
+                pooled = new PooledConnection(db.openConnection());
+            }
+        } catch (SQLException ex) {
+            discarded(client);
+            throw ex;
+        } catch (RuntimeException ex) {
+            discarded(client);
+            throw ex;
+        }
+        pooled.client = client;
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new ConnectionHandler(pooled));
+    }
+
+    /**
+     * Closes all idle connections. Connections in use are pooled again when returned.
+     */
+    public void closeIdle() {
+        List<PooledConnection> toClose;
+        synchronized (this) {
+            toClose = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            open -= toClose.size();
+            notifyAll();
+        }
+        for (PooledConnection pooled : toClose) {
+            pooled.close();
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, discards it if it can't be reset.
+     */
+    private void release(PooledConnection pooled) {
+        try {
+            pooled.reset();
+        } catch (SQLException ex) {
+            Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING, "Discarding DB connection: {0}", ex.getMessage());
+            pooled.close();
+            discarded(pooled.client);
+            return;
+        }
+        synchronized (this) {
+            active--;
+            pooled.client.active--;
+            count(pooled.client.activeStat, -1);
+            idle.addLast(pooled);
+            // the waiting clients wait for different conditions
+            notifyAll();
+        }
+    }
+
+    /**
+     * Frees the place of a borrowed connection that has been closed or not opened.
+     */
+    private synchronized void discarded(Client client) {
+        active--;
+        open--;
+        client.active--;
+        count(client.activeStat, -1);
+        notifyAll();
+    }
+
+    private static boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.conn.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement st) {
+        try {
+            st.close();
+        } catch (SQLException ex) {
+            Logger.getLogger(ConnectionPool.class.getName()).log(Level.FINE, "Failed to close statement: {0}", ex.getMessage());
+        }
+    }
+
+    private static void count(StatFunction<Long> stat, long value) {
+        if (stat != null) {
+            stat.add(value);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package xsmeral.semnet.crawler;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import xsmeral.semnet.crawler.model.URLEntry;
+import xsmeral.semnet.crawler.util.BloomFilter;
+
+/**
+ * Persistent store of the crawl frontier (URL entries and their locks) for {@link HTMLCrawler}.
+ * <br />
+ * Entries are retrieved by queries built by a {@link QueryBuilder}, retrieved
+ * entries are locked, so that no other thread gets the same URLs at the same time.
+ * Every retrieved entry should be returned (updated and unlocked) by
+ * {@link #returnEntry(xsmeral.semnet.crawler.model.URLEntry) returnEntry}.
+ * <br />
+ * Implementations are {@link URLManager} (relational DB, one instance per thread)
+ * and {@link LogFrontierStore} (embedded, one instance shared by all threads).
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public interface FrontierStore {
+
+    //<editor-fold desc="Query Builder">
+    // Polymorphic Builder
+    /**
+     * Builder of queries.
+     */
+    public interface QueryBuilder extends WhereClause {
+
+        /**
+         * Appends condition for locked URLs.
+         */
+        public QueryBuilder locked();
+    }
+
+    /**
+     * The {@code WHERE} clause of SQL statement.
+     */
+    public interface WhereClause extends OrderClause {
+
+        /**
+         * Appends condition for URLs not locked.
+         */
+        public WhereClause notLocked();
+
+        /**
+         * Appends condition for URLs that need updating (where
+         * <tt>[current_time]-update_freq &gt; last_visited</tt>).
+         */
+        public WhereClause current();
+
+        /**
+         * Appends condition for the given host.
+         * @param hostId If null, a wildcard (?) is used
+         */
+        public WhereClause forHost(Integer hostId);
+
+        /**
+         * Appends condition for given pattern.
+         * @param pattern If null, a wildcard (?) is used
+         */
+        public WhereClause forPattern(String pattern);
+
+        /**
+         * Appends condition for URLs that represent entities/sources.
+         * @param entity If null, a wildcard (?) is used
+         */
+        public WhereClause entity(Boolean entity);
+
+        /**
+         * Appends condition for URLs that are (not) working.
+         * @param working If null, a wildcard (?) is used
+         */
+        public WhereClause working(Boolean working);
+    }
+
+    /**
+     * The {@code ORDER BY} clause of SQL statement.
+     */
+    public interface OrderClause extends LimitClause {
+
+        /**
+         * Appends {@code ORDER BY [order]}.
+         * @param order The full SQL-equivalent argument to {@code ORDER BY} clause.
+         * If null, a wildcard (?) is used.
+         */
+        public LimitClause orderBy(String order);
+
+        /**
+         * Orders by {@code entity} field, so that source URLs are returned first.
+         */
+        public LimitClause sourceFirst();
+
+        /**
+         * Orders by priority, so that URLs with the lowest
+         * {@linkplain URLEntry#getPriority() rank} are returned first.
+         */
+        public LimitClause byPriority();
+    }
+
+    /**
+     * The {@code LIMIT} clause of SQL statement.
+     */
+    public interface LimitClause extends Query {
+
+        /**
+         * Appends {@code LIMIT} with the given argument.
+         * @param count If null, a wildcard (?) is used.
+         */
+        public Query limit(Integer count);
+    }
+
+    /**
+     * Complete query.
+     */
+    public interface Query {
+
+        /**
+         * Constructs the query. Must be called before the query is used.
+         */
+        public Query getQuery() throws ConfigurationException;
+    }
+    //</editor-fold>
+
+    /**
+     * Returns a Query for host with given ID.
+     */
+    public WhereClause getQueryForHost(int hostId);
+
+    /**
+     * Retrieves URLs based on the given query and locks them.
+     * @param q The Query to use
+     * @param ownerId An identification of the entity that is retrieving and locking this URL
+     * @param params Values of wildcards in the query (e.g. of {@code limit(null)}), if any
+     * @return The entries, or an empty collection in case of error
+     */
+    public Collection<URLEntry> fetchEntries(Query q, int ownerId, Object... params);
+
+    /**
+     * Updates and unlocks the given entry.
+     * The update may be buffered until the store is {@linkplain #flush() flushed}.
+     */
+    public void returnEntry(URLEntry entry);
+
+    /**
+     * Adds given entry.
+     * @return True, if the entry was added (did not exist).
+     */
+    public boolean addEntry(URLEntry entry);
+
+    /**
+     * Adds given entries. Entries with already present paths are not added,
+     * their in-link counts are raised (see {@link #addInlinks(java.util.Map) addInlinks}).
+     * @return Number of added entries.
+     */
+    public int addEntries(Collection<URLEntry> entries);
+
+    /**
+     * Adds found links to the in-link counts of existing URLs and raises their
+     * priority accordingly. The counts may be buffered until the store is
+     * {@linkplain #flush() flushed}.
+     * @param paths Paths of the URLs, with the number of links found to each
+     */
+    public void addInlinks(Map<String, Integer> paths);
+
+    /**
+     * Updates the given entry.
+     */
+    public void updateEntry(URLEntry entry);
+
+    /**
+     * Unlocks the URL specified by given entry.
+     * @return True, if the URL was successfully unlocked
+     */
+    public boolean unlockUrl(URLEntry entry);
+
+    /**
+     * Unlocks the URLs specified by given entries.
+     * @return True, if the URLs were successfully unlocked
+     */
+    public boolean unlockUrls(Collection<URLEntry> entries);
+
+    /**
+     * Unlocks all locked URLs.
+     * @return True, if all URLs have been successfully unlocked
+     */
+    public boolean unlockAll();
+
+    /**
+     * Returns list of locked entries, or null in case of error.
+     */
+    public Collection<URLEntry> listLocked();
+
+    /**
+     * Returns the time when the first working URL needs updating,
+     * or null if there are no working URLs or in case of error.
+     */
+    public Date getNextDueTime();
+
+    /**
+     * Returns the number of URLs, or -1 in case of error.
+     */
+    public long countEntries();
+
+    /**
+     * Returns the number of revisits per day needed by working URLs
+     * (the sum of <tt>DAY_SEC / update_freq</tt>), or -1 in case of error.
+     */
+    public double getRevisitRate();
+
+    /**
+     * Adds paths of all URLs to the filter.
+     * @return True, if all paths have been added
+     */
+    public boolean addPathsTo(BloomFilter filter);
+
+    /**
+     * Writes the returned entries and in-link counts that are buffered, if any.
+     */
+    public void flush();
+
+    /**
+     * Releases the resources held by this instance, after flushing it.
+     */
+    public void close();
+}
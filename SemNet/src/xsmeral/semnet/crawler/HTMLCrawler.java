@@ -1,11 +1,13 @@
 package xsmeral.semnet.crawler;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
@@ -13,32 +15,51 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.sql.SQLException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
-import org.htmlcleaner.CleanerProperties;
-import org.htmlcleaner.HtmlCleaner;
-import org.htmlcleaner.TagNode;
-import org.htmlcleaner.XPatherException;
 import xsmeral.semnet.crawler.model.CrawlerConfiguration;
 import xsmeral.semnet.crawler.model.EntityDescriptor;
 import xsmeral.semnet.crawler.model.EntityDocument;
 import xsmeral.semnet.crawler.model.HostDescriptor;
 import xsmeral.semnet.crawler.model.URLEntry;
+import xsmeral.semnet.crawler.util.BloomFilter;
 import xsmeral.semnet.crawler.util.CharsetDetector;
 import xsmeral.semnet.crawler.util.ConnectionManager;
+import xsmeral.semnet.crawler.util.ContentFingerprint;
+import xsmeral.semnet.crawler.util.HttpFetcher;
+import xsmeral.semnet.crawler.util.LinkExtractor;
+import xsmeral.semnet.crawler.util.PriorityScore;
+import xsmeral.semnet.crawler.util.RevisitPolicy;
 import xsmeral.semnet.crawler.util.RobotsPolicy;
+import xsmeral.semnet.crawler.util.SourceThrottle;
+import xsmeral.semnet.manager.SharedResources;
 import xsmeral.semnet.util.URLUtil;
 import xsmeral.semnet.util.Util;
 import xsmeral.semnet.scraper.AbstractScraper;
-import xsmeral.semnet.util.XPathUtil;
 import xsmeral.pipe.stats.Sum;
 import xsmeral.pipe.stats.Stats;
 import xsmeral.pipe.stats.StatFunction;
@@ -49,7 +70,9 @@ import xsmeral.pipe.context.ToContext;
 import xsmeral.pipe.interfaces.ObjectProcessorInterface;
 import xsmeral.pipe.interfaces.Param;
 import xsmeral.pipe.stats.Average;
-import static xsmeral.semnet.crawler.URLManager.Query;
+import xsmeral.pipe.tune.Tunable;
+import xsmeral.pipe.tune.Tunables;
+import static xsmeral.semnet.crawler.FrontierStore.Query;
 
 /*
  * TODO: Split the whole thing into modules
@@ -61,7 +84,9 @@ import static xsmeral.semnet.crawler.URLManager.Query;
  * contained in {@link EntityDocument}s.
  * Scrapers work in co-operation with the crawler, using the same configuration.
  * A persistent state is maintained using {@link URLManager} and {@link HostManager},
- * enabling the crawler to be stopped and restarted at any time.<br />
+ * enabling the crawler to be stopped and restarted at any time.
+ * If {@code frontier} is set, URLs are kept in an embedded {@link LogFrontierStore}
+ * in the given directory instead of the DB (hosts are still kept in the DB).<br />
  *
  * <h4>Configuration</h4>
  * The crawler is configured with a {@link CrawlerConfiguration} which contains
@@ -88,25 +113,129 @@ import static xsmeral.semnet.crawler.URLManager.Query;
  * is renamed.
  * 
  * <h4>Crawling</h4>
- * One instance of the crawler crawls multiple hosts at the same time with one
- * or more threads per host. An implementation of the Robots Exclusion standard 
+ * One instance of the crawler crawls multiple hosts at the same time.
+ * The hosts are initialized (robots policies loaded, URL stores opened) by
+ * {@code initWorkers} threads and crawling starts with the hosts that are ready,
+ * the others join the run as soon as they are initialized. A host not initialized
+ * within {@code hostInitTimeout} seconds doesn't hold up the end of the run,
+ * its initialization is cancelled and (in daemon mode) started again in the next run.
+ * The hosts are scheduled by the time of their next allowed request and
+ * crawled by a fixed pool of {@code crawlWorkers} threads, so that many hosts
+ * can be crawled politely with few threads (see {@link #crawlScheduled() crawlScheduled}).
+ * Up to {@code threadsPerHost} URLs of one host are visited at the same time.
+ * If {@code crawlWorkers} is 0, each host is crawled by its own {@code threadsPerHost}
+ * threads, which sleep between requests. An implementation of the Robots Exclusion standard 
  * is provided in class {@link RobotsPolicy} which allows the crawler to obey the
  * crawling rules defined by the target host ((dis)allowed URL patterns and
- * crawling delay). Adherence to the rules is optional.<br />
- * Retrieved web pages are decoded using the character encoding determined/guessed
- * by the class {@link CharsetDetector} and parsed using a third-party library
- * <a href="http://htmlcleaner.sourceforge.net/">HtmlCleaner</a>. The library is
+ * crawling delay). Adherence to the rules is optional. The policies are reloaded
+ * in the background after {@code robotsTTL} seconds and cached in the
+ * {@code robotsCache} directory, if set, so they are not requested again on restart.<br />
+ * Retrieved web pages are decoded using the character encoding configured for
+ * the host, or declared by each response (the {@code Content-Type} header, byte order
+ * mark or META tag), or guessed by the class {@link CharsetDetector} once for each
+ * URL pattern. Links are extracted directly from the content by a {@link LinkExtractor},
+ * without parsing. Entity documents are written
+ * with the raw content and parsed using a third-party library
+ * <a href="http://htmlcleaner.sourceforge.net/">HtmlCleaner</a> by a pool of
+ * {@code parseWorkers} threads ahead of the scrapers, or by the scrapers themselves
+ * (see {@link EntityDocument}), so the crawling threads don't parse. The library is
  * used as a compensatory measure for the multitude of web pages that are non-valid.
  * Another compensatory measure is the use of URL normalization to ensure
  * consistent representation of URLs, provided by 
  * {@link URLUtil#normalize(java.net.URL) URLUtil.normalize(URL)}.<br />
  * Consistent HTTP connection settings are provided by auxiliary class
- * {@link ConnectionManager}.
+ * {@link ConnectionManager}, an instance of which is held by each crawler.
+ * Compressed responses are requested and connections are kept alive, unless
+ * disabled by the {@code compression} and {@code keepAlive} parameters.
+ * Revisits are conditional - the validators ({@code ETag}, {@code Last-Modified})
+ * of the last response are stored with the URL and sent with the next request.
+ * If the server responds that the page has not been modified, it is not parsed
+ * nor scraped, only the URL entry is updated.
+ * Likewise, a {@linkplain ContentFingerprint digest} of the content is stored with
+ * the URL and a page with the same digest as on the last visit is not parsed nor scraped.
+ * If {@code simHash} is set, near-duplicates of the last scraped version of a page
+ * (differing in at most {@code simHashDistance} bits of SimHash fingerprint,
+ * e.g. only in timestamps or a few words of boilerplate) are skipped as well.
+ * Links found on a page are added to DB only if their paths are not in an in-memory
+ * {@linkplain BloomFilter filter} of known paths, loaded from DB at start, unless
+ * {@code seenFilter} is false. Links to known paths only raise the in-link counts of their URLs.
+ * <br />
+ * URLs of each host are visited in the order of their {@linkplain PriorityScore priority},
+ * which grows with staleness, entity weight, in-link count and yield of new entities and
+ * falls with errors. The priority is recomputed on each visit and stored (and indexed) with the URL.
+ * <br />
+ * Unless {@code adaptiveRevisits} is false, the update frequency of each URL is adapted
+ * to the rate at which its content changes, estimated from the revisits which found it
+ * changed (see {@link RevisitPolicy}), between {@code minUpdateFreq} and {@code maxUpdateFreq}.
+ * The update frequency configured for the URL pattern is only the initial estimate.
+ * If {@code revisitBudget} is set, the update frequencies are stretched, so that
+ * all URLs need at most that many revisits per day.
+ * The yield of URLs is the number of new entity links they add. Source URLs (and
+ * patterns) with yield below {@code minSourceYield} are revisited up to
+ * {@code maxSourceBackoff} times less often (see {@link SourceThrottle}).
+ *
+ * <h4>Daemon mode</h4>
+ * Normally, the crawler stops when there are no more URLs to visit.
+ * In daemon mode, it waits until the first URL needs updating (according to
+ * its {@code update_freq}), but at least {@code minIdle} and at most
+ * {@code maxIdle} seconds, and then runs
+ * again. Host mappings, robots policies, detected charsets, URL stores and
+ * the rest of the pipe (e.g. repository connections of sinks) are kept across runs.
+ * The bootstrap file is looked for before each run.
+ *
+ * <h4>Tuning</h4>
+ * The following parameters are published as {@linkplain Tunables tunables}
+ * and can be changed while running:
+ * <ul>
+ *  <li>{@code fetchSize} - number of URLs fetched from DB at once, per host</li>
+ *  <li>{@code fetchThreshold} - number of buffered URLs below which next fetch starts</li>
+ *  <li>{@code workWaitInterval} - interval (ms) of checking for work by idle threads</li>
+ *  <li>{@code connectionRetries} - number of retries of failed HTTP requests</li>
+ *  <li>{@code globalCrawlDelayMinimum} - minimum delay (ms) between requests to one host</li>
+ *  <li>{@code threadsPerHost} - number of URLs of one host visited at the same time
+ *      (number of crawling threads per host, if {@code crawlWorkers} is 0)</li>
+ * </ul>
+ * The crawling threads can be paused.
+ *
+ * <h4>Asynchronous fetching</h4>
+ * If {@code asyncFetch} is set, the pages are not fetched by blocking host
+ * crawling threads. Instead, URLs of all hosts are submitted to a {@link HttpFetcher},
+ * which keeps many requests in flight using a single thread and obeys the crawl
+ * delay of each host. Links of the completed responses are scraped by a pool of
+ * {@code responseWorkers} threads (separate from the {@code parseWorkers} parsing
+ * entity documents, which the scrapers feed). In this mode, {@code threadsPerHost} is the
+ * number of URLs of one host submitted to the fetcher at a time.
  *
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  *
  * @init conf Crawler configuration file name
  * @init bootstrap (Optional) Name of file containg list of URLs (one per line) to load to database prior to running
+ * @init frontier (Optional) Name of directory of embedded store of URLs, the DB is used if not set
+ * @init crawlWorkers (Optional) Number of threads crawling all hosts, 0 for own threads of each host. Default is {@value #DEF_CRAWL_WORKERS}.
+ * @init daemon (Optional) If true, the crawler runs repeatedly, see "Daemon mode". Default is false.
+ * @init minIdle (Optional) Minimum time (in seconds) to wait between runs in daemon mode. Default is {@value #DEF_MIN_IDLE}.
+ * @init maxIdle (Optional) Maximum time (in seconds) to wait between runs in daemon mode. Default is {@value #DEF_MAX_IDLE}.
+ * @init asyncFetch (Optional) If true, pages are fetched asynchronously, see "Asynchronous fetching". Default is false.
+ * @init parseWorkers (Optional) Number of threads parsing entity documents. Default is the number of processors.
+ * @init responseWorkers (Optional) Number of threads processing fetched pages in asynchronous mode. Default is the number of processors.
+ * @init compression (Optional) If true, compressed responses are requested. Default is true.
+ * @init keepAlive (Optional) If true, connections are kept open for further requests. Default is true.
+ * @init conditionalRevisits (Optional) If false, revisited pages are always downloaded, parsed and scraped. Default is true.
+ * @init simHash (Optional) If true, near-duplicate revisited pages are not scraped, see "Crawling". Default is false.
+ * @init simHashDistance (Optional) Maximum SimHash distance of near-duplicate pages. Default is {@value #DEF_SIMHASH_DISTANCE}.
+ * @init seenFilter (Optional) If true, known links are filtered out in memory, see "Crawling". Default is true.
+ * @init returnBatchSize (Optional) Number of visited URLs written to DB at once. Default is {@value #DEF_RETURN_BATCH_SIZE}.
+ * @init returnFlushInterval (Optional) Maximum time (in milliseconds) a visited URL waits to be written to DB. Default is 2000.
+ * @init adaptiveRevisits (Optional) If true, update frequencies of URLs are adapted to their change rates, see "Crawling". Default is true.
+ * @init minUpdateFreq (Optional) Minimum adapted update frequency, in seconds. Default is {@value #DEF_MIN_UPDATE_FREQ}.
+ * @init maxUpdateFreq (Optional) Maximum adapted update frequency, in seconds. Default is {@value #DEF_MAX_UPDATE_FREQ}.
+ * @init revisitBudget (Optional) Maximum number of revisits per day needed by all URLs, 0 for unlimited. Default is 0.
+ * @init minSourceYield (Optional) Number of new entities per visit below which source URLs are throttled. Default is {@value #DEF_MIN_SOURCE_YIELD}.
+ * @init maxSourceBackoff (Optional) Maximum factor of update frequency of throttled source URLs, 1 for no throttling. Default is {@value #DEF_MAX_SOURCE_BACKOFF}.
+ * @init robotsCache (Optional) Name of the directory of cached robots policies. Not cached by default.
+ * @init robotsTTL (Optional) Time (in seconds) after which robots policies are reloaded, 0 for never. Default is one day.
+ * @init initWorkers (Optional) Number of threads initializing hosts at start, see "Crawling". Default is {@value #DEF_INIT_WORKERS}.
+ * @init hostInitTimeout (Optional) Time (in seconds) after which a host still being initialized is skipped in the run, 0 for no limit. Default is {@value #DEF_HOST_INIT_TIMEOUT}.
  * @toContext hostManager A HostManager instance initialized with hosts from
  *      crawler configuration.
  */
@@ -117,11 +246,33 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
     public static final String DEF_BOOTSTRAP_FILE = "bootstrap.list";
     public static final String BOOTSTRAP_OLD_SUFFIX = ".old";
     public static final int CONNECTION_RETRIES = 2;
+    public static final int DEF_MIN_IDLE = 60;
+    public static final int DEF_MAX_IDLE = 3600;
+    public static final int DEF_SIMHASH_DISTANCE = 3;
+    public static final int DEF_CRAWL_WORKERS = 32;
+    public static final int DEF_INIT_WORKERS = 8;
+    public static final int DEF_HOST_INIT_TIMEOUT = 60;
+    public static final int DEF_RETURN_BATCH_SIZE = 50;
+    public static final int DEF_MIN_UPDATE_FREQ = URLEntry.UPDATE_DAY;
+    public static final int DEF_MAX_UPDATE_FREQ = 2 * URLEntry.UPDATE_YEAR;
+    public static final double DEF_MIN_SOURCE_YIELD = 1.0;
+    public static final double DEF_MAX_SOURCE_BACKOFF = 8.0;
+    private static final double SEEN_FILTER_FPP = 0.0001;
+    private static final int SEEN_FILTER_HEADROOM = 4;
+    private static final int SEEN_FILTER_MIN_SIZE = 1000000;
+    private static final int DEF_FETCH_SIZE = 50;
+    private static final int DEF_FETCH_THRESHOLD = 20;
+    private static final int DEF_WORK_WAIT_INTERVAL = 500;
+    private static final int MAX_THREADS_PER_HOST = 100;
+    private static final int PARSE_QUEUE_PER_WORKER = 16;
+    // seconds an idle init thread waits for another host
+    private static final int INIT_KEEP_ALIVE = 10;
     private static final String CRAWLER_NAME_FORMAT = "%s_%s:%d";
     private static final String CRAWLER_NAME = "crawler";
     private static final int OWNER_ID = 0;// not yet implemented
     // modifiable vars
-    private Integer globalCrawlDelayMinimum = CrawlerConfiguration.DEF_GLOBAL_CRAWL_DELAY_MIN;
+    private volatile int globalCrawlDelayMinimum = CrawlerConfiguration.DEF_GLOBAL_CRAWL_DELAY_MIN;
+    private int threadsPerHost = 1;
     private boolean policyIgnored = CrawlerConfiguration.DEF_POLICY_IGNORED;
     private boolean fakeReferrer = CrawlerConfiguration.DEF_FAKE_REFERRER;
     // params
@@ -129,27 +280,121 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
     private String confFileName;
     @Param("bootstrap")
     private String bootstrapFileName = DEF_BOOTSTRAP_FILE;
+    @Param("frontier")
+    private String frontierDirName;
+    @Param
+    private int crawlWorkers = DEF_CRAWL_WORKERS;
+    @Param
+    private boolean daemon = false;
+    @Param
+    private int minIdle = DEF_MIN_IDLE;
+    @Param
+    private int maxIdle = DEF_MAX_IDLE;
+    @Param
+    private boolean asyncFetch = false;
+    @Param
+    private int parseWorkers = Runtime.getRuntime().availableProcessors();
+    @Param
+    private int responseWorkers = Runtime.getRuntime().availableProcessors();
+    @Param
+    private boolean compression = true;
+    @Param
+    private boolean keepAlive = true;
+    @Param
+    private boolean conditionalRevisits = true;
+    @Param
+    private boolean simHash = false;
+    @Param
+    private int simHashDistance = DEF_SIMHASH_DISTANCE;
+    @Param
+    private boolean seenFilter = true;
+    @Param
+    private int returnBatchSize = DEF_RETURN_BATCH_SIZE;
+    @Param
+    private long returnFlushInterval = URLManager.DEF_FLUSH_INTERVAL;
+    @Param
+    private boolean adaptiveRevisits = true;
+    @Param
+    private int minUpdateFreq = DEF_MIN_UPDATE_FREQ;
+    @Param
+    private int maxUpdateFreq = DEF_MAX_UPDATE_FREQ;
+    @Param
+    private int revisitBudget = 0;
+    @Param
+    private double minSourceYield = DEF_MIN_SOURCE_YIELD;
+    @Param
+    private double maxSourceBackoff = DEF_MAX_SOURCE_BACKOFF;
+    @Param("robotsCache")
+    private String robotsCacheDirName;
+    @Param
+    private int robotsTTL = RobotsPolicy.DEF_TTL;
+    @Param
+    private int initWorkers = DEF_INIT_WORKERS;
+    @Param
+    private int hostInitTimeout = DEF_HOST_INIT_TIMEOUT;
     // state
     private CrawlerConfiguration conf;
     private RDBLayer db;
-    private URLManager urlMgr;
+    private FrontierStore urlMgr;
+    private File frontierDir;
+    private LogFrontierStore logStore;
     @ToContext
     private HostManager hostManager;
     private Collection<Integer> hostIds;
     private Map<HostCrawler, Thread> threadMap;
+    // hosts being initialized (deadlines and tasks by host ID), initialized, not yet crawled
+    // and skipped after the timeout
+    private final Object hostsLock = new Object();
+    private final Map<Integer, Long> pendingHosts = new HashMap<Integer, Long>();
+    private final Map<Integer, Future<?>> initTasks = new HashMap<Integer, Future<?>>();
+    private final List<HostCrawler> readyHosts = new ArrayList<HostCrawler>();
+    private final List<Integer> skippedHosts = new ArrayList<Integer>();
+    private ThreadPoolExecutor initPool;
+    private final ConnectionManager connMgr = new ConnectionManager();
+    private HttpFetcher fetcher;
+    private ThreadPoolExecutor parsePool;
+    private File robotsCacheDir;
+    private ThreadPoolExecutor robotsRefresher;
+    private final Object asyncLock = new Object();
+    private volatile boolean asyncDone;
+    private final DelayQueue<HostCrawler> schedule = new DelayQueue<HostCrawler>();
+    private final Object scheduleLock = new Object();
+    private int activeHosts;
+    private boolean scheduleStopped;
+    private volatile BloomFilter seenPaths;
+    private RevisitPolicy revisitPolicy;
+    private SourceThrottle sourceThrottle;
+    private Executor fetchExecutor = new Executor() {
+
+        @Override
+        public void execute(Runnable task) {
+            new Thread(task).start();
+        }
+    };
     // stats
     private StatFunction<Long> connError;
     private StatFunction<Long> validLinksFound;
     private StatFunction<Long> newLinksFound;
+    private StatFunction<Long> newEntitiesFound;
     private StatFunction<Long> crawled;
     private StatFunction<Double> avgFetch;
     private StatFunction<Double> avgHTMLParse;
     private StatFunction<Double> avgScrape;
+    private StatFunction<Long> runs;
+    private StatFunction<Long> notModified;
+    private StatFunction<Long> unchanged;
+    private StatFunction<Long> seenLinks;
+    private final Object idleLock = new Object();
+    // tunables
+    private final Tunable fetchSize = new Tunable("fetchSize", DEF_FETCH_SIZE, 1, 10000);
+    private final Tunable fetchThreshold = new Tunable("fetchThreshold", DEF_FETCH_THRESHOLD, 0, 10000);
+    private final Tunable workWaitInterval = new Tunable("workWaitInterval", DEF_WORK_WAIT_INTERVAL, 10, 60000);
+    private final Tunable connectionRetries = new Tunable("connectionRetries", CONNECTION_RETRIES, 0, 100);
 
     /**
-     * Prefetches and buffers URLs.
-     * Respects {@code sourceFirst} attribute of {@link HostDescriptor}
-     * and weights defined in {@link EntityDescriptor}.
+     * Prefetches and buffers URLs, in the order of their priority.
+     * Respects {@code sourceFirst} attribute of {@link HostDescriptor},
+     * weights defined in {@link EntityDescriptor} are part of the priority.
      */
     private class URLBuffer {
 
@@ -158,17 +403,18 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
          */
         private class FetchTask implements Runnable {
 
-            private Collection<Query> queries;
+            private Query query;
 
-            public FetchTask(Collection<Query> queries) {
-                this.queries = queries;
+            /**
+             * @param query Query for entities, with the limit left as parameter
+             */
+            public FetchTask(Query query) {
+                this.query = query;
             }
 
             private void fetchEntries() {
                 long fetchStart = System.currentTimeMillis();
-                for (Query q : queries) {
-                    entries.addAll(urlMgr.fetchEntries(q, ownerId));
-                }
+                entries.addAll(urlMgr.fetchEntries(query, ownerId, fetchSize.get()));
                 avgFetch.add((double) (System.currentTimeMillis() - fetchStart));
             }
 
@@ -176,25 +422,25 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             public void run() {
                 synchronized (fetchLock) {
                     fetching = true;
-                    if (sourceFirst && !gotSource) {
-                        Collection<URLEntry> sourceEntries = urlMgr.fetchEntries(sourceQuery, ownerId);
-                        gotSource = sourceEntries.isEmpty();
-                        if (!gotSource) {
-                            entries.addAll(sourceEntries);
+                    try {
+                        if (sourceFirst && !gotSource) {
+                            Collection<URLEntry> sourceEntries = urlMgr.fetchEntries(sourceQuery, ownerId, fetchSize.get());
+                            gotSource = sourceEntries.isEmpty();
+                            if (!gotSource) {
+                                entries.addAll(sourceEntries);
+                            } else {
+                                fetchEntries();
+                            }
                         } else {
                             fetchEntries();
                         }
-                    } else {
-                        fetchEntries();
+                    } finally {
+                        fetching = false;
                     }
-                    fetching = false;
                 }
             }
         }
 
-        // const
-        private static final int FETCH_SIZE = 50;
-        private static final int FETCH_THRESHOLD = 20;
         private int ownerId = OWNER_ID;
         // flags, locks
         private boolean stop = false;
@@ -202,55 +448,58 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
         private final Object fetchLock = new Object();
         private final Object getLock = new Object();
         // state
-        private URLManager urlMgr;
+        private FrontierStore urlMgr;
         private BlockingQueue<URLEntry> entries;
         private FetchTask fetchTask;
-        private Thread fetchThread;
+        private Future<?> fetchFuture;
         private boolean sourceFirst;
         private boolean gotSource = false;
         private Query sourceQuery;
 
-        public URLBuffer(URLManager urlMgr, int hostId) throws ConfigurationException {
-            this(urlMgr, hostId, FETCH_SIZE);
-        }
-
         /**
-         * Creates queries, calculates limits, instantiates the queue.
+         * Creates queries ordered by priority, instantiates the queue.
+         * The limits of queries are set at fetch time, from current {@code fetchSize}.
          */
-        public URLBuffer(URLManager urlMgr, int hostId, int fetchSize) throws ConfigurationException {
-            Collection<Query> queries = new ArrayList<Query>();
-            int total = 0;
+        public URLBuffer(FrontierStore urlMgr, int hostId) throws ConfigurationException {
             HostDescriptor hostDesc = hostManager.getHostDescriptor(hostId);
             sourceFirst = hostDesc.isSourceFirst();
             if (sourceFirst) {
-                sourceQuery = urlMgr.getQueryForHost(hostId).entity(false).working(true).current().notLocked().limit(fetchSize).getQuery();
-            }
-            Collection<EntityDescriptor> entities = hostDesc.getEntityDescriptors();
-            for (EntityDescriptor entity : entities) {
-                total += entity.getWeight();
+                sourceQuery = urlMgr.getQueryForHost(hostId).entity(false).working(true).current().notLocked().byPriority().limit(null).getQuery();
             }
-            for (EntityDescriptor entity : entities) {
-                int limit = (int) ((entity.getWeight() / (float) total) * fetchSize);
-                Query q = urlMgr.getQueryForHost(hostId).working(true).forPattern(entity.getUrlPattern().toString()).notLocked().current().limit(limit).getQuery();
-                queries.add(q);
-            }
-            this.fetchTask = new FetchTask(queries);
-            this.entries = new ArrayBlockingQueue<URLEntry>(fetchSize + FETCH_THRESHOLD);
+            Query query = urlMgr.getQueryForHost(hostId).entity(true).working(true).notLocked().current().byPriority().limit(null).getQuery();
+            this.fetchTask = new FetchTask(query);
+            this.entries = new LinkedBlockingQueue<URLEntry>();
             this.urlMgr = urlMgr;
         }
 
+        /**
+         * Waits for the fetch in progress (if any) to finish.
+         */
+        private void awaitFetch() {
+            if (fetchFuture != null) {
+                try {
+                    fetchFuture.get();
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "URL fetch failed", ex.getCause());
+                }
+            }
+        }
+
         /**
          * Retrieves one entry from the buffer.
-         * Starts fetching thread if buffer length is below threshold.
+         * Starts fetching task if buffer length is below threshold.
          * @return A URL entry or null if no more entries are available.
          */
         public URLEntry getEntry() {
             synchronized (getLock) {
-                if (entries.size() < FETCH_THRESHOLD) {
+                if (entries.size() < fetchThreshold.get()) {
                     if (!fetching && !stop) {
                         fetching = true;
-                        fetchThread = new Thread(fetchTask);
-                        fetchThread.start();
+                        FutureTask<Void> task = new FutureTask<Void>(fetchTask, null);
+                        fetchFuture = task;
+                        fetchExecutor.execute(task);
                     }
                 }
             }
@@ -259,12 +508,8 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
                 if (entries.size() > 0) {
                     return entries.poll();
                 } else {
-                    try {
-                        // either fetching is in progress or no more entries are available
-                        fetchThread.join();
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+                    // either fetching is in progress or no more entries are available
+                    awaitFetch();
                     return entries.poll();
                 }
             }
@@ -272,19 +517,17 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
 
         /**
          * Causes the buffer not to fetch any more URLs.
+         * Unlocks the buffered URLs and closes (and thereby flushes) the store.
          */
         public void stop() {
             if (!stop) {
                 stop = true;
                 synchronized (getLock) {
-                    try {
-                        fetchThread.join();
-                    } catch (InterruptedException ex) {
-                        Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
-                    }
+                    awaitFetch();
                     Collection<URLEntry> entriesToUnlock = new ArrayList<URLEntry>(entries.size());
                     entries.drainTo(entriesToUnlock);
                     urlMgr.unlockUrls(entriesToUnlock);
+                    urlMgr.flush();
                     urlMgr.close();
                 }
             }
@@ -300,25 +543,38 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
 
     /**
      * Crawling thread for one host.
+     * Parent crawlers are scheduled by the time of their next allowed request.
      */
-    private class HostCrawler implements Runnable {
+    private class HostCrawler implements Runnable, Delayed {
 
         //<editor-fold desc="Fields">
         // const
         private static final int CONN_TEST_WAIT = 5000;
-        private static final int WORK_WAIT_INTERVAL = 500;
         private static final String CHARSET_FALLBACK = "UTF-8";
-        private static final String XPATH_LINKS = "//a/@href";
-        private static final String HTML_BASE = "/head/base/@href";
+        private static final String HTTP_ETAG = "ETag";
+        private static final String HTTP_CONTENT_TYPE = "Content-Type";
+        private static final String HTTP_LAST_MODIFIED = "Last-Modified";
+        private static final String HTTP_IF_NONE_MATCH = "If-None-Match";
+        private static final String HTTP_IF_MODIFIED_SINCE = "If-Modified-Since";
         // runtime
         //  parent
         private Map<HostCrawler, Thread> children = null;
-        private long nextGet = System.currentTimeMillis();
-        private long crawlDelay;
+        private volatile long nextGet = System.currentTimeMillis();
+        private long hostCrawlDelay;
+        private int nextChildIndex;
+        private boolean childrenRunning = false;
+        private int inFlight = 0;
+        private boolean queued = false;
+        // charsets guessed for pages without declared charset, by URL pattern
+        private final Map<String, String> guessedCharsets = new ConcurrentHashMap<String, String>();
         //  own
-        private URLManager urlMgr;
+        private FrontierStore urlMgr;
+        private boolean paced = false;
         private boolean working = true;
         private boolean stopCondition = false;
+        private volatile boolean retired = false;
+        // charset of the content last read by this thread
+        private String contentCharset;
         //  common
         private URLBuffer urlBuffer;
         private int hostId;
@@ -327,9 +583,9 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
         private RobotsPolicy policy;
         private HostCrawler authority;
         private final Integer workLock = 0;
+        // configured charset of the host, or null
         private String charset;
         private long ownerId = OWNER_ID;
-        private HtmlCleaner cleaner;
 
         //</editor-fold>
         //<editor-fold defaultstate="collapsed" desc="Simple methods">
@@ -339,10 +595,32 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
          */
         private synchronized long nextGetAt() {
             long result = nextGet;
-            nextGet = Math.max(System.currentTimeMillis(), nextGet + crawlDelay);
+            nextGet = Math.max(System.currentTimeMillis(), nextGet + Math.max(globalCrawlDelayMinimum, hostCrawlDelay));
             return result;
         }
 
+        /**
+         * Records a request to the host starting now, the next one is allowed after the crawl delay.
+         * Used by the scheduler instead of {@link #nextGetAt()}.
+         */
+        private void requestStarted() {
+            nextGet = System.currentTimeMillis() + Math.max(globalCrawlDelayMinimum, hostCrawlDelay);
+        }
+
+        /**
+         * Returns time remaining until the next allowed request to the host.
+         */
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextGet - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+
         /**
          * Returns ID assigned (by the HostManager) to the host crawled by this thread 
          * @return Host ID
@@ -394,17 +672,6 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
         }
         //</editor-fold>
 
-        /**
-         * Common constructor.
-         */
-        private HostCrawler() {
-            CleanerProperties cp = new CleanerProperties();
-            cp.setTransResCharsToNCR(true);
-            cp.setTransSpecialEntitiesToNCR(true);
-            cp.setPruneTags("script,style,embed,object,iframe");
-            cleaner = new HtmlCleaner(cp);
-        }
-
         /**
          * Parent constructor. Forks child threads, if <tt> threads &gt; 1</tt>
          * @param hostId ID of the crawled host
@@ -413,26 +680,21 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
          */
         @SuppressWarnings("LeakingThisInConstructor")
         public HostCrawler(int hostId, int threads) throws MalformedURLException, SQLException, ConfigurationException {
-            this();
-            this.urlMgr = new URLManager(db);
-            this.urlBuffer = new URLBuffer(new URLManager(db), hostId);
+            this.urlMgr = openStore();
+            this.urlBuffer = new URLBuffer(openStore(), hostId);
             this.children = new HashMap<HostCrawler, Thread>();
             this.authority = this;
             this.hostId = hostId;
             this.desc = hostManager.getHostDescriptor(hostId);
             this.baseURL = new URL(desc.getBaseURL());
-            this.policy = new RobotsPolicy(baseURL, ConnectionManager.getUserAgent());
-            this.charset = desc.getCharset() != null ? desc.getCharset() : Util.nonNull(CharsetDetector.detectCharset(baseURL), CHARSET_FALLBACK);
+            this.policy = new RobotsPolicy(baseURL, connMgr, robotsCacheDir, robotsTTL, robotsRefresher);
+            this.charset = desc.getCharset();
             // determine the crawl delay; host-defined crawl delay overrides the robots policy
+            // the global minimum is applied at each request
             Integer descDelay = desc.getCrawlDelay();
-            this.crawlDelay = Math.max(globalCrawlDelayMinimum, Util.nonNull(descDelay, policy.getCrawlDelayMillis()));
-            if (threads > 1) {
-                for (int i = 1; i < threads; i++) {
-                    HostCrawler child = new HostCrawler(this);
-                    Thread t = new Thread(child, String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, desc.getName(), i));
-                    children.put(child, t);
-                }
-            }
+            this.hostCrawlDelay = Util.nonNull(descDelay, policy.getCrawlDelayMillis());
+            this.nextChildIndex = 1;
+            setThreads(threads);
         }
 
         /**
@@ -440,9 +702,70 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
          * @param parent Parent crawler thread
          */
         private HostCrawler(HostCrawler parent) throws SQLException {
-            this();
             this.authority = parent;
-            this.urlMgr = new URLManager(db);
+            this.urlMgr = openStore();
+        }
+
+        /**
+         * Closes the stores of a parent crawler that won't be crawled.
+         */
+        private void close() {
+            urlBuffer.stop();
+            urlMgr.close();
+        }
+
+        /**
+         * Prepares the parent and its children for another run.
+         * Creates new URL buffer (with queries for current time) and new
+         * children threads, keeps the policy, charset and the rest of the state.
+         * The crawl delay is taken from the policy again, in case it has been reloaded.
+         */
+        private void reset() throws SQLException, ConfigurationException {
+            urlBuffer.stop();
+            urlBuffer = new URLBuffer(openStore(), hostId);
+            hostCrawlDelay = Util.nonNull(desc.getCrawlDelay(), policy.getCrawlDelayMillis());
+            working = true;
+            stopCondition = false;
+            synchronized (this) {
+                Iterator<Map.Entry<HostCrawler, Thread>> it = children.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<HostCrawler, Thread> child = it.next();
+                    if (child.getKey().retired) {
+                        it.remove();
+                    } else {
+                        child.getKey().working = true;
+                        child.getKey().stopCondition = false;
+                        child.setValue(new Thread(child.getKey(), child.getValue().getName()));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Changes the number of crawling threads of the host (called on parent).
+         * If the host is being crawled, new threads start immediately and
+         * surplus threads exit after processing their current URL.
+         * @param threads Number of threads, including the parent
+         */
+        private synchronized void setThreads(int threads) throws SQLException {
+            List<HostCrawler> active = new ArrayList<HostCrawler>();
+            for (HostCrawler child : children.keySet()) {
+                if (!child.retired) {
+                    active.add(child);
+                }
+            }
+            int wanted = Math.max(0, threads - 1);
+            for (int i = active.size(); i < wanted; i++) {
+                HostCrawler child = new HostCrawler(this);
+                Thread t = new Thread(child, String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, desc.getName(), nextChildIndex++));
+                children.put(child, t);
+                if (childrenRunning) {
+                    t.start();
+                }
+            }
+            for (int i = active.size() - 1; i >= wanted; i--) {
+                active.get(i).retired = true;
+            }
         }
 
         /**
@@ -451,23 +774,29 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
          */
         private void startChildrenIfParent() {
             if (!isChild()) {
-                Iterator<Thread> it = children.values().iterator();
-                while (it.hasNext()) {
-                    it.next().start();
+                synchronized (this) {
+                    childrenRunning = true;
+                    Iterator<Thread> it = children.values().iterator();
+                    while (it.hasNext()) {
+                        it.next().start();
+                    }
                 }
             }
         }
 
         /**
-         * Creates connection to the URL represented by the supplied URLEntry and parses the HTML content.
+         * Creates connection to the URL represented by the supplied URLEntry and reads the content.
+         * The request is conditional, if the entry has validators of a previous response.
+         * Validators of the response are stored in the entry.
          * @param fetchedEntry The URL to connect to
-         * @return Root node of the HTML document
-         * @throws IOException In case of connection or parsing error
+         * @return The content, or null if it has not been modified since the last visit
+         *      or is the same
+         * @throws IOException In case of connection error
          */
-        private TagNode getRootNode(URLEntry fetchedEntry) throws IOException {
+        private byte[] getContent(URLEntry fetchedEntry) throws IOException {
             URL fetchedURL = new URL(fetchedEntry.getUrl());
-            // obey the crawl delay
-            long delay = authority.nextGetAt() - System.currentTimeMillis();
+            // obey the crawl delay, unless already obeyed by the scheduler
+            long delay = paced ? 0 : authority.nextGetAt() - System.currentTimeMillis();
             if (delay > 0) {
                 try {
                     Thread.sleep(delay);
@@ -475,19 +804,143 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
                     Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-            InputStream is = ConnectionManager.getInputStream(fetchedURL, CONNECTION_RETRIES, fakeReferrer ? authority.desc.getBaseURL() : null);
-            long parseStart = System.currentTimeMillis();
-            TagNode result = cleaner.clean(is, authority.charset);
-            avgHTMLParse.add((double) (System.currentTimeMillis() - parseStart));
-            is.close();
-            return result;
+            HttpURLConnection conn = connMgr.connect(fetchedURL, connectionRetries.get(), getReferrer(), getConditionalHeaders(fetchedEntry));
+            boolean modified = conn.getResponseCode() != HttpURLConnection.HTTP_NOT_MODIFIED;
+            updateValidators(fetchedEntry, modified, conn.getHeaderField(HTTP_ETAG), conn.getHeaderField(HTTP_LAST_MODIFIED));
+            if (!modified) {
+                notModified.add();
+            }
+            return modified ? readIfChanged(fetchedEntry, connMgr.decode(conn.getInputStream(), conn.getContentEncoding()), conn.getHeaderField(HTTP_CONTENT_TYPE)) : null;
+        }
+
+        /**
+         * Reads the content of a response of the asynchronous fetcher.
+         * Validators of the response are stored in the entry.
+         * @return The content, or null if it has not been modified since the last visit
+         *      or is the same
+         * @throws IOException If the request failed or the status is not 2xx or 304
+         */
+        private byte[] getContent(URLEntry fetchedEntry, HttpFetcher.Response response) throws IOException {
+            if (response.getError() != null) {
+                throw response.getError();
+            }
+            boolean modified = response.getStatus() != HttpURLConnection.HTTP_NOT_MODIFIED;
+            if (modified && !response.isSuccess()) {
+                throw new IOException("HTTP status " + response.getStatus());
+            }
+            updateValidators(fetchedEntry, modified, response.getHeader(HTTP_ETAG), response.getHeader(HTTP_LAST_MODIFIED));
+            if (!modified) {
+                notModified.add();
+            }
+            return modified ? readIfChanged(fetchedEntry, response.getBodyStream(), response.getHeader(HTTP_CONTENT_TYPE)) : null;
+        }
+
+        /**
+         * Returns headers making the request conditional on the validators
+         * of the last response, or null if there are none.
+         */
+        private Map<String, String> getConditionalHeaders(URLEntry entry) {
+            if (!conditionalRevisits || (entry.getEtag() == null && entry.getLastModified() == null)) {
+                return null;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            if (entry.getEtag() != null) {
+                headers.put(HTTP_IF_NONE_MATCH, entry.getEtag());
+            }
+            if (entry.getLastModified() != null) {
+                headers.put(HTTP_IF_MODIFIED_SINCE, entry.getLastModified());
+            }
+            return headers;
+        }
+
+        /**
+         * Stores the validators of a response in the entry.
+         * A full response replaces both validators, a "Not Modified" response
+         * only updates those it contains.
+         */
+        private void updateValidators(URLEntry entry, boolean modified, String etag, String lastModified) {
+            if (modified || etag != null) {
+                entry.setEtag(etag);
+            }
+            if (modified || lastModified != null) {
+                entry.setLastModified(lastModified);
+            }
+        }
+
+        /**
+         * Reads the content and compares its fingerprints with those of the last visit.
+         * Stores the new fingerprints in the entry,
+         * except for SimHash of a near-duplicate, so that the entry keeps the SimHash of
+         * the last scraped version and small changes can't accumulate unnoticed.
+         * The charset of the content is resolved first (see {@link #resolveCharset}).
+         * @param contentType The {@code Content-Type} header of the response, or null
+         * @return The content, or null if it has not changed
+         */
+        private byte[] readIfChanged(URLEntry entry, InputStream is, String contentType) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int read;
+            try {
+                while ((read = is.read(buf)) != -1) {
+                    out.write(buf, 0, read);
+                }
+            } finally {
+                is.close();
+            }
+            byte[] content = out.toByteArray();
+            contentCharset = resolveCharset(entry, content, contentType);
+            String digest = ContentFingerprint.digest(content);
+            long hash = simHash ? ContentFingerprint.simHash(content, contentCharset) : 0;
+            boolean revisit = conditionalRevisits && entry.getVisitCount() > 0;
+            boolean same = revisit && digest.equals(entry.getDigest());
+            boolean similar = revisit && !same && hash != 0 && entry.getSimHash() != 0
+                    && ContentFingerprint.distance(hash, entry.getSimHash()) <= simHashDistance;
+            entry.setDigest(digest);
+            if (!similar) {
+                entry.setSimHash(hash);
+            }
+            if (same || similar) {
+                unchanged.add();
+                return null;
+            }
+            return content;
+        }
+
+        /**
+         * Returns the charset of the content of a response - the one configured
+         * for the host, or the one declared by the response (see
+         * {@link CharsetDetector#detectDeclared(java.lang.String, byte[]) CharsetDetector.detectDeclared}).
+         * The charset of a page without a declaration is guessed from its content
+         * once for each URL pattern of the host and used for the other pages of the pattern.
+         */
+        private String resolveCharset(URLEntry entry, byte[] content, String contentType) {
+            if (authority.charset != null) {
+                return authority.charset;
+            }
+            String declared = CharsetDetector.detectDeclared(contentType, content);
+            if (declared != null) {
+                return declared;
+            }
+            String pattern = Util.nonNull(entry.getPattern(), "");
+            String guessed = authority.guessedCharsets.get(pattern);
+            if (guessed == null) {
+                guessed = Util.nonNull(CharsetDetector.guess(content), CHARSET_FALLBACK);
+                authority.guessedCharsets.put(pattern, guessed);
+            }
+            return guessed;
+        }
+
+        /**
+         * Returns the referrer to send with requests to the host, or null.
+         */
+        private String getReferrer() {
+            return fakeReferrer ? authority.desc.getBaseURL() : null;
         }
 
         /**
-         * Looks for base URI in /html/head/base/@href.
+         * Returns the normalized base URI, or null if it is not set or is malformed.
          */
-        private URI getBaseURI(TagNode rootNode) throws XPatherException {
-            String baseHref = XPathUtil.queryText(rootNode, HTML_BASE);
+        private URI getBaseURI(String baseHref) {
             if (baseHref != null) {
                 try {
                     return URLUtil.normalize(baseHref).toURI();
@@ -503,19 +956,19 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
 
         /**
          * Scrapes links, according to defined patterns
-         * @param rootNode The node to scrape
+         * @param links Links extracted from the document
          * @param fetchedURI The URI of the document, to resolve links against
-         * @throws XPatherException
-         * @throws MalformedURLException
+         * @return Number of new entity links added to DB
          * @see EntityDescriptor
+         * @see LinkExtractor
          */
-        private void scrapeLinks(TagNode rootNode, URI base, URI fetchedURI) throws XPatherException {
+        private long scrapeLinks(LinkExtractor.Links links, URI fetchedURI) {
             long scrapeStart = System.currentTimeMillis();
-            Object[] links = rootNode.evaluateXPath(XPATH_LINKS);
+            URI base = getBaseURI(links.getBase());
             URI baseURI = base != null ? base : fetchedURI;
-            Collection<URLEntry> entriesToAdd = new ArrayList<URLEntry>();
-            for (Object obj : links) {
-                String link = String.valueOf(obj);
+            // keyed by path, so that a link repeated on the page is added once
+            Map<String, URLEntry> entriesToAdd = new LinkedHashMap<String, URLEntry>();
+            for (String link : links.getHrefs()) {
                 try {
                     URI linkURI = new URI(link);
                     URL resolvedURL;
@@ -544,7 +997,9 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
                         }
                         // add found link to DB
                         URLEntry newEntry = new URLEntry(authority.baseURL.toString(), resolvedPath, new Date(0), 0, updateFreq, entity, patt.toString(), true, (short) 0);
-                        entriesToAdd.add(newEntry);
+                        newEntry.setInlinks(1);
+                        newEntry.setPriority(PriorityScore.rank(newEntry, entity ? hostManager.getRelativeWeight(authority.hostId, patt.toString()) : 1));
+                        entriesToAdd.put(resolvedPath, newEntry);
                     }
                 } catch (URISyntaxException ex) {
                     Logger.getLogger(HTMLCrawler.class.getName()).log(Level.FINER, "Bad URI syntax: {0}", link);
@@ -554,12 +1009,72 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             }
             avgScrape.add((double) (System.currentTimeMillis() - scrapeStart));
             validLinksFound.add((long) entriesToAdd.size());
-            long newLinks = urlMgr.addEntries(entriesToAdd);
+            Collection<URLEntry> unseen = filterSeen(entriesToAdd.values());
+            long newLinks = unseen.isEmpty() ? 0 : urlMgr.addEntries(unseen);
+            long newEntities = 0;
+            if (newLinks > 0) {
+                // some of the unseen paths may have been present (if the filter is not used)
+                double addedShare = (double) newLinks / unseen.size();
+                int unseenEntities = 0;
+                for (URLEntry entry : unseen) {
+                    if (entry.isEntity()) {
+                        unseenEntities++;
+                    }
+                    if (revisitPolicy != null) {
+                        revisitPolicy.added(entry.getUpdateFreq(), addedShare);
+                    }
+                }
+                newEntities = Math.round(unseenEntities * addedShare);
+            }
+            if (unseen.size() < entriesToAdd.size()) {
+                Map<String, Integer> seen = new HashMap<String, Integer>();
+                for (String path : entriesToAdd.keySet()) {
+                    seen.put(path, 1);
+                }
+                for (URLEntry entry : unseen) {
+                    seen.remove(entry.getPath());
+                }
+                urlMgr.addInlinks(seen);
+            }
+            markSeen(unseen);
             newLinksFound.add(newLinks);
+            newEntitiesFound.add(newEntities);
             // notify threads wating for work
             synchronized (authority.workLock) {
                 authority.workLock.notifyAll();
             }
+            return newEntities;
+        }
+
+        /**
+         * Returns the entries whose paths are not in the seen-paths filter,
+         * or all entries if the filter is not used.
+         */
+        private Collection<URLEntry> filterSeen(Collection<URLEntry> entries) {
+            BloomFilter filter = seenPaths;
+            if (filter == null) {
+                return entries;
+            }
+            Collection<URLEntry> unseen = new ArrayList<URLEntry>();
+            for (URLEntry entry : entries) {
+                if (!filter.mightContain(entry.getPath())) {
+                    unseen.add(entry);
+                }
+            }
+            seenLinks.add((long) (entries.size() - unseen.size()));
+            return unseen;
+        }
+
+        /**
+         * Adds paths of the entries (now present in DB) to the seen-paths filter.
+         */
+        private void markSeen(Collection<URLEntry> entries) {
+            BloomFilter filter = seenPaths;
+            if (filter != null) {
+                for (URLEntry entry : entries) {
+                    filter.add(entry.getPath());
+                }
+            }
         }
 
         /**
@@ -572,7 +1087,7 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
                 synchronized (authority.workLock) {
                     try {
                         while (!authority.urlBuffer.hasMore() && authority.isAnyWorking()) {
-                            authority.workLock.wait(WORK_WAIT_INTERVAL);
+                            authority.workLock.wait(workWaitInterval.get());
                         }
                     } catch (InterruptedException ex) {
                         stopCondition = true;
@@ -591,10 +1106,16 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             // if parent, wait for children / forked crawling threads
             working = false;
             if (!isChild()) {
-                Iterator<Thread> it = children.values().iterator();
-                while (it.hasNext()) {
+                Collection<Thread> threads;
+                synchronized (this) {
+                    childrenRunning = false;
+                    threads = new ArrayList<Thread>(children.values());
+                }
+                for (Thread thread : threads) {
                     try {
-                        it.next().join();
+                        if (thread.isAlive()) {
+                            thread.join();
+                        }
                     } catch (InterruptedException ex) {
                         Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
                     }
@@ -610,7 +1131,7 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             boolean error = false, wasError = false;
             do {
                 try {
-                    ConnectionManager.getConnection(authority.baseURL).getInputStream().close();
+                    connMgr.getConnection(authority.baseURL).getInputStream().close();
                     error = false;
                 } catch (IOException ex) {
                     if (!error) {
@@ -627,6 +1148,83 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             return wasError;
         }
 
+        /**
+         * Visits the URL, writes the document if it is an entity, scrapes links
+         * and returns the updated entry to the DB.
+         * @param fetchedEntry The URL to visit
+         * @param response Response of the asynchronous fetcher, or null to fetch the URL now
+         */
+        private void visit(URLEntry fetchedEntry, HttpFetcher.Response response) {
+            boolean urlWorking = true;
+            long newEntities = 0;
+            try {
+                if (policyIgnored || authority.policy.allows(fetchedEntry.getPath())) {
+                    URI fetchedURI = new URI(fetchedEntry.getUrl());
+                    String lastDigest = fetchedEntry.getDigest();
+                    byte[] content = response != null ? getContent(fetchedEntry, response) : getContent(fetchedEntry);
+                    if (content != null) {
+                        LinkExtractor.Links links = LinkExtractor.extract(content, contentCharset);
+                        // if entity, write to output, the document is parsed by a parse worker or the scraper
+                        if (fetchedEntry.isEntity()) {
+                            URI baseURI = getBaseURI(links.getBase());
+                            EntityDocument entDoc = new EntityDocument(baseURI != null ? baseURI.toString() : fetchedEntry.getUrl(), fetchedEntry.getUrl(), hostManager.getEntityDescriptor(authority.hostId, fetchedEntry.getPattern()), content, contentCharset);
+                            prepare(entDoc);
+                            write(entDoc);
+                        }
+                        newEntities = scrapeLinks(links, fetchedURI);
+                    }// else not modified or unchanged since last visit
+                    // the first visit starts the average
+                    fetchedEntry.setYield(fetchedEntry.getVisitCount() > 0 ? PriorityScore.updateYield(fetchedEntry.getYield(), newEntities) : newEntities);
+                    sourceThrottle.record(authority.hostId, fetchedEntry.getPattern(), newEntities);
+                    long now = System.currentTimeMillis();
+                    if (revisitPolicy != null && fetchedEntry.getVisitCount() > 0) {
+                        // without conditional revisits, the page is parsed even if unchanged
+                        boolean changed = content != null && (conditionalRevisits || !fetchedEntry.getDigest().equals(lastDigest));
+                        revisitPolicy.observe(fetchedEntry, changed, now);
+                    }
+                    fetchedEntry.setLastVisited(new Date(now));
+                    fetchedEntry.setVisitCount(fetchedEntry.getVisitCount() + 1);
+                    int configuredFreq = hostManager.getUpdateFreq(authority.hostId, fetchedEntry.getPattern());
+                    double backoff = sourceThrottle.backoff(fetchedEntry, authority.hostId);
+                    if (revisitPolicy != null) {
+                        fetchedEntry.setUpdateFreq(revisitPolicy.updateFreq(fetchedEntry, configuredFreq, backoff));
+                    } else if (configuredFreq > 0) {
+                        fetchedEntry.setUpdateFreq((int) Math.min(Integer.MAX_VALUE, Math.round(configuredFreq * backoff)));
+                    }
+                    crawled.add();
+                }
+            } catch (ProcessorStoppedException ex) {
+                // shouldn't happen - sink stopped
+                status = Status.STOPPING;
+            } catch (URISyntaxException ex) {
+                urlWorking = false;
+                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Bad URI returned from DB", ex);// shouldn't happen
+            } catch (IOException ex) {
+                if (ex instanceof SocketTimeoutException) {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "HTTP request timed out: {0}", fetchedEntry.getUrl());
+                } else {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "I/O error while accessing {0}", fetchedEntry.getUrl());
+                }
+                urlWorking = detectConnectionError();
+                connError.add();
+            }
+            short currScore = fetchedEntry.getScore();
+            short newScore = (short) (urlWorking ? Math.min(0, currScore + 1) : Math.max(currScore - 1, URLEntry.SCORE_MIN));
+            fetchedEntry.setScore(newScore);
+            fetchedEntry.setWorking(newScore > URLEntry.SCORE_MIN);
+            fetchedEntry.setPriority(PriorityScore.rank(fetchedEntry, hostManager.getRelativeWeight(authority.hostId, fetchedEntry.getPattern())));
+            urlMgr.returnEntry(fetchedEntry);// updates and unlocks
+        }
+
+        /**
+         * Visits an URL of the supplied host using a response of the asynchronous fetcher.
+         * Used by parse workers, which serve all hosts.
+         */
+        private void visit(HostCrawler host, URLEntry fetchedEntry, HttpFetcher.Response response) {
+            authority = host;
+            visit(fetchedEntry, response);
+        }
+
         /**
          * Runs the crawling. Retrieves URL from DB, visits it, scrapes links and updates the URL entry.
          */
@@ -635,58 +1233,165 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             startChildrenIfParent();
             boolean canRun = true;
             // each iteration processes one URL from DB (retrieves, visits, scrapes links, returns)
-            while ((canRun = HTMLCrawler.this.status == Status.RUNNING && !stopCondition) || authority.urlBuffer.hasMore()) {
+            while (!retired && ((canRun = HTMLCrawler.this.status == Status.RUNNING && !stopCondition) || authority.urlBuffer.hasMore())) {
                 if (!canRun) {
                     authority.urlBuffer.stop();
+                } else {
+                    awaitResume();
                 }
                 working = true;
-                boolean urlWorking = true;
                 URLEntry fetchedEntry = authority.urlBuffer.getEntry();
                 // if there is an unvisited url, process it
                 if (fetchedEntry != null) {
-                    try {
-                        if (policyIgnored || authority.policy.allows(fetchedEntry.getPath())) {
-                            URI fetchedURI = new URI(fetchedEntry.getUrl());
-                            TagNode rootNode = getRootNode(fetchedEntry);
-                            URI baseURI = getBaseURI(rootNode);
-                            // if entity, write to output
-                            if (fetchedEntry.isEntity()) {
-                                EntityDocument entDoc = new EntityDocument(baseURI != null ? baseURI.toString() : fetchedEntry.getUrl(), fetchedEntry.getUrl(), hostManager.getEntityDescriptor(authority.hostId, fetchedEntry.getPattern()), rootNode);
-                                write(entDoc);
-                            }
-                            scrapeLinks(rootNode, baseURI, fetchedURI);
-                            fetchedEntry.setLastVisited(new Date());
-                            fetchedEntry.setVisitCount(fetchedEntry.getVisitCount() + 1);
-                            crawled.add();
-                        }
-                    } catch (ProcessorStoppedException ex) {
-                        // shouldn't happen - sink stopped
-                        status = Status.STOPPING;
-                    } catch (URISyntaxException ex) {
-                        urlWorking = false;
-                        Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Bad URI returned from DB", ex);// shouldn't happen
-                    } catch (XPatherException ex) {
-                        urlWorking = false;
-                        Logger.getLogger(HTMLCrawler.class.getName()).log(Level.WARNING, "No links found");
-                    } catch (IOException ex) {
-                        if (ex instanceof SocketTimeoutException) {
-                            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "HTTP request timed out: {0}", fetchedEntry.getUrl());
-                        } else {
-                            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "I/O error while accessing {0}", fetchedEntry.getUrl());
-                        }
-                        urlWorking = detectConnectionError();
-                        connError.add();
-                    }
-                    short currScore = fetchedEntry.getScore();
-                    short newScore = (short) (urlWorking ? Math.min(0, currScore + 1) : Math.max(currScore - 1, URLEntry.SCORE_MIN));
-                    fetchedEntry.setScore(newScore);
-                    fetchedEntry.setWorking(newScore > URLEntry.SCORE_MIN);
-                    urlMgr.returnEntry(fetchedEntry);// updates and unlocks
+                    visit(fetchedEntry, null);
                 } else {// if no URLs have been returned by fetch...
                     waitForWork();
                 }
             }// while
             waitForChildren();
+            if (retired) {
+                urlMgr.close();
+            } else {
+                urlMgr.flush();
+            }
+        }
+    }
+
+    /**
+     * Parses and scrapes responses of the asynchronous fetcher, for all hosts.
+     */
+    private class ParseWorker implements Runnable {
+
+        private final HostCrawler crawler;
+
+        /**
+         * @param anyHost Parent crawler of any host, the worker switches hosts per response
+         */
+        public ParseWorker(HostCrawler anyHost) throws SQLException {
+            this.crawler = new HostCrawler(anyHost);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!asyncDone) {
+                    HttpFetcher.Response response = fetcher.poll(workWaitInterval.get());
+                    if (response != null) {
+                        Object[] attachment = (Object[]) response.getAttachment();
+                        HostCrawler host = (HostCrawler) attachment[0];
+                        try {
+                            crawler.visit(host, (URLEntry) attachment[1], response);
+                        } finally {
+                            synchronized (asyncLock) {
+                                host.inFlight--;
+                                asyncLock.notifyAll();
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                crawler.urlMgr.close();
+            }
+        }
+    }
+
+    /**
+     * Takes hosts from the schedule when their next request is allowed and visits their URLs.
+     */
+    private class CrawlWorker implements Runnable {
+
+        private final HostCrawler crawler;
+
+        /**
+         * @param anyHost Parent crawler of any host, the worker switches hosts per URL
+         */
+        public CrawlWorker(HostCrawler anyHost) throws SQLException {
+            this.crawler = new HostCrawler(anyHost);
+            this.crawler.paced = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (scheduleLock) {
+                        if (activeHosts == 0) {
+                            break;
+                        }
+                    }
+                    if (status != Status.RUNNING) {
+                        stopSchedule();
+                        break;
+                    }
+                    awaitResume();
+                    HostCrawler host = schedule.poll(workWaitInterval.get(), TimeUnit.MILLISECONDS);
+                    if (host != null) {
+                        visitNext(host);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                crawler.urlMgr.close();
+            }
+        }
+
+        /**
+         * Visits the next URL of the host taken from the schedule.
+         * Returns the host to the schedule, unless it has {@code threadsPerHost}
+         * URLs being visited, or has no URL available while some are being visited
+         * (it is returned when one of the visits completes), or has no more URLs to visit.
+         * URLs disallowed by the robots policy are returned without visiting.
+         */
+        private void visitNext(HostCrawler host) {
+            boolean idle;
+            synchronized (scheduleLock) {
+                if (host.inFlight >= threadsPerHost) {// threadsPerHost has been lowered
+                    host.queued = false;
+                    return;
+                }
+                idle = host.inFlight == 0;
+            }
+            URLEntry entry = host.urlBuffer.getEntry();
+            while (entry != null && !policyIgnored && !host.policy.allows(entry.getPath())) {
+                host.urlMgr.returnEntry(entry);
+                entry = host.urlBuffer.getEntry();
+            }
+            synchronized (scheduleLock) {
+                if (entry == null) {
+                    // links are only found by visiting URLs, so if nothing was being visited
+                    // before the buffer ran out, no more URLs of the host can appear in this run
+                    if (idle) {
+                        host.queued = false;
+                        activeHosts--;
+                    } else if (host.inFlight == 0) {
+                        schedule.offer(host);
+                    } else {
+                        host.queued = false;
+                    }
+                    return;
+                }
+                host.inFlight++;
+                host.requestStarted();
+                if (host.inFlight < threadsPerHost) {
+                    schedule.offer(host);
+                } else {
+                    host.queued = false;
+                }
+            }
+            try {
+                crawler.visit(host, entry, null);
+            } finally {
+                synchronized (scheduleLock) {
+                    host.inFlight--;
+                    if (!host.queued) {
+                        host.queued = true;
+                        schedule.offer(host);
+                    }
+                }
+            }
         }
     }
 
@@ -732,6 +1437,30 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
         return globalCrawlDelayMinimum;
     }
 
+    /**
+     * @see CrawlerConfiguration#getThreadsPerHost()
+     */
+    public int getThreadsPerHost() {
+        return threadsPerHost;
+    }
+
+    /**
+     * Changes the number of crawling threads of each host, applies immediately.
+     * @see CrawlerConfiguration#setThreadsPerHost(int)
+     */
+    public void setThreadsPerHost(int threadsPerHost) {
+        this.threadsPerHost = Math.max(1, threadsPerHost);
+        if (threadMap != null && isThreadPerHost()) {
+            for (HostCrawler crawler : threadMap.keySet()) {
+                try {
+                    crawler.setThreads(this.threadsPerHost);
+                } catch (SQLException ex) {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Can''t create crawling thread: {0}", ex.getMessage());
+                }
+            }
+        }
+    }
+
     /**
      * @see CrawlerConfiguration#isFakeReferrer()
      */
@@ -746,6 +1475,13 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
         this.fakeReferrer = fakeReferrer;
     }
 
+    /**
+     * Indicates whether each host is crawled by its own threads.
+     */
+    private boolean isThreadPerHost() {
+        return !asyncFetch && crawlWorkers <= 0;
+    }
+
     //</editor-fold>
     //<editor-fold defaultstate="collapsed" desc="Bootstrap">
     /**
@@ -840,7 +1576,7 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
 
     /**
      * Initializes the state of this crawler using the supplied configuration.
-     * Instantiates parent crawler for each host and creates threads
+     * Starts instantiating the parent crawler of each host (see {@link #initHosts()}).
      * @param crawlerConf The configuration
      */
     private void initState(CrawlerConfiguration crawlerConf) {
@@ -848,50 +1584,768 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             this.db = crawlerConf.getDBLayer();
             hostManager = new HostManager(db);
             hostManager.loadHosts(crawlerConf.getHosts());
-            urlMgr = new URLManager(db);
+            if (frontierDir != null) {
+                logStore = new LogFrontierStore(frontierDir, hostManager.getMapper());
+            }
+            urlMgr = openStore();
             hostIds = hostManager.getHostIds();
-            threadMap = new HashMap<HostCrawler, Thread>(hostIds.size());
+            // hosts initialized during a run are added while the map is iterated
+            threadMap = new ConcurrentHashMap<HostCrawler, Thread>(hostIds.size());
             globalCrawlDelayMinimum = crawlerConf.getGlobalCrawlDelayMinimum();
+            threadsPerHost = Math.max(1, crawlerConf.getThreadsPerHost());
             policyIgnored = crawlerConf.isPolicyIgnored();
             fakeReferrer = crawlerConf.isFakeReferrer();
-            for (int hostId : hostIds) {
-                HostCrawler crawler = new HostCrawler(hostId, crawlerConf.getThreadsPerHost());
-                Thread thread = new Thread(crawler, String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, hostManager.getHostDescriptor(hostId).getName(), 0));
-                threadMap.put(crawler, thread);
-            }
-        } catch (MalformedURLException ex) {
-            failStart("Bad URL in HostDescriptor", ex);
+            initHosts();
         } catch (SQLException ex) {
             failStart("Failed to initialize HostManager or URLManager: " + ex.getMessage());
-        } catch (ConfigurationException ex) {
-            failStart("Can't start HostCrawler thread: " + ex.getMessage());
+        } catch (IOException ex) {
+            failStart("Can't open frontier store: " + ex.getMessage());
         }
     }
 
     /**
-     * Deserializes crawler configuration from XML and initializes crawler state
+     * Instantiates the parent crawler of each host using {@code initWorkers} threads.
+     * Initialized hosts are collected and start being crawled when the crawling
+     * mode {@linkplain #takeReadyHosts() takes} them. A host that fails to
+     * initialize is not crawled.
      */
-    @Override
-    protected void initWithContext() {
+    private void initHosts() {
+        final int workers = Math.max(1, initWorkers);
+        initPool = new ThreadPoolExecutor(workers, workers, INIT_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, "init", count.getAndIncrement()));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // the threads end when all hosts are initialized
+        initPool.allowCoreThreadTimeOut(true);
+        initHosts(hostIds);
+    }
+
+    /**
+     * Submits the initialization of the hosts to the init pool.
+     * A host initialized after its timeout is closed.
+     */
+    private void initHosts(Collection<Integer> ids) {
+        for (final int hostId : ids) {
+            synchronized (hostsLock) {
+                // the timeout starts when the initialization does
+                pendingHosts.put(hostId, Long.MAX_VALUE);
+                initTasks.put(hostId, initPool.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        synchronized (hostsLock) {
+                            if (!pendingHosts.containsKey(hostId)) {
+                                return;// stopped
+                            }
+                            pendingHosts.put(hostId, hostInitTimeout > 0 ? System.currentTimeMillis() + hostInitTimeout * 1000L : Long.MAX_VALUE);
+                        }
+                        HostCrawler crawler = null;
+                        try {
+                            crawler = new HostCrawler(hostId, isThreadPerHost() ? threadsPerHost : 1);
+                        } catch (MalformedURLException ex) {
+                            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Bad URL in HostDescriptor of host " + hostId, ex);
+                        } catch (SQLException ex) {
+                            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Can''t initialize host {0}: {1}", new Object[]{hostId, ex.getMessage()});
+                        } catch (ConfigurationException ex) {
+                            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Can''t initialize host {0}: {1}", new Object[]{hostId, ex.getMessage()});
+                        } finally {
+                            boolean inTime;
+                            synchronized (hostsLock) {
+                                initTasks.remove(hostId);
+                                inTime = pendingHosts.remove(hostId) != null;
+                                if (crawler != null && inTime) {
+                                    readyHosts.add(crawler);
+                                }
+                                hostsLock.notifyAll();
+                            }
+                            if (crawler != null && !inTime) {
+                                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.INFO, "Host {0} initialized after the timeout, closing", crawler.getDesc().getName());
+                                crawler.close();
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Starts initializing the hosts skipped after the timeout in the last run again.
+     */
+    private void initSkippedHosts() {
+        List<Integer> skipped;
+        synchronized (hostsLock) {
+            skipped = new ArrayList<Integer>(skippedHosts);
+            skippedHosts.clear();
+        }
+        if (!skipped.isEmpty()) {
+            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.INFO, "Initializing {0} skipped hosts again", skipped.size());
+            initHosts(skipped);
+        }
+    }
+
+    /**
+     * Cancels the initialization of all hosts and closes the hosts initialized,
+     * but not taken.
+     */
+    private void stopHostInit() {
+        List<HostCrawler> ready;
+        synchronized (hostsLock) {
+            for (Future<?> task : initTasks.values()) {
+                task.cancel(true);
+            }
+            initTasks.clear();
+            // hosts still being initialized are closed when done
+            pendingHosts.clear();
+            ready = new ArrayList<HostCrawler>(readyHosts);
+            readyHosts.clear();
+        }
+        initPool.shutdownNow();
+        for (HostCrawler crawler : ready) {
+            crawler.close();
+        }
+    }
+
+    /**
+     * Adds the hosts initialized since the last call to the crawled hosts, with new threads.
+     * @return The added hosts
+     */
+    private List<HostCrawler> takeReadyHosts() {
+        List<HostCrawler> ready;
+        synchronized (hostsLock) {
+            ready = new ArrayList<HostCrawler>(readyHosts);
+            readyHosts.clear();
+        }
+        for (HostCrawler crawler : ready) {
+            threadMap.put(crawler, new Thread(crawler, String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, crawler.getDesc().getName(), 0)));
+        }
+        return ready;
+    }
+
+    /**
+     * Indicates whether any host is being initialized within its timeout.
+     * The initialization of hosts over the timeout is cancelled.
+     * The hosts initialized by now are ready to be {@linkplain #takeReadyHosts() taken}.
+     */
+    private boolean hostsPending() {
+        synchronized (hostsLock) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<Integer, Long>> it = pendingHosts.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Integer, Long> pending = it.next();
+                if (pending.getValue() < now) {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.WARNING, "Host {0} not initialized within {1} s, skipped in this run", new Object[]{hostManager.getMapper().getHostName(pending.getKey()), hostInitTimeout});
+                    it.remove();
+                    Future<?> task = initTasks.remove(pending.getKey());
+                    if (task != null) {
+                        task.cancel(true);
+                    }
+                    skippedHosts.add(pending.getKey());
+                }
+            }
+            return !pendingHosts.isEmpty();
+        }
+    }
+
+    /**
+     * Waits (at most {@code workWaitInterval} ms) until a host is initialized,
+     * if any is being initialized.
+     */
+    private void awaitHostInit() {
+        synchronized (hostsLock) {
+            if (readyHosts.isEmpty() && hostsPending()) {
+                try {
+                    hostsLock.wait(workWaitInterval.get());
+                } catch (InterruptedException ex) {
+                    requestStop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a frontier store for one thread - the embedded store, if used
+     * (shared by all threads), otherwise a new URLManager, which writes
+     * visited URLs behind in batches of {@code returnBatchSize}.
+     */
+    private FrontierStore openStore() throws SQLException {
+        if (logStore != null) {
+            return logStore;
+        }
+        URLManager mgr = new URLManager(db);
+        mgr.setWriteBehind(returnBatchSize, returnFlushInterval);
+        return mgr;
+    }
+
+    /**
+     * Deserializes crawler configuration from XML and initializes crawler state.
+     * If {@link SharedResources} are present in the context, the DB layer is
+     * shared with other jobs (within the job's connection quota) and URLs
+     * are prefetched in the job's shared executor.
+     */
+    @Override
+    protected void initWithContext() {
         try {
             File confFile = ((FSContext) getContext()).getFile(confFileName);
             CrawlerConfiguration crawlerConf = Util.objectFromXml(confFile.getAbsolutePath(), CrawlerConfiguration.class);
+            SharedResources shared = (SharedResources) getContext().getParameterValue(SharedResources.CONTEXT_PARAM);
+            if (shared != null) {
+                Integer connectionQuota = (Integer) getContext().getParameterValue(SharedResources.CONNECTION_QUOTA_PARAM);
+                crawlerConf.setDBLayer(shared.shareDBLayer(crawlerConf.getDBLayer(), connectionQuota != null ? connectionQuota : 0));
+            }
+            Executor executor = (Executor) getContext().getParameterValue(SharedResources.EXECUTOR_PARAM);
+            if (executor != null) {
+                fetchExecutor = executor;
+            }
+            connMgr.setCompression(compression);
+            connMgr.setKeepAlive(keepAlive);
+            if (adaptiveRevisits) {
+                revisitPolicy = new RevisitPolicy(minUpdateFreq, maxUpdateFreq, revisitBudget);
+            }
+            sourceThrottle = new SourceThrottle(minSourceYield, maxSourceBackoff);
+            if (frontierDirName != null) {
+                frontierDir = ((FSContext) getContext()).getFile(frontierDirName);
+            }
+            if (robotsCacheDirName != null) {
+                robotsCacheDir = ((FSContext) getContext()).getFile(robotsCacheDirName);
+                if (!robotsCacheDir.isDirectory() && !robotsCacheDir.mkdirs()) {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.WARNING, "Can''t create robots cache directory {0}, policies won''t be cached", robotsCacheDir);
+                    robotsCacheDir = null;
+                }
+            }
+            startRobotsRefresher();
             initState(crawlerConf);
+            startParsePool();
+            if (asyncFetch) {
+                fetcher = new HttpFetcher(connMgr);
+            }
         } catch (ConfigurationException ex) {
             failStart("Can't read configuration: " + ex.getMessage());
+        } catch (IOException ex) {
+            failStart("Can't start asynchronous fetcher: " + ex.getMessage());
         }
     }
 
+    /**
+     * Starts the pool of {@code parseWorkers} threads parsing entity documents
+     * ahead of scrapers. Documents that don't fit in its queue are parsed by the scrapers.
+     */
+    private void startParsePool() {
+        final int workers = Math.max(1, parseWorkers);
+        parsePool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workers * PARSE_QUEUE_PER_WORKER), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, "dom", count.getAndIncrement()));
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Starts the thread reloading expired robots policies.
+     */
+    private void startRobotsRefresher() {
+        robotsRefresher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, "robots", 0));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Submits the entity document to be parsed by the parse pool.
+     */
+    private void prepare(final EntityDocument doc) {
+        parsePool.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long parseStart = System.currentTimeMillis();
+                if (doc.parse()) {
+                    avgHTMLParse.add((double) (System.currentTimeMillis() - parseStart));
+                }
+            }
+        });
+    }
+
     @Override
     protected void initPostContext() {
         Stats stats = new Stats(this);
         connError = stats.newFunction("err.connError", Sum.class);
         validLinksFound = stats.newFunction("stat.validLinks", Sum.class);
         newLinksFound = stats.newFunction("stat.newLinks", Sum.class);
+        newEntitiesFound = stats.newFunction("stat.newEntities", Sum.class);
         crawled = stats.newFunction("stat.crawled", Sum.class);
         avgFetch = stats.newFunction("perf.avgFetch", Average.class);
         avgScrape = stats.newFunction("perf.avgScrape", Average.class);
         avgHTMLParse = stats.newFunction("perf.avgHTMLParse", Average.class);
+        runs = stats.newFunction("stat.runs", Sum.class);
+        notModified = stats.newFunction("stat.notModified", Sum.class);
+        unchanged = stats.newFunction("stat.unchanged", Sum.class);
+        seenLinks = stats.newFunction("stat.seenLinks", Sum.class);
+        connMgr.setStats(stats);
+        db.setStats(stats);
+        Tunables tunables = new Tunables(this);
+        tunables.register(fetchSize);
+        tunables.register(fetchThreshold);
+        tunables.register(workWaitInterval);
+        tunables.register(connectionRetries);
+        tunables.newTunable("globalCrawlDelayMinimum", globalCrawlDelayMinimum, 0, Integer.MAX_VALUE).addListener(new Tunable.Listener() {
+
+            @Override
+            public void valueChanged(Tunable tunable, int oldValue) {
+                setGlobalCrawlDelayMinimum(tunable.get());
+            }
+        });
+        tunables.newTunable("threadsPerHost", threadsPerHost, 1, MAX_THREADS_PER_HOST).addListener(new Tunable.Listener() {
+
+            @Override
+            public void valueChanged(Tunable tunable, int oldValue) {
+                setThreadsPerHost(tunable.get());
+            }
+        });
+    }
+
+    /**
+     * Starts the crawling threads and waits for all to die.
+     * Threads of hosts initialized during the run are started when they are ready.
+     */
+    private void crawl() {
+        runs.add();
+        takeReadyHosts();
+        List<Thread> started = new ArrayList<Thread>(threadMap.values());
+        // start host masters
+        for (Thread thread : started) {
+            thread.start();
+        }
+        boolean pending;
+        do {
+            // checked before taking, so that no host initialized meanwhile is left out
+            pending = hostsPending();
+            for (HostCrawler crawler : takeReadyHosts()) {
+                Thread thread = threadMap.get(crawler);
+                thread.start();
+                started.add(thread);
+            }
+            if (pending) {
+                awaitHostInit();
+            }
+        } while (pending && status == Status.RUNNING);
+        // wait for all threads to die
+        for (Thread thread : started) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                stop();
+                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Crawls all hosts using {@code crawlWorkers} threads.
+     * The parent crawlers of hosts are kept in a delay queue ordered by the time
+     * of their next allowed request. A worker takes the first host whose time
+     * has come, schedules its next request after the crawl delay and visits its URL,
+     * so no thread sleeps because of crawl delay of a host.
+     * Ends when no host has any more URLs to visit and no URL is being visited.
+     * When stopped, unlocks buffered URLs and waits for the visits in progress.
+     * Hosts initialized during the run are added to the schedule when they are ready,
+     * the workers start with the first ready host.
+     */
+    private void crawlScheduled() {
+        runs.add();
+        schedule.clear();
+        takeReadyHosts();
+        boolean pending = hostsPending();
+        synchronized (scheduleLock) {
+            scheduleStopped = false;
+            // hosts being initialized count as one active host, so that the workers wait for them
+            activeHosts = pending ? 1 : 0;
+            for (HostCrawler host : threadMap.keySet()) {
+                scheduleHost(host);
+            }
+        }
+        List<Thread> workers = new ArrayList<Thread>();
+        while (true) {
+            if (workers.isEmpty() && !threadMap.isEmpty()) {
+                startWorkers(workers);
+            }
+            if (!pending) {
+                break;
+            }
+            awaitHostInit();
+            pending = hostsPending() && status == Status.RUNNING;
+            List<HostCrawler> ready = takeReadyHosts();
+            synchronized (scheduleLock) {
+                for (HostCrawler host : ready) {
+                    if (!scheduleStopped) {
+                        scheduleHost(host);
+                    } else {
+                        host.urlBuffer.stop();
+                    }
+                }
+                if (!pending) {
+                    activeHosts--;
+                }
+            }
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                stop();
+                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Adds the host to the schedule at the start of a run or when it is initialized.
+     * Must be called holding {@code scheduleLock}.
+     */
+    private void scheduleHost(HostCrawler host) {
+        activeHosts++;
+        host.inFlight = 0;
+        host.queued = true;
+        schedule.offer(host);
+    }
+
+    /**
+     * Starts {@code crawlWorkers} crawl workers. Stops the crawler, if a worker can't be created.
+     */
+    private void startWorkers(List<Thread> workers) {
+        try {
+            HostCrawler anyHost = threadMap.keySet().iterator().next();
+            for (int i = 0; i < crawlWorkers; i++) {
+                Thread worker = new Thread(new CrawlWorker(anyHost), String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, "worker", i));
+                workers.add(worker);
+                worker.start();
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Can''t create crawl worker, stopping", ex);
+            requestStop();
+            stopSchedule();
+        }
+    }
+
+    /**
+     * Stops URL buffers of all hosts (unlocking the buffered URLs), once per run.
+     */
+    private void stopSchedule() {
+        synchronized (scheduleLock) {
+            if (scheduleStopped) {
+                return;
+            }
+            scheduleStopped = true;
+        }
+        for (HostCrawler host : threadMap.keySet()) {
+            host.urlBuffer.stop();
+        }
+    }
+
+    /**
+     * Crawls all hosts using the asynchronous fetcher and parse workers.
+     * Keeps up to {@code threadsPerHost} URLs of each host submitted to the fetcher,
+     * until no host has any more URLs to visit and no request is in flight.
+     * When stopped, unlocks URLs not yet fetched and waits for the requests in flight.
+     * Hosts initialized during the run are fed when they are ready,
+     * the parse workers start with the first ready host.
+     */
+    private void crawlAsync() {
+        runs.add();
+        takeReadyHosts();
+        asyncDone = false;
+        List<Thread> workers = new ArrayList<Thread>();
+        Set<HostCrawler> active = new HashSet<HostCrawler>(threadMap.keySet());
+        boolean pending = hostsPending();
+        boolean stopping = false;
+        while (!active.isEmpty() || pending) {
+            if (!stopping && status != Status.RUNNING) {
+                stopping = true;
+                cancelAsync();
+            }
+            if (pending) {
+                pending = !stopping && hostsPending();
+                for (HostCrawler host : takeReadyHosts()) {
+                    if (stopping) {
+                        host.urlBuffer.stop();
+                    } else {
+                        active.add(host);
+                    }
+                }
+            }
+            if (workers.isEmpty() && !active.isEmpty()) {
+                startParseWorkers(workers);
+            }
+            if (!stopping) {
+                awaitResume();
+            }
+            for (Iterator<HostCrawler> it = active.iterator(); it.hasNext();) {
+                HostCrawler host = it.next();
+                boolean finished;
+                if (stopping) {
+                    synchronized (asyncLock) {
+                        finished = host.inFlight == 0;
+                    }
+                } else {
+                    finished = !feed(host);
+                }
+                if (finished) {
+                    it.remove();
+                }
+            }
+            if (!active.isEmpty() || pending) {
+                synchronized (asyncLock) {
+                    try {
+                        asyncLock.wait(workWaitInterval.get());
+                    } catch (InterruptedException ex) {
+                        requestStop();
+                    }
+                }
+            }
+        }
+        asyncDone = true;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Starts {@code responseWorkers} parse workers. Stops the crawler, if a worker can't be created.
+     */
+    private void startParseWorkers(List<Thread> workers) {
+        try {
+            HostCrawler anyHost = threadMap.keySet().iterator().next();
+            for (int i = 0; i < Math.max(1, responseWorkers); i++) {
+                Thread worker = new Thread(new ParseWorker(anyHost), String.format(CRAWLER_NAME_FORMAT, CRAWLER_NAME, "parser", i));
+                workers.add(worker);
+                worker.start();
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Can''t create parse worker, stopping", ex);
+            requestStop();
+        }
+    }
+
+    /**
+     * Submits URLs of the host to the asynchronous fetcher, up to {@code threadsPerHost} in flight.
+     * URLs disallowed by the robots policy are returned without visiting.
+     * @return False, if the host has no more URLs to visit and no request in flight
+     */
+    private boolean feed(HostCrawler host) {
+        int inFlight;
+        synchronized (asyncLock) {
+            inFlight = host.inFlight;
+        }
+        // links are only found by visiting URLs, so if nothing was in flight before
+        // the buffer ran out, no more URLs of the host can appear in this run
+        boolean idle = inFlight == 0;
+        int submitted = 0;
+        while (inFlight < threadsPerHost) {
+            URLEntry entry = host.urlBuffer.getEntry();
+            if (entry == null) {
+                return !(idle && submitted == 0);
+            }
+            if (!policyIgnored && !host.policy.allows(entry.getPath())) {
+                host.urlMgr.returnEntry(entry);
+                continue;
+            }
+            try {
+                URL url = new URL(entry.getUrl());
+                synchronized (asyncLock) {
+                    inFlight = ++host.inFlight;
+                }
+                fetcher.submit(url, Math.max(globalCrawlDelayMinimum, host.hostCrawlDelay), connectionRetries.get(), host.getReferrer(), host.getConditionalHeaders(entry), new Object[]{host, entry});
+                submitted++;
+            } catch (MalformedURLException ex) {
+                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Bad URL returned from DB: {0}", entry.getUrl());// shouldn't happen
+                host.urlMgr.returnEntry(entry);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops URL buffers of all hosts, removes requests not yet started from
+     * the asynchronous fetcher and unlocks their URLs.
+     */
+    private void cancelAsync() {
+        Map<HostCrawler, Collection<URLEntry>> cancelled = new HashMap<HostCrawler, Collection<URLEntry>>();
+        for (Object obj : fetcher.cancelPending()) {
+            Object[] attachment = (Object[]) obj;
+            HostCrawler host = (HostCrawler) attachment[0];
+            if (!cancelled.containsKey(host)) {
+                cancelled.put(host, new ArrayList<URLEntry>());
+            }
+            cancelled.get(host).add((URLEntry) attachment[1]);
+        }
+        synchronized (asyncLock) {
+            for (Map.Entry<HostCrawler, Collection<URLEntry>> entry : cancelled.entrySet()) {
+                entry.getKey().inFlight -= entry.getValue().size();
+            }
+        }
+        for (HostCrawler host : threadMap.keySet()) {
+            host.urlBuffer.stop();
+            Collection<URLEntry> entries = cancelled.get(host);
+            if (entries != null) {
+                host.urlMgr.unlockUrls(entries);
+            }
+        }
+    }
+
+    /**
+     * Loads paths of all URLs in DB to a new seen-paths filter, sized for
+     * {@value #SEEN_FILTER_HEADROOM} times the current number of URLs.
+     * Done before the first run and before a run in which the filter is full.
+     * If the paths can't be loaded, the filter is not used.
+     */
+    private void loadSeenPaths() {
+        if (!seenFilter || (seenPaths != null && !seenPaths.isFull())) {
+            return;
+        }
+        long loadStart = System.currentTimeMillis();
+        long total = urlMgr.countEntries();
+        BloomFilter filter = null;
+        if (total >= 0) {
+            filter = new BloomFilter(Math.max(SEEN_FILTER_MIN_SIZE, total * SEEN_FILTER_HEADROOM), SEEN_FILTER_FPP);
+            if (!urlMgr.addPathsTo(filter)) {
+                filter = null;
+            }
+        }
+        seenPaths = filter;
+        if (filter != null) {
+            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.INFO, "Loaded {0} known URLs in {1} ms", new Object[]{total, System.currentTimeMillis() - loadStart});
+        } else {
+            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.WARNING, "Can''t load known URLs, all found links go to DB");
+        }
+    }
+
+    /**
+     * Sets the number of revisits per day needed by the URLs in DB as the demand
+     * of the revisit policy and corrects its scale, if the number of revisits
+     * is limited by {@code revisitBudget}.
+     * If the rate can't be read, the demand tracked during the last run is used.
+     */
+    private void loadRevisitDemand() {
+        if (revisitPolicy == null || revisitBudget <= 0) {
+            return;
+        }
+        double rate = urlMgr.getRevisitRate();
+        if (rate >= 0) {
+            revisitPolicy.setDemand(rate);
+        }
+        revisitPolicy.adjustScale();
+        Logger.getLogger(HTMLCrawler.class.getName()).log(Level.INFO, "URLs need {0} revisits per day, update frequencies scaled by {1}", new Object[]{Math.round(revisitPolicy.getDemand()), revisitPolicy.getScale()});
+    }
+
+    /**
+     * Crawls all hosts once, in the configured mode.
+     * Writes the returned URLs buffered by the stores of host crawlers when done.
+     */
+    private void crawlOnce() {
+        loadSeenPaths();
+        loadRevisitDemand();
+        if (asyncFetch) {
+            crawlAsync();
+        } else if (crawlWorkers > 0) {
+            crawlScheduled();
+        } else {
+            crawl();
+        }
+        for (HostCrawler host : threadMap.keySet()) {
+            host.urlMgr.flush();
+        }
+        logSourceYields();
+    }
+
+    /**
+     * Logs the yields of source URL patterns of all hosts.
+     */
+    private void logSourceYields() {
+        for (int hostId : hostIds) {
+            for (Map.Entry<String, Float> yield : sourceThrottle.getPatternYields(hostId).entrySet()) {
+                if (hostManager.getEntityDescriptor(hostId, yield.getKey()) == null) {
+                    Logger.getLogger(HTMLCrawler.class.getName()).log(Level.INFO, "Source pattern {0} of {1} yields {2} new entities per visit",
+                            new Object[]{yield.getKey(), hostManager.getHostDescriptor(hostId).getName(), yield.getValue()});
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the first URL needs updating, at least {@code minIdle}
+     * and at most {@code maxIdle} seconds.
+     * @return False, if the crawler has been stopped while waiting
+     */
+    private boolean awaitNextRun() {
+        long maxWait = maxIdle * 1000L;
+        Date due = urlMgr.getNextDueTime();
+        long wait = due != null ? Math.min(due.getTime() - System.currentTimeMillis(), maxWait) : maxWait;
+        wait = Math.max(wait, minIdle * 1000L);
+        Logger.getLogger(HTMLCrawler.class.getName()).log(Level.INFO, "Crawl finished, next run in {0} s", wait / 1000);
+        long wakeAt = System.currentTimeMillis() + wait;
+        synchronized (idleLock) {
+            try {
+                while (status == Status.RUNNING && (wait = wakeAt - System.currentTimeMillis()) > 0) {
+                    idleLock.wait(wait);
+                }
+            } catch (InterruptedException ex) {
+                return false;
+            }
+        }
+        return status == Status.RUNNING;
+    }
+
+    /**
+     * Prepares host crawlers and their threads for another run.
+     */
+    private void resetCrawlers() {
+        try {
+            for (Map.Entry<HostCrawler, Thread> entry : threadMap.entrySet()) {
+                entry.getKey().reset();
+                entry.setValue(new Thread(entry.getKey(), entry.getValue().getName()));
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Can''t reset crawlers, stopping", ex);
+            requestStop();
+        } catch (ConfigurationException ex) {
+            Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, "Can''t reset crawlers, stopping: {0}", ex.getMessage());
+            requestStop();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Also wakes the crawler waiting for the next run in daemon mode.
+     */
+    @Override
+    public void requestStop() {
+        super.requestStop();
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
     }
 
     /**
@@ -901,12 +2355,14 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
      * won't be read again.
      * Also, before starting, checks for locked URLs (from previous run)
      * and unlocks them.
+     * <br />
+     * In daemon mode, repeats the crawling (and bootstrapping) until stopped.
      */
     @Override
     public void run() {
         this.status = Status.RUNNING;
-        // bootstrap
         File bootFile = ((FSContext) getContext()).getFile(bootstrapFileName);
+        // bootstrap
         bootstrapFromFile(bootFile);
         // unlock locked urls
         Collection<URLEntry> locked = urlMgr.listLocked();
@@ -915,21 +2371,27 @@ public class HTMLCrawler extends LocalObjectSource<EntityDocument> {
             boolean unlocked = urlMgr.unlockAll();
             Logger.getLogger(HTMLCrawler.class.getName()).log(Level.INFO, unlocked ? "URLs unlocked successfully" : "Failed to unlock URLs");
         }
-        urlMgr.close();
-        // start host masters
-        for (Thread thread : threadMap.values()) {
-            thread.start();
-        }
-        // wait for all threads to die
-        for (Thread thread : threadMap.values()) {
-            try {
-                thread.join();
-            } catch (InterruptedException ex) {
-                stop();
-                Logger.getLogger(HTMLCrawler.class.getName()).log(Level.SEVERE, null, ex);
+        crawlOnce();
+        while (daemon && status == Status.RUNNING && awaitNextRun()) {
+            bootstrapFromFile(bootFile);
+            resetCrawlers();
+            initSkippedHosts();
+            if (status == Status.RUNNING) {
+                crawlOnce();
             }
         }
+        if (fetcher != null) {
+            fetcher.shutdown();
+        }
+        stopHostInit();
+        parsePool.shutdown();
+        robotsRefresher.shutdown();
+        urlMgr.close();
+        if (logStore != null) {
+            logStore.shutdown();
+        }
         hostManager.close();
+        db.closeIdleConnections();
         stop();
     }
 }
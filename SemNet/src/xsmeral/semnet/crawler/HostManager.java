@@ -9,10 +9,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -22,6 +22,7 @@ import java.util.regex.PatternSyntaxException;
 import xsmeral.semnet.crawler.model.CrawlerConfiguration;
 import xsmeral.semnet.crawler.model.EntityDescriptor;
 import xsmeral.semnet.crawler.model.HostDescriptor;
+import xsmeral.semnet.crawler.util.PatternClassifier;
 import xsmeral.semnet.util.URLUtil;
 import xsmeral.semnet.util.Util;
 
@@ -40,13 +41,12 @@ public class HostManager {
     private static final String GET_HOSTID = "SELECT hostid FROM {SCHEMA}host WHERE address=?;";
     private static final String REMOVE_HOSTS = "DELETE from {SCHEMA}host ";
     private static final String REMOVE_ID = " WHERE hostid=?";
+    private static final Map<RDBLayer, Mapper> mappers = new HashMap<RDBLayer, Mapper>();
     private RDBLayer dbLayer;
-    private Connection dbConn;
-    private PreparedStatement addHost;
-    private PreparedStatement getHostId;
     private Map<Integer, HostDescriptor> hostMap;
     private Map<Integer, Map<Pattern, EntityDescriptor>> entityMap;
     private Map<Integer, Map<String, Pattern>> patternCache;
+    private Map<Integer, PatternClassifier> classifiers;
     private Mapper mapper;
 
     /**
@@ -55,10 +55,8 @@ public class HostManager {
     public static class Mapper implements HostMapper {
 
         private static final String GET_HOSTS = "SELECT hostid, address FROM {SCHEMA}host;";
-        private PreparedStatement getHosts;
-        private Map<String, Integer> hostIdLookup;
-        private Map<Integer, String> hostNameLookup;
-        private Connection conn;
+        private volatile Map<String, Integer> hostIdLookup;
+        private volatile Map<Integer, String> hostNameLookup;
 
         /**
          * Calls {@link #loadHosts(xsmeral.semnet.crawler.RDBLayer) loadHosts(db)}.
@@ -95,30 +93,35 @@ public class HostManager {
          */
         @Override
         public final void loadHosts(RDBLayer db) {
+            Map<String, Integer> idLookup = new HashMap<String, Integer>();
+            Map<Integer, String> nameLookup = new HashMap<Integer, String>();
+            Connection conn = null;
             try {
-                hostIdLookup = new HashMap<String, Integer>();
-                hostNameLookup = new HashMap<Integer, String>();
                 conn = db.getConnection();
-                getHosts = conn.prepareStatement(GET_HOSTS.replaceAll("\\{SCHEMA\\}", db.getSchema()));
+                PreparedStatement getHosts = conn.prepareStatement(GET_HOSTS.replaceAll("\\{SCHEMA\\}", db.getSchema()));
                 ResultSet hostsRs = getHosts.executeQuery();
                 while (hostsRs.next()) {
                     int id = hostsRs.getInt("hostid");
                     String address = hostsRs.getString("address");
-                    mapHost(id, address);
+                    idLookup.put(address, id);
+                    nameLookup.put(id, address);
                 }
+                hostsRs.close();
                 getHosts.close();
-                conn.close();
             } catch (SQLException ex) {
                 Logger.getLogger(Mapper.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                if (conn != null) {
+                    try {
+                        conn.close();
+                    } catch (SQLException ex) {
+                        Logger.getLogger(Mapper.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
             }
-        }
-
-        /**
-         * Creates <tt>Host &lt;-&gt; ID</tt> mapping
-         */
-        private void mapHost(int id, String address) {
-            hostIdLookup.put(address, id);
-            hostNameLookup.put(id, address);
+            // readers see either the old or the new mapping, never a partial one
+            hostNameLookup = nameLookup;
+            hostIdLookup = idLookup;
         }
     }
 
@@ -128,13 +131,19 @@ public class HostManager {
      */
     public HostManager(RDBLayer db) throws SQLException {
         this.dbLayer = db;
-        dbConn = dbLayer.getConnection();
         hostMap = new HashMap<Integer, HostDescriptor>();
         patternCache = new HashMap<Integer, Map<String, Pattern>>();
+        classifiers = new HashMap<Integer, PatternClassifier>();
         entityMap = new HashMap<Integer, Map<Pattern, EntityDescriptor>>();
-        addHost = dbConn.prepareStatement(ADD_HOST.replaceAll("\\{SCHEMA\\}", db.getSchema()));
-        getHostId = dbConn.prepareStatement(GET_HOSTID.replaceAll("\\{SCHEMA\\}", db.getSchema()));
-        mapper = new Mapper(dbLayer);
+        synchronized (mappers) {
+            mapper = mappers.get(dbLayer);
+            if (mapper == null) {
+                mapper = new Mapper(dbLayer);
+                mappers.put(dbLayer, mapper);
+            } else {
+                mapper.loadHosts(dbLayer);
+            }
+        }
     }
 
     /**
@@ -164,8 +173,17 @@ public class HostManager {
                     descMap.put(patt, entity);
                     pattMap.put(patt.toString(), patt);
                 }
+                // entities first, then sources
+                List<Pattern> patterns = new ArrayList<Pattern>(descMap.keySet());
+                patterns.addAll(desc.getSourceURLPatterns().keySet());
+                for (Pattern patt : desc.getSourceURLPatterns().keySet()) {
+                    if (!pattMap.containsKey(patt.toString())) {
+                        pattMap.put(patt.toString(), patt);
+                    }
+                }
                 entityMap.put(hostId, descMap);
                 patternCache.put(hostId, pattMap);
+                classifiers.put(hostId, new PatternClassifier(patterns, PatternClassifier.DEF_CACHE_SIZE));
                 hostMap.put(hostId, desc);
             } catch (PatternSyntaxException ex) {
                 // skip desc with malformed pattern
@@ -181,11 +199,21 @@ public class HostManager {
     }
 
     /**
-     * Returns a mapper instance for the specified DB.
+     * Returns the mapper instance for the specified DB.
+     * Mappers are shared by all users of equal DB layers, a mapper is created
+     * (and hosts are loaded) only on the first call for a DB and it is
+     * reloaded by the {@link HostManager} that adds hosts.
      * @see HostManager.Mapper#HostManager.Mapper(xsmeral.semnet.crawler.RDBLayer) HostManager.Mapper(db)
      */
     public static HostMapper getMapper(RDBLayer db) {
-        return new Mapper(db);
+        synchronized (mappers) {
+            Mapper mapper = mappers.get(db);
+            if (mapper == null) {
+                mapper = new Mapper(db);
+                mappers.put(db, mapper);
+            }
+            return mapper;
+        }
     }
 
     /**
@@ -203,14 +231,21 @@ public class HostManager {
      * @throws SQLException If a SQL command fails
      */
     public final int addHost(String address) throws SQLException {
-        addHost.setString(1, address);
-        addHost.executeUpdate();
-        getHostId.setString(1, address);
-        ResultSet rs = getHostId.executeQuery();
-        if (rs.next()) {
-            return rs.getInt("hostid");
-        } else {
-            return 0;
+        Connection conn = dbLayer.getConnection();
+        try {
+            PreparedStatement addHost = conn.prepareStatement(withSchema(ADD_HOST));
+            addHost.setString(1, address);
+            addHost.executeUpdate();
+            addHost.close();
+            PreparedStatement getHostId = conn.prepareStatement(withSchema(GET_HOSTID));
+            getHostId.setString(1, address);
+            ResultSet rs = getHostId.executeQuery();
+            int hostId = rs.next() ? rs.getInt("hostid") : 0;
+            rs.close();
+            getHostId.close();
+            return hostId;
+        } finally {
+            conn.close();
         }
     }
 
@@ -253,35 +288,17 @@ public class HostManager {
         return entityMap.get(hostId);
     }
 
-    /**
-     * Returns the first pattern from the list, that matches the supplied string
-     * @param it Iterator over patterns
-     * @param str The string to match
-     * @return The matching pattern, or null if none match
-     */
-    private Pattern matchingPattern(Iterator<Pattern> it, String str) {
-        boolean match = false;
-        Pattern pattern = null;
-        while (it.hasNext() && !match) {
-            pattern = it.next();
-            match = pattern.matcher(str).matches();
-        }
-        return match ? pattern : null;
-    }
-
     /**
      * Returns the Pattern (entity or source) that matches the given relative URL
-     * or null if no match is found.
+     * or null if no match is found. Entity patterns take precedence over source patterns.
      * @param hostId ID of the host to search for patterns.
      * @param relativeUrl URL to match
      * @see HostDescriptor
      * @see EntityDescriptor
+     * @see PatternClassifier
      */
     public Pattern getPattern(int hostId, String relativeUrl) {
-        // try entities first, then sources
-        return Util.nonNull(
-                matchingPattern(getEntityDescriptorMap(hostId).keySet().iterator(), relativeUrl),
-                matchingPattern(getSourceURLMap(hostId).keySet().iterator(), relativeUrl));
+        return classifiers.get(hostId).classify(relativeUrl);
     }
 
     /**
@@ -314,14 +331,54 @@ public class HostManager {
         return entityMap.get(hostId).get(patternCache.get(hostId).get(pattern));
     }
 
+    /**
+     * Returns the update frequency (in seconds) configured for the given URL pattern
+     * (of an entity or a source URL), or 0 if the pattern is not configured.
+     * @param hostId ID of the host
+     * @param pattern The URL pattern
+     */
+    public int getUpdateFreq(int hostId, String pattern) {
+        Pattern patt = patternCache.get(hostId).get(pattern);
+        EntityDescriptor entity = entityMap.get(hostId).get(patt);
+        if (entity != null) {
+            return entity.getUpdateFreq();
+        }
+        Integer updateFreq = getSourceURLMap(hostId).get(patt);
+        return updateFreq != null ? updateFreq : 0;
+    }
+
+    /**
+     * Returns the weight of the entity with the given URL pattern relative to
+     * the heaviest entity of the host (between 0 and 1), or 1 if the pattern
+     * does not represent an entity (e.g. for source URLs).
+     * @param hostId ID of the host
+     * @param pattern The URL pattern
+     */
+    public double getRelativeWeight(int hostId, String pattern) {
+        EntityDescriptor entity = getEntityDescriptor(hostId, pattern);
+        if (entity == null) {
+            return 1;
+        }
+        int max = 0;
+        for (EntityDescriptor desc : entityMap.get(hostId).values()) {
+            max = Math.max(max, desc.getWeight());
+        }
+        return max > 0 ? (double) Math.max(0, entity.getWeight()) / max : 1;
+    }
+
     /**
      * Completely resets crawler state, erasing all URLs from DB.
      */
     private void reset() throws SQLException {
-        PreparedStatement resetStmt = dbConn.prepareStatement(REMOVE_HOSTS.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        int count = resetStmt.executeUpdate();
-        Logger.getLogger(HostManager.class.getName()).log(Level.INFO, "{0} entries removed", count);
-        resetStmt.close();
+        Connection conn = dbLayer.getConnection();
+        try {
+            PreparedStatement resetStmt = conn.prepareStatement(withSchema(REMOVE_HOSTS));
+            int count = resetStmt.executeUpdate();
+            Logger.getLogger(HostManager.class.getName()).log(Level.INFO, "{0} entries removed", count);
+            resetStmt.close();
+        } finally {
+            conn.close();
+        }
     }
 
     /**
@@ -329,25 +386,31 @@ public class HostManager {
      * as well ({@code ON DELETE CASCADE}).
      */
     private void removeHost(int hostId) throws SQLException {
-        PreparedStatement removeStmt = dbConn.prepareStatement((REMOVE_HOSTS + REMOVE_ID).replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        removeStmt.setInt(1, hostId);
-        int count = removeStmt.executeUpdate();
-        Logger.getLogger(HostManager.class.getName()).log(Level.INFO, "{0} entries removed", count);
-        removeStmt.close();
+        Connection conn = dbLayer.getConnection();
+        try {
+            PreparedStatement removeStmt = conn.prepareStatement(withSchema(REMOVE_HOSTS + REMOVE_ID));
+            removeStmt.setInt(1, hostId);
+            int count = removeStmt.executeUpdate();
+            Logger.getLogger(HostManager.class.getName()).log(Level.INFO, "{0} entries removed", count);
+            removeStmt.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * Replaces <tt>{SCHEMA}</tt> wildcards with schema of the DB layer.
+     */
+    private String withSchema(String sql) {
+        return sql.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema());
     }
 
     /**
-     * Closes the DB connection
-     * @see RDBLayer
+     * Releases the resources of the manager.
+     * A DB connection is borrowed from the pool of the {@link RDBLayer} for each
+     * operation, so none is held between them.
      */
     public void close() {
-        try {
-            getHostId.close();
-            addHost.close();
-            dbConn.close();
-        } catch (SQLException ex) {
-            Logger.getLogger(HostManager.class.getName()).log(Level.SEVERE, null, ex);
-        }
     }
 
     private static void printUsage() {
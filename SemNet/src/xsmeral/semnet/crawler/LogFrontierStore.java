@@ -0,0 +1,866 @@
+package xsmeral.semnet.crawler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import xsmeral.semnet.crawler.model.URLEntry;
+import xsmeral.semnet.crawler.util.BloomFilter;
+import xsmeral.semnet.crawler.util.PriorityScore;
+
+/**
+ * Embedded {@link FrontierStore}, for single-node crawls without a DB server.
+ * <br />
+ * All URL entries are held in memory. Unlocked working entries are indexed
+ * by host, pattern and due time (<tt>last_visited + update_freq</tt>) and by host
+ * and {@linkplain URLEntry#getPriority() priority}, so that a query for current
+ * URLs of a host only visits the entries it returns (and, if ordered by priority,
+ * entries of higher priority not yet due).
+ * Locks are held in memory only (after restart, no URL is locked).
+ * <br />
+ * Each added or updated entry is appended as a record to a log in the given directory.
+ * The log consists of memory-mapped segment files of {@value #SEGMENT_SIZE} bytes,
+ * the record of an entry written last is the valid one. On opening, the segments
+ * are replayed in order, each up to its terminating zero length or its first incomplete
+ * or corrupted record (with a warning), as the records after it can't be located.
+ * Records in later segments are still applied; each holds the whole entry and is newer
+ * than the skipped ones, so only the updates in the skipped part of the segment are lost
+ * (stopping the replay instead would lose all updates after it, too).
+ * If the log contains {@value #COMPACT_RATIO} times more records than entries, it is compacted.
+ * Appended records survive a crash of the JVM, they are forced to disk when a segment is full
+ * and on {@link #shutdown() shutdown}.
+ * <br />
+ * One instance is shared by all threads of the crawler, {@link #close() close} does nothing.
+ * Queries may contain no wildcards except for {@code limit(null)} and may not
+ * be ordered except for {@code sourceFirst()} and {@code byPriority()}.
+ * Host names are mapped to IDs by the supplied {@link HostMapper}.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class LogFrontierStore implements FrontierStore {
+
+    private static final String SEGMENT_PREFIX = "frontier-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SEGMENT_NAME_FORMAT = SEGMENT_PREFIX + "%06d" + SEGMENT_SUFFIX;
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final int COMPACT_RATIO = 2;
+    private static final int COMPACT_MIN_RECORDS = 10000;
+    private static final byte RECORD_ENTRY = 1;
+    private static final byte RECORD_ENTRY_PRIORITY = 2;
+    private static final byte RECORD_ENTRY_CHANGES = 3;
+    private final File dir;
+    private final HostMapper hostMapper;
+    // state, guarded by this
+    private final Map<Integer, Record> records = new HashMap<Integer, Record>();
+    private final Map<String, Record> byPath = new HashMap<String, Record>();
+    private final Map<Integer, Map<String, TreeSet<Record>>> dueIndex = new HashMap<Integer, Map<String, TreeSet<Record>>>();
+    private final Map<Integer, TreeSet<Record>> priorityIndex = new HashMap<Integer, TreeSet<Record>>();
+    private final Map<Integer, Record> locked = new LinkedHashMap<Integer, Record>();
+    private int nextId = 1;
+    private long logRecords = 0;
+    // log
+    private int segmentNumber = 0;
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * State of an URL entry.
+     */
+    private static class Record {
+
+        private int id;
+        private int hostId;
+        private String path;
+        private int lastVisited;
+        private int visitCount;
+        private int updateFreq;
+        private boolean entity;
+        private String pattern;
+        private boolean working;
+        private short score;
+        private String etag;
+        private String lastModified;
+        private String digest;
+        private long simHash;
+        private int inlinks;
+        private float yield;
+        private int priority;
+        private int changeCount;
+        private int observedTime;
+
+        /**
+         * Returns the time (in seconds) when the URL needs updating.
+         */
+        private long due() {
+            return (long) lastVisited + updateFreq;
+        }
+    }
+    private static final Comparator<Record> DUE_ORDER = new Comparator<Record>() {
+
+        @Override
+        public int compare(Record r1, Record r2) {
+            long diff = r1.due() - r2.due();
+            return diff < 0 ? -1 : (diff > 0 ? 1 : (r1.id < r2.id ? -1 : (r1.id > r2.id ? 1 : 0)));
+        }
+    };
+    private static final Comparator<Record> PRIORITY_ORDER = new Comparator<Record>() {
+
+        @Override
+        public int compare(Record r1, Record r2) {
+            return r1.priority < r2.priority ? -1 : (r1.priority > r2.priority ? 1 : (r1.id < r2.id ? -1 : (r1.id > r2.id ? 1 : 0)));
+        }
+    };
+
+    /**
+     * Query conditions, evaluated against the entries in memory.
+     */
+    private static class Criteria implements QueryBuilder {
+
+        private Integer hostId;
+        private String pattern;
+        private Boolean entity;
+        private Boolean working;
+        private Long now;
+        private boolean notLocked = false;
+        private boolean lockedOnly = false;
+        private boolean sourceFirst = false;
+        private boolean byPriority = false;
+        private Integer limit;
+        private String unsupported;
+
+        @Override
+        public QueryBuilder locked() {
+            lockedOnly = true;
+            return this;
+        }
+
+        @Override
+        public WhereClause notLocked() {
+            notLocked = true;
+            return this;
+        }
+
+        @Override
+        public WhereClause current() {
+            now = System.currentTimeMillis() / 1000;
+            return this;
+        }
+
+        @Override
+        public WhereClause forHost(Integer hostId) {
+            if (hostId == null) {
+                unsupported = "host wildcard";
+            }
+            this.hostId = hostId;
+            return this;
+        }
+
+        @Override
+        public WhereClause forPattern(String pattern) {
+            if (pattern == null) {
+                unsupported = "pattern wildcard";
+            }
+            this.pattern = pattern;
+            return this;
+        }
+
+        @Override
+        public WhereClause entity(Boolean entity) {
+            if (entity == null) {
+                unsupported = "entity wildcard";
+            }
+            this.entity = entity;
+            return this;
+        }
+
+        @Override
+        public WhereClause working(Boolean working) {
+            if (working == null) {
+                unsupported = "working wildcard";
+            }
+            this.working = working;
+            return this;
+        }
+
+        @Override
+        public LimitClause orderBy(String order) {
+            unsupported = "order by " + order;
+            return this;
+        }
+
+        @Override
+        public LimitClause sourceFirst() {
+            sourceFirst = true;
+            return this;
+        }
+
+        @Override
+        public LimitClause byPriority() {
+            byPriority = true;
+            return this;
+        }
+
+        @Override
+        public Query limit(Integer count) {
+            limit = count;
+            return this;
+        }
+
+        @Override
+        public Query getQuery() throws ConfigurationException {
+            if (unsupported != null) {
+                throw new ConfigurationException("Not supported by embedded frontier store: " + unsupported);
+            }
+            return this;
+        }
+
+        /**
+         * Indicates whether the query can be answered from the due index.
+         */
+        private boolean isIndexed() {
+            return Boolean.TRUE.equals(working) && notLocked && now != null && !lockedOnly;
+        }
+
+        private boolean matches(Record r, boolean isLocked) {
+            return (hostId == null || hostId == r.hostId)
+                    && (pattern == null || pattern.equals(r.pattern))
+                    && (entity == null || entity == r.entity)
+                    && (working == null || working == r.working)
+                    && (now == null || now > r.due())
+                    && (!notLocked || !isLocked)
+                    && (!lockedOnly || isLocked);
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, replays the log and compacts it, if needed.
+     * @param dir Directory of the log, created if it does not exist
+     * @param hostMapper Mapper of host names to IDs
+     * @throws IOException If the log can't be read or written
+     */
+    public LogFrontierStore(File dir, HostMapper hostMapper) throws IOException {
+        this.dir = dir;
+        this.hostMapper = hostMapper;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+        long start = System.currentTimeMillis();
+        File[] segments = listSegments();
+        for (File file : segments) {
+            replay(file);
+        }
+        if (segments.length > 0) {
+            segmentNumber = segmentNumber(segments[segments.length - 1]);
+        }
+        if (logRecords > COMPACT_MIN_RECORDS && logRecords > COMPACT_RATIO * records.size()) {
+            compact(segments);
+        } else if (segments.length > 0) {
+            openSegment(segments[segments.length - 1], true);
+        } else {
+            rollSegment();
+        }
+        Logger.getLogger(LogFrontierStore.class.getName()).log(Level.INFO, "Frontier store opened in {0} ms, {1} URLs", new Object[]{System.currentTimeMillis() - start, records.size()});
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="Log">
+    private File[] listSegments() {
+        File[] segments = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static int segmentNumber(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Maps the segment file for writing.
+     * @param append If true, positions the buffer after the last valid record
+     */
+    private void openSegment(File file, boolean append) throws IOException {
+        segmentFile = new RandomAccessFile(file, "rw");
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        if (append) {
+            while (readRecord(segment) != null) {
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment (if any) and starts a new one.
+     */
+    private void rollSegment() throws IOException {
+        closeSegment();
+        segmentNumber++;
+        openSegment(new File(dir, String.format(SEGMENT_NAME_FORMAT, segmentNumber)), false);
+    }
+
+    private void closeSegment() throws IOException {
+        if (segmentFile != null) {
+            segment.force();
+            segmentFile.close();
+            segmentFile = null;
+            segment = null;
+        }
+    }
+
+    /**
+     * Reads the segment and applies its records, up to the first one not valid.
+     */
+    private void replay(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            byte[] data;
+            while ((data = readRecord(buf)) != null) {
+                apply(data);
+                logRecords++;
+            }
+            // a segment normally ends with zero length
+            if (buf.remaining() >= 4 && buf.getInt(buf.position()) != 0) {
+                Logger.getLogger(LogFrontierStore.class.getName()).log(Level.WARNING, "Incomplete or corrupted record in segment {0} at offset {1}, skipping the rest of the segment", new Object[]{file, buf.position()});
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the next record from the buffer, leaves the position
+     * before the record if it is incomplete or corrupted.
+     * @return Data of the record, or null if there is no valid record
+     */
+    private byte[] readRecord(MappedByteBuffer buf) {
+        int start = buf.position();
+        try {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length > 0 && length <= buf.remaining()) {
+                byte[] data = new byte[length];
+                buf.get(data);
+                crc.reset();
+                crc.update(data, 0, length);
+                if ((int) crc.getValue() == checksum) {
+                    return data;
+                }
+            }
+        } catch (BufferUnderflowException ex) {
+            // end of segment
+        }
+        buf.position(start);
+        return null;
+    }
+
+    /**
+     * Decodes the record and puts the entry in memory.
+     */
+    private void apply(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte type = in.readByte();
+        if (type != RECORD_ENTRY && type != RECORD_ENTRY_PRIORITY && type != RECORD_ENTRY_CHANGES) {
+            return;
+        }
+        int id = in.readInt();
+        Record r = records.get(id);
+        if (r == null) {
+            r = new Record();
+            r.id = id;
+        } else {
+            unindex(r);
+        }
+        r.hostId = in.readInt();
+        r.path = in.readUTF();
+        r.lastVisited = in.readInt();
+        r.visitCount = in.readInt();
+        r.updateFreq = in.readInt();
+        r.entity = in.readBoolean();
+        r.pattern = readString(in);
+        r.working = in.readBoolean();
+        r.score = in.readShort();
+        r.etag = readString(in);
+        r.lastModified = readString(in);
+        r.digest = readString(in);
+        r.simHash = in.readLong();
+        if (type != RECORD_ENTRY) {
+            r.inlinks = in.readInt();
+            r.yield = in.readFloat();
+            r.priority = in.readInt();
+        } else {
+            r.priority = (int) Math.min(Integer.MAX_VALUE, r.due());
+        }
+        if (type == RECORD_ENTRY_CHANGES) {
+            r.changeCount = in.readInt();
+            r.observedTime = in.readInt();
+        }
+        records.put(id, r);
+        byPath.put(r.path, r);
+        index(r);
+        nextId = Math.max(nextId, id + 1);
+    }
+
+    /**
+     * Appends record of the entry to the log.
+     */
+    private void append(Record r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_ENTRY_CHANGES);
+        out.writeInt(r.id);
+        out.writeInt(r.hostId);
+        out.writeUTF(r.path);
+        out.writeInt(r.lastVisited);
+        out.writeInt(r.visitCount);
+        out.writeInt(r.updateFreq);
+        out.writeBoolean(r.entity);
+        writeString(out, r.pattern);
+        out.writeBoolean(r.working);
+        out.writeShort(r.score);
+        writeString(out, r.etag);
+        writeString(out, r.lastModified);
+        writeString(out, r.digest);
+        out.writeLong(r.simHash);
+        out.writeInt(r.inlinks);
+        out.writeFloat(r.yield);
+        out.writeInt(r.priority);
+        out.writeInt(r.changeCount);
+        out.writeInt(r.observedTime);
+        byte[] data = bytes.toByteArray();
+        // keep space for the terminating zero length
+        if (segment.remaining() < HEADER_SIZE + data.length + 4) {
+            rollSegment();
+        }
+        crc.reset();
+        crc.update(data, 0, data.length);
+        segment.putInt(data.length);
+        segment.putInt((int) crc.getValue());
+        segment.put(data);
+        segment.putInt(segment.position(), 0);
+        logRecords++;
+    }
+
+    /**
+     * Writes all entries to new segments and deletes the old ones.
+     * If interrupted, the old and new segments together still hold the valid state.
+     */
+    private void compact(File[] oldSegments) throws IOException {
+        rollSegment();
+        logRecords = 0;
+        for (Record r : records.values()) {
+            append(r);
+        }
+        segment.force();
+        for (File file : oldSegments) {
+            if (!file.delete()) {
+                Logger.getLogger(LogFrontierStore.class.getName()).log(Level.WARNING, "Can''t delete compacted segment {0}", file);
+            }
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="Index">
+    /**
+     * Adds the entry to the due and priority indexes, if it is working and not locked.
+     */
+    private void index(Record r) {
+        if (r.working && !locked.containsKey(r.id)) {
+            Map<String, TreeSet<Record>> hostIndex = dueIndex.get(r.hostId);
+            if (hostIndex == null) {
+                hostIndex = new HashMap<String, TreeSet<Record>>();
+                dueIndex.put(r.hostId, hostIndex);
+            }
+            TreeSet<Record> patternIndex = hostIndex.get(r.pattern);
+            if (patternIndex == null) {
+                patternIndex = new TreeSet<Record>(DUE_ORDER);
+                hostIndex.put(r.pattern, patternIndex);
+            }
+            patternIndex.add(r);
+            TreeSet<Record> hostPriorities = priorityIndex.get(r.hostId);
+            if (hostPriorities == null) {
+                hostPriorities = new TreeSet<Record>(PRIORITY_ORDER);
+                priorityIndex.put(r.hostId, hostPriorities);
+            }
+            hostPriorities.add(r);
+        }
+    }
+
+    /**
+     * Removes the entry from the indexes. Must be called before changing the indexed fields.
+     */
+    private void unindex(Record r) {
+        Map<String, TreeSet<Record>> hostIndex = dueIndex.get(r.hostId);
+        if (hostIndex != null) {
+            TreeSet<Record> patternIndex = hostIndex.get(r.pattern);
+            if (patternIndex != null) {
+                patternIndex.remove(r);
+            }
+        }
+        TreeSet<Record> hostPriorities = priorityIndex.get(r.hostId);
+        if (hostPriorities != null) {
+            hostPriorities.remove(r);
+        }
+    }
+
+    /**
+     * Returns entries matching the query, up to the limit.
+     */
+    private List<Record> find(Criteria c, int limit) {
+        List<Record> found = new ArrayList<Record>();
+        if (limit <= 0) {
+            return found;
+        }
+        if (c.lockedOnly) {
+            for (Record r : locked.values()) {
+                if (c.matches(r, true) && found.add(r) && found.size() == limit) {
+                    break;
+                }
+            }
+        } else if (c.isIndexed() && c.byPriority && c.hostId != null) {
+            TreeSet<Record> hostPriorities = priorityIndex.get(c.hostId);
+            if (hostPriorities != null) {
+                // the rank is never later than the due time, so stop at the first rank not current
+                Iterator<Record> it = hostPriorities.iterator();
+                while (it.hasNext() && found.size() < limit) {
+                    Record r = it.next();
+                    if (r.priority >= c.now) {
+                        break;
+                    }
+                    if (c.matches(r, false)) {
+                        found.add(r);
+                    }
+                }
+            }
+        } else if (c.isIndexed()) {
+            Collection<Map<String, TreeSet<Record>>> hostIndexes = c.hostId != null
+                    ? Collections.singleton(dueIndex.get(c.hostId))
+                    : dueIndex.values();
+            for (Map<String, TreeSet<Record>> hostIndex : hostIndexes) {
+                if (hostIndex == null) {
+                    continue;
+                }
+                Collection<TreeSet<Record>> patternIndexes = c.pattern != null
+                        ? Collections.singleton(hostIndex.get(c.pattern))
+                        : hostIndex.values();
+                for (TreeSet<Record> patternIndex : patternIndexes) {
+                    if (patternIndex == null) {
+                        continue;
+                    }
+                    // ordered by due time, so stop at the first one not current
+                    Iterator<Record> it = patternIndex.iterator();
+                    while (it.hasNext() && found.size() < limit) {
+                        Record r = it.next();
+                        if (r.due() >= c.now) {
+                            break;
+                        }
+                        if (c.matches(r, false)) {
+                            found.add(r);
+                        }
+                    }
+                }
+            }
+        } else {
+            for (Record r : records.values()) {
+                if (c.matches(r, locked.containsKey(r.id)) && found.add(r) && found.size() == limit) {
+                    break;
+                }
+            }
+        }
+        if (c.sourceFirst) {
+            Collections.sort(found, new Comparator<Record>() {
+
+                @Override
+                public int compare(Record r1, Record r2) {
+                    return r1.entity == r2.entity ? 0 : (r1.entity ? 1 : -1);
+                }
+            });
+        } else if (c.byPriority) {
+            Collections.sort(found, PRIORITY_ORDER);
+        }
+        return found;
+    }
+    //</editor-fold>
+
+    private URLEntry toEntry(Record r) {
+        URLEntry entry = new URLEntry(r.id, hostMapper.getHostName(r.hostId), r.path, new Date(r.lastVisited * 1000L),
+                r.visitCount, r.updateFreq, r.entity, r.pattern, r.working, r.score);
+        entry.setEtag(r.etag);
+        entry.setLastModified(r.lastModified);
+        entry.setDigest(r.digest);
+        entry.setSimHash(r.simHash);
+        entry.setInlinks(r.inlinks);
+        entry.setYield(r.yield);
+        entry.setPriority(r.priority);
+        entry.setChangeCount(r.changeCount);
+        entry.setObservedTime(r.observedTime);
+        return entry;
+    }
+
+    private Collection<URLEntry> toEntries(Collection<Record> found) {
+        Collection<URLEntry> entries = new ArrayList<URLEntry>(found.size());
+        for (Record r : found) {
+            entries.add(toEntry(r));
+        }
+        return entries;
+    }
+
+    @Override
+    public WhereClause getQueryForHost(int hostId) {
+        return new Criteria().forHost(hostId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The value of {@code limit(null)} is the first parameter.
+     */
+    @Override
+    public synchronized Collection<URLEntry> fetchEntries(Query q, int ownerId, Object... params) {
+        Criteria c = (Criteria) q;
+        int limit = c.limit != null ? c.limit : (params.length > 0 ? ((Number) params[0]).intValue() : Integer.MAX_VALUE);
+        List<Record> found = find(c, limit);
+        if (!c.lockedOnly) {
+            for (Record r : found) {
+                unindex(r);
+                locked.put(r.id, r);
+            }
+        }
+        return toEntries(found);
+    }
+
+    @Override
+    public synchronized void returnEntry(URLEntry entry) {
+        updateEntry(entry);
+        unlockUrl(entry);
+    }
+
+    @Override
+    public boolean addEntry(URLEntry entry) {
+        return addEntries(Collections.singletonList(entry)) > 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * As in DB, the entries are added as not yet visited and working.
+     */
+    @Override
+    public synchronized int addEntries(Collection<URLEntry> entries) {
+        int added = 0;
+        Map<String, Integer> present = new HashMap<String, Integer>();
+        try {
+            for (URLEntry entry : entries) {
+                if (byPath.containsKey(entry.getPath())) {
+                    present.put(entry.getPath(), Math.max(1, entry.getInlinks()));
+                } else {
+                    Record r = new Record();
+                    r.id = nextId++;
+                    r.hostId = hostMapper.getHostId(entry.getHost());
+                    r.path = entry.getPath();
+                    r.updateFreq = entry.getUpdateFreq();
+                    r.entity = entry.isEntity();
+                    r.pattern = entry.getPattern();
+                    r.working = true;
+                    r.inlinks = entry.getInlinks();
+                    r.priority = entry.getPriority();
+                    append(r);
+                    records.put(r.id, r);
+                    byPath.put(r.path, r);
+                    index(r);
+                    added++;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(LogFrontierStore.class.getName()).log(Level.SEVERE, "Can''t write frontier log", ex);
+        }
+        if (!present.isEmpty()) {
+            addInlinks(present);
+        }
+        return added;
+    }
+
+    @Override
+    public synchronized void updateEntry(URLEntry entry) {
+        Record r = records.get(entry.getId());
+        if (r == null) {
+            Logger.getLogger(LogFrontierStore.class.getName()).log(Level.WARNING, "Unknown URL entry: {0}", entry.getId());
+            return;
+        }
+        unindex(r);
+        r.lastVisited = (int) (entry.getLastVisited().getTime() / 1000);
+        r.visitCount = entry.getVisitCount();
+        r.updateFreq = entry.getUpdateFreq();
+        r.entity = entry.isEntity();
+        r.pattern = entry.getPattern();
+        r.working = entry.isWorking();
+        r.score = entry.getScore();
+        r.etag = entry.getEtag();
+        r.lastModified = entry.getLastModified();
+        r.digest = entry.getDigest();
+        r.simHash = entry.getSimHash();
+        r.yield = entry.getYield();
+        r.priority = entry.getPriority();
+        r.changeCount = entry.getChangeCount();
+        r.observedTime = entry.getObservedTime();
+        index(r);
+        try {
+            append(r);
+        } catch (IOException ex) {
+            Logger.getLogger(LogFrontierStore.class.getName()).log(Level.SEVERE, "Can''t write frontier log", ex);
+        }
+    }
+
+    @Override
+    public synchronized void addInlinks(Map<String, Integer> paths) {
+        try {
+            for (Map.Entry<String, Integer> path : paths.entrySet()) {
+                Record r = byPath.get(path.getKey());
+                if (r != null) {
+                    unindex(r);
+                    r.priority -= PriorityScore.inlinkBoost(r.updateFreq, r.inlinks, path.getValue());
+                    r.inlinks += path.getValue();
+                    index(r);
+                    append(r);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(LogFrontierStore.class.getName()).log(Level.SEVERE, "Can''t write frontier log", ex);
+        }
+    }
+
+    @Override
+    public boolean unlockUrl(URLEntry entry) {
+        return unlockUrls(Collections.singletonList(entry));
+    }
+
+    @Override
+    public synchronized boolean unlockUrls(Collection<URLEntry> entries) {
+        for (URLEntry entry : entries) {
+            Record r = locked.remove(entry.getId());
+            if (r != null) {
+                index(r);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean unlockAll() {
+        Collection<Record> unlocked = new ArrayList<Record>(locked.values());
+        locked.clear();
+        for (Record r : unlocked) {
+            index(r);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized Collection<URLEntry> listLocked() {
+        return toEntries(locked.values());
+    }
+
+    @Override
+    public synchronized Date getNextDueTime() {
+        Long due = null;
+        for (Map<String, TreeSet<Record>> hostIndex : dueIndex.values()) {
+            for (TreeSet<Record> patternIndex : hostIndex.values()) {
+                if (!patternIndex.isEmpty() && (due == null || patternIndex.first().due() < due)) {
+                    due = patternIndex.first().due();
+                }
+            }
+        }
+        for (Record r : locked.values()) {
+            if (r.working && (due == null || r.due() < due)) {
+                due = r.due();
+            }
+        }
+        return due != null ? new Date(due * 1000) : null;
+    }
+
+    @Override
+    public synchronized long countEntries() {
+        return records.size();
+    }
+
+    @Override
+    public synchronized double getRevisitRate() {
+        double rate = 0;
+        for (Record r : records.values()) {
+            if (r.working && r.updateFreq > 0) {
+                rate += (double) URLEntry.DAY_SEC / r.updateFreq;
+            }
+        }
+        return rate;
+    }
+
+    @Override
+    public synchronized boolean addPathsTo(BloomFilter filter) {
+        for (String path : byPath.keySet()) {
+            filter.add(path);
+        }
+        return true;
+    }
+
+    /**
+     * Does nothing, returned entries are written immediately.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Does nothing, the instance is shared. The store is closed by {@link #shutdown()}.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Forces the log to disk and closes it. The store can't be used afterwards.
+     */
+    public synchronized void shutdown() {
+        try {
+            closeSegment();
+        } catch (IOException ex) {
+            Logger.getLogger(LogFrontierStore.class.getName()).log(Level.SEVERE, "Can''t close frontier log", ex);
+        }
+    }
+}
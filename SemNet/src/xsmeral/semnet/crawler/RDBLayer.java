@@ -8,9 +8,14 @@ import java.sql.SQLException;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import xsmeral.pipe.stats.Stats;
 
 /**
  * Relational DB Layer for Crawler.
+ * <br />
+ * Connections are pooled, see {@link #getConnection()}.
+ * Users sharing the pool (e.g. jobs) can get their own {@linkplain #share(int) views}
+ * of the layer, limited in the number of connections they use at once.
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  */
 
@@ -19,12 +24,27 @@ public class RDBLayer {
 
     @XStreamOmitField
     private static final boolean DEF_AUTO_COMMIT = true;
+    @XStreamOmitField
+    private static final int DEF_POOL_SIZE = 64;
+    @XStreamOmitField
+    private static final int DEF_POOL_TIMEOUT = 60;
+    @XStreamOmitField
+    private static final int DEF_STATEMENT_CACHE_SIZE = 32;
     private Class driver;
     private String url;
     private String user;
     private String password;
     private String schema;
     private boolean autoCommit;
+    private int poolSize;
+    private int poolTimeout;
+    private int statementCacheSize;
+    @XStreamOmitField
+    private transient ConnectionPool pool;
+    @XStreamOmitField
+    private transient ConnectionPool.Client client;
+    @XStreamOmitField
+    private transient int connectionQuota;
 
     /**
      * Constructs the DB layer with parameters specified in the given Properties instance.
@@ -37,6 +57,9 @@ public class RDBLayer {
      *  <li><tt>password</tt></li>
      *  <li><tt>schema</tt> - the schema to use for all operations</li>
      *  <li><tt>autoCommit</tt> - (optional) indicates, whether all operations should be automatically commited</li>
+     *  <li><tt>poolSize</tt> - (optional) maximum number of open connections, {@value #DEF_POOL_SIZE} by default</li>
+     *  <li><tt>poolTimeout</tt> - (optional) maximum time to wait for a connection in seconds, {@value #DEF_POOL_TIMEOUT} by default</li>
+     *  <li><tt>statementCacheSize</tt> - (optional) maximum number of cached statements per connection, {@value #DEF_STATEMENT_CACHE_SIZE} by default</li>
      * </ul>
      */
     public RDBLayer(Properties dbProps) throws ConfigurationException {
@@ -47,7 +70,13 @@ public class RDBLayer {
                 dbProps.getProperty("password"),
                 dbProps.getProperty("schema"),
                 dbProps.getProperty("autoCommit") == null ? DEF_AUTO_COMMIT : Boolean.parseBoolean(dbProps.getProperty("autoCommit")));
-
+        try {
+            this.poolSize = Integer.parseInt(dbProps.getProperty("poolSize", "0"));
+            this.poolTimeout = Integer.parseInt(dbProps.getProperty("poolTimeout", "0"));
+            this.statementCacheSize = Integer.parseInt(dbProps.getProperty("statementCacheSize", "0"));
+        } catch (NumberFormatException ex) {
+            throw new ConfigurationException("Bad DB pool configuration", ex);
+        }
     }
 
     public RDBLayer(String dbDriverClassName, String dbURL, String dbUser, String dbPassword, String dbSchema, boolean autoCommit) throws ConfigurationException {
@@ -67,6 +96,35 @@ public class RDBLayer {
         }
     }
 
+    /**
+     * Creates a view of the shared layer, see {@link #share(int)}.
+     */
+    private RDBLayer(RDBLayer shared, int connectionQuota) {
+        this.driver = shared.driver;
+        this.url = shared.url;
+        this.user = shared.user;
+        this.password = shared.password;
+        this.schema = shared.schema;
+        this.autoCommit = shared.autoCommit;
+        this.poolSize = shared.poolSize;
+        this.poolTimeout = shared.poolTimeout;
+        this.statementCacheSize = shared.statementCacheSize;
+        this.pool = shared.getPool();
+        this.connectionQuota = connectionQuota;
+    }
+
+    /**
+     * Returns a view of this layer that shares its connection pool,
+     * but has its own limit of connections in use and its own
+     * {@linkplain #setStats(xsmeral.pipe.stats.Stats) stats}.
+     * The view is equal to this layer.
+     * @param connectionQuota Maximum number of connections in use through the view
+     * at the same time, 0 for no limit (other than the pool size)
+     */
+    public RDBLayer share(int connectionQuota) {
+        return new RDBLayer(this, connectionQuota);
+    }
+
     public boolean isAutoCommit() {
         return autoCommit;
     }
@@ -92,18 +150,84 @@ public class RDBLayer {
     }
 
     /**
-     * Returns a new connection to the database.
-     * After getting a connection, the caller is responsible to close it as well.
-     * This class doesn't take care of the connections after creation.
-     * @return A new connection
-     * @throws SQLException If the driver manager fails to return a connection
+     * Returns maximum number of open connections.
+     */
+    public int getPoolSize() {
+        return poolSize > 0 ? poolSize : DEF_POOL_SIZE;
+    }
+
+    /**
+     * Returns maximum time to wait for a connection, in seconds.
+     */
+    public int getPoolTimeout() {
+        return poolTimeout > 0 ? poolTimeout : DEF_POOL_TIMEOUT;
+    }
+
+    /**
+     * Returns maximum number of cached statements per connection.
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize > 0 ? statementCacheSize : DEF_STATEMENT_CACHE_SIZE;
+    }
+
+    /**
+     * Returns a connection to the database from the pool.
+     * After getting a connection, the caller is responsible to close it as well,
+     * closing returns it to the pool. Statements prepared by
+     * {@link Connection#prepareStatement(java.lang.String) prepareStatement(sql)}
+     * are cached by the connection and reused after they are closed.
+     * <br />
+     * The pool is bounded by {@link #getPoolSize() pool size}, the pooled
+     * connections are shared by all users of this layer. {@link URLManager}s
+     * borrow a connection for each operation, so the size should cover the threads
+     * accessing the DB at once, not the managers.
+     * If this layer is a {@linkplain #share(int) view} with a connection quota,
+     * the caller also waits while the quota is used up.
+     * @return A connection
+     * @throws SQLException If the driver manager fails to return a connection,
+     * or if all connections are in use for longer than the {@link #getPoolTimeout() pool timeout}
      */
     public Connection getConnection() throws SQLException {
+        return getPool().borrow(getClient());
+    }
+
+    /**
+     * Opens a new physical connection to the database.
+     */
+    Connection openConnection() throws SQLException {
         Connection dbConn = DriverManager.getConnection(url, user, password);
         dbConn.setAutoCommit(autoCommit);
         return dbConn;
     }
 
+    /**
+     * Starts reporting stats of connections used through this layer to the supplied stats group.
+     */
+    public void setStats(Stats stats) {
+        getClient().setStats(stats);
+    }
+
+    /**
+     * Closes connections that are not in use.
+     */
+    public void closeIdleConnections() {
+        getPool().closeIdle();
+    }
+
+    private synchronized ConnectionPool getPool() {
+        if (pool == null) {
+            pool = new ConnectionPool(this, getPoolSize(), getPoolTimeout(), getStatementCacheSize());
+        }
+        return pool;
+    }
+
+    private synchronized ConnectionPool.Client getClient() {
+        if (client == null) {
+            client = getPool().newClient(connectionQuota);
+        }
+        return client;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
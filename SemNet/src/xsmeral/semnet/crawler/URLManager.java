@@ -5,152 +5,111 @@ import xsmeral.semnet.crawler.model.URLEntry;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import xsmeral.semnet.crawler.util.BloomFilter;
+import xsmeral.semnet.crawler.util.PriorityScore;
 
 /**
  * URL Manager for {@link HTMLCrawler}.
- * Responsible for persistence of URLs. Contains methods for querying, locking,
+ * Responsible for persistence of URLs in relational DB. Contains methods for querying, locking,
  * updating, adding.
+ * Each operation borrows a connection from the pool of the DB layer and returns it
+ * when done, so an instance holds no connection between operations and can be used
+ * by multiple threads. The statements are cached by the pooled connections.
+ * <br />
+ * Returned entries (and in-link counts) can be written behind (see {@link #setWriteBehind(int, long) setWriteBehind}),
+ * they are buffered and written in one transaction, when the buffer is full or
+ * the oldest entry has waited for the flush interval, whichever comes first.
+ * The buffer is written when the manager is {@linkplain #flush() flushed} or closed.
+ * Entries lost in a crash remain leased until the lease expires, then they are visited again.
  *
  * @see HTMLCrawler
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  */
-public class URLManager {
+public class URLManager implements FrontierStore {
 
     //private static final String GET_FOR_HOST = "SELECT urlid, hostid, path, last_visited, visit_count, update_freq, entity, pattern, working, score FROM {SCHEMA}url WHERE ? - update_freq > last_visited AND hostid = ? AND NOT EXISTS(SELECT urlid FROM {SCHEMA}url_lock WHERE url_lock.urlid=url.urlid) LIMIT ?;";
-    private static final String UPDATE_ENTRY = "UPDATE {SCHEMA}url SET last_visited=?, visit_count=?, update_freq=?, entity=?, pattern=?, working=?, score=? WHERE urlid=?";
-    private static final String ADD_ENTRY = "INSERT INTO {SCHEMA}url (hostid, path, last_visited, visit_count, update_freq, entity, pattern, working, score) SELECT ?, ?, 0, 0, ?, ?, ?, true, 0 WHERE NOT EXISTS (SELECT * FROM {SCHEMA}url WHERE path=?)";// conditional insert = preserves uniqueness
-    private static final String LOCK_URL = "INSERT INTO {SCHEMA}url_lock (owner, urlid, time) VALUES (?, ?, localtimestamp)";
-    private static final String UNLOCK_URL = "DELETE FROM {SCHEMA}url_lock ";
+    private static final String UPDATE_ENTRY = "UPDATE {SCHEMA}url SET last_visited=?, visit_count=?, update_freq=?, entity=?, pattern=?, working=?, score=?, etag=?, last_modified=?, digest=?, simhash=?, yield=?, priority=?, change_count=?, observed_time=? WHERE urlid=?";
+    private static final String RETURN_ENTRY = "UPDATE {SCHEMA}url SET last_visited=?, visit_count=?, update_freq=?, entity=?, pattern=?, working=?, score=?, etag=?, last_modified=?, digest=?, simhash=?, yield=?, priority=?, change_count=?, observed_time=?, lease_owner=NULL, lease_until=NULL WHERE urlid=?";
+    private static final String ADD_ENTRY = "INSERT INTO {SCHEMA}url (hostid, path, last_visited, visit_count, update_freq, entity, pattern, working, score, inlinks, priority) SELECT ?, ?, 0, 0, ?, ?, ?, true, 0, ?, ? WHERE NOT EXISTS (SELECT * FROM {SCHEMA}url WHERE path=?)";// conditional insert = preserves uniqueness
+    private static final String ADD_INLINKS = "UPDATE {SCHEMA}url SET inlinks = inlinks + ?, priority = priority - round(update_freq * " + PriorityScore.INLINKS + " * (ln(inlinks + 1 + ?) - ln(inlinks + 1))) WHERE path = ?";
+    private static final String LOCK_URL = "UPDATE {SCHEMA}url SET lease_owner=?, lease_until=extract(epoch FROM now()) + ? WHERE urlid=?";
+    private static final String UNLOCK_URL = "UPDATE {SCHEMA}url SET lease_owner=NULL, lease_until=NULL ";
     private static final String UNLOCK_CONDITION = " WHERE urlid=?";
-    //private final PreparedStatement getEntry;
-    private final PreparedStatement updEntry;
-    private final PreparedStatement addEntry;
-    private final PreparedStatement lockUrl;
-    private final PreparedStatement unlockUrl;
-    private final PreparedStatement unlockAll;
-    private PreparedStatement listLocked;
-    private PreparedStatement listBroken;
-    //
-    private final RDBLayer dbLayer;
-    private final HostMapper hostMapper;
-    private Connection dbConn;
-
-    //<editor-fold desc="Query Builder">
-    // Polymorphic Builder
-    /**
-     * Builder of queries.
-     */
-    public interface QueryBuilder extends WhereClause {
-
-        /**
-         * Appends condition for locked URLs.
-         */
-        public QueryBuilder locked();
-    }
-
-    /**
-     * The {@code WHERE} clause of SQL statement.
-     */
-    public interface WhereClause extends OrderClause {
-
-        /**
-         * Appends condition for URLs not locked.
-         */
-        public WhereClause notLocked();
-
-        /**
-         * Appends condition for URLs that need updating (where
-         * <tt>[current_time]-update_freq &gt; last_visited</tt>).
-         */
-        public WhereClause current();
-
-        /**
-         * Appends condition for the given host.
-         * @param hostId If null, a wildcard (?) is used
-         */
-        public WhereClause forHost(Integer hostId);
-
-        /**
-         * Appends condition for given pattern.
-         * @param pattern If null, a wildcard (?) is used
-         */
-        public WhereClause forPattern(String pattern);
-
-        /**
-         * Appends condition for URLs that represent entities/sources.
-         * @param entity If null, a wildcard (?) is used
-         */
-        public WhereClause entity(Boolean entity);
-
-        /**
-         * Appends condition for URLs that are (not) working.
-         * @param working If null, a wildcard (?) is used
-         */
-        public WhereClause working(Boolean working);
-    }
-
+    private static final String UNLOCK_ALL_CONDITION = " WHERE lease_owner IS NOT NULL";
+    private static final String NEXT_DUE = "SELECT min(last_visited + update_freq) AS due FROM {SCHEMA}url WHERE working = true";
+    private static final String COUNT_ENTRIES = "SELECT count(*) AS total FROM {SCHEMA}url";
+    private static final String REVISIT_RATE = "SELECT sum(" + URLEntry.DAY_SEC + ".0 / update_freq) AS rate FROM {SCHEMA}url WHERE working = true AND update_freq > 0";
+    private static final String LIST_PATHS = "SELECT path FROM {SCHEMA}url";
+    private static final int PATH_FETCH_SIZE = 10000;
+    private static final int LINK_BATCH_SIZE = 1000;
     /**
-     * The {@code ORDER BY} clause of SQL statement.
+     * Default time (in seconds) for which fetched URLs are leased.
      */
-    public interface OrderClause extends LimitClause {
-
-        /**
-         * Appends {@code ORDER BY [order]}.
-         * @param order The full SQL-equivalent argument to {@code ORDER BY} clause.
-         * If null, a wildcard (?) is used.
-         */
-        public LimitClause orderBy(String order);
-
-        /**
-         * Orders by {@code entity} field, so that source URLs are returned first.
-         */
-        public LimitClause sourceFirst();
-    }
-
+    public static final int DEF_LEASE_TIME = 3600;
     /**
-     * The {@code LIMIT} clause of SQL statement.
+     * Default time (in milliseconds) after which returned entries are written.
      */
-    public interface LimitClause extends Query {
+    public static final long DEF_FLUSH_INTERVAL = 2000;
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
 
-        /**
-         * Appends {@code LIMIT} with the given argument.
-         * @param count If null, a wildcard (?) is used.
-         */
-        public Query limit(Integer count);
-    }
-
-    /**
-     * Complete SQL query.
-     */
-    public interface Query {
-
-        /**
-         * Constructs the query. Must be called before {@link #getStatement() getStatement()}.
-         */
-        public Query getQuery() throws ConfigurationException;
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "URLManager-flusher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    //
+    private final RDBLayer dbLayer;
+    private final HostMapper hostMapper;
+    private int leaseTime = DEF_LEASE_TIME;
+    private final List<URLEntry> pending = new ArrayList<URLEntry>();
+    private final Map<String, Integer> pendingLinks = new HashMap<String, Integer>();
+    private int batchSize = 1;
+    private long flushInterval = DEF_FLUSH_INTERVAL;
+    private ScheduledFuture<?> flushTask;
+    private static final Comparator<URLEntry> PRIORITY_ORDER = new Comparator<URLEntry>() {
 
-        /**
-         * Returns the constructed SQL prepared statement. The 
-         * {@link #getQuery() getQuery()} must be called before calling this method.
-         */
-        public PreparedStatement getStatement();
-    }
+        @Override
+        public int compare(URLEntry e1, URLEntry e2) {
+            return e1.getPriority() < e2.getPriority() ? -1 : (e1.getPriority() > e2.getPriority() ? 1 : 0);
+        }
+    };
 
+    //<editor-fold desc="Query Builder">
     /**
      * Implementation of QueryBuilder for URL entries.
+     * A query for URLs not locked is built as a claim - a single statement,
+     * that leases the selected URLs and returns them. URLs being claimed by
+     * another thread at the same time are skipped ({@code FOR UPDATE SKIP LOCKED}).
+     * The first two parameters of a claim are the owner and the lease time (in seconds).
      */
     public class QueryBuilderImpl implements QueryBuilder {
 
-        private static final String SELECT = "SELECT urlid, hostid, path, last_visited, visit_count, update_freq, entity, pattern, working, score FROM {SCHEMA}url ";
-        private static final String LOCKED = " NATURAL JOIN {SCHEMA}url_lock ";
-        private static final String NOT_LOCKED = " NOT EXISTS(SELECT urlid FROM {SCHEMA}url_lock WHERE url_lock.urlid=url.urlid) ";
-        private static final String CURRENT = " {now} > last_visited + update_freq";
+        private static final String COLUMNS = "urlid, hostid, path, last_visited, visit_count, update_freq, entity, pattern, working, score, etag, last_modified, digest, simhash, inlinks, yield, priority, change_count, observed_time";
+        private static final String SELECT = "SELECT " + COLUMNS + " FROM {SCHEMA}url ";
+        private static final String CLAIM = "UPDATE {SCHEMA}url SET lease_owner = ?, lease_until = extract(epoch FROM now()) + ? WHERE urlid IN (SELECT urlid FROM {SCHEMA}url {query} FOR UPDATE SKIP LOCKED) RETURNING " + COLUMNS;
+        private static final String LOCKED = " lease_owner IS NOT NULL ";
+        private static final String NOT_LOCKED = " lease_owner IS NULL OR lease_until < extract(epoch FROM now()) ";
+        // the rank is never later than the due time, the second condition bounds index scans by priority
+        private static final String CURRENT = " {now} > last_visited + update_freq AND {now} > priority";
         private static final String FOR_HOST = " hostid = {id} ";
         private static final String FOR_PATTERN = " pattern = {pattern} ";
         private static final String ENTITY = " entity = {entity} ";
@@ -160,18 +119,13 @@ public class URLManager {
         private static final String WHERE = " WHERE ";
         private static final String AND = " AND ";
         //
-        private StringBuilder q = new StringBuilder(SELECT.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        private PreparedStatement pst;
+        private StringBuilder q = new StringBuilder();
+        private String sql;
         private boolean isWhere = false;
+        private boolean claim = false;
+        private boolean byPriority = false;
         //
 
-        /**
-         * Replaces <tt>{SCHEMA}</tt> wildcards with schema used by this URLManager.
-         */
-        private String withSchema(String clause) {
-            return clause.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema());
-        }
-
         /**
          * Creates {@code WHERE} clause. Appends either {@code WHERE}, if called
          * the first time, otherwis appends {@code AND}.
@@ -188,13 +142,14 @@ public class URLManager {
 
         @Override
         public QueryBuilder locked() {
-            q.append(withSchema(LOCKED));
+            where(LOCKED);
             return this;
         }
 
         @Override
         public WhereClause notLocked() {
-            where(withSchema(NOT_LOCKED));
+            where(NOT_LOCKED);
+            claim = true;
             return this;
         }
 
@@ -230,13 +185,20 @@ public class URLManager {
 
         @Override
         public LimitClause orderBy(String order) {
-            where(ORDER.replaceAll("\\{order\\}", (order == null ? "?" : order.toString())));
+            q.append(ORDER.replaceAll("\\{order\\}", (order == null ? "?" : order.toString())));
             return this;
         }
 
         @Override
         public LimitClause sourceFirst() {
-            where(ORDER.replaceAll("\\{order\\}", "entity"));
+            q.append(ORDER.replaceAll("\\{order\\}", "entity"));
+            return this;
+        }
+
+        @Override
+        public LimitClause byPriority() {
+            q.append(ORDER.replaceAll("\\{order\\}", "priority"));
+            byPriority = true;
             return this;
         }
 
@@ -246,27 +208,54 @@ public class URLManager {
             return this;
         }
 
+        /**
+         * {@inheritDoc}
+         * The statement is prepared once to check it.
+         */
         @Override
         public Query getQuery() throws ConfigurationException {
-            try {
-                if (pst == null) {
-                    pst = dbConn.prepareStatement(q.toString());
+            if (sql == null) {
+                String query = claim
+                        ? withSchema(CLAIM).replace("{query}", q)
+                        : withSchema(SELECT) + q;
+                Connection conn = null;
+                try {
+                    conn = connect();
+                    conn.prepareStatement(query).close();
+                } catch (SQLException ex) {
+                    throw new ConfigurationException("Not a valid statement: " + ex.getMessage());
+                } finally {
+                    close(conn);
                 }
-                return this;
-            } catch (SQLException ex) {
-                throw new ConfigurationException("Not a valid statement: " + ex.getMessage());
+                sql = query;
             }
+            return this;
         }
 
-        @Override
-        public PreparedStatement getStatement() {
-            return pst;
+        /**
+         * Returns the constructed SQL. The
+         * {@link #getQuery() getQuery()} must be called before calling this method.
+         */
+        public String getSQL() {
+            return sql;
+        }
+
+        /**
+         * Indicates whether the query is a claim (leases the returned URLs).
+         */
+        public boolean isClaim() {
+            return claim;
+        }
+
+        /**
+         * Indicates whether the entries are ordered by priority.
+         */
+        public boolean isByPriority() {
+            return byPriority;
         }
     }
 
-    /**
-     * Returns a Query for host with given ID.
-     */
+    @Override
     public WhereClause getQueryForHost(int hostId) {
         return new QueryBuilderImpl().forHost(hostId);
     }
@@ -274,56 +263,242 @@ public class URLManager {
 
     /**
      * Creates an instance for the specified DB layer.
+     * Checks the connection to DB by preparing the statements.
      * @throws SQLException If an error occurs when connecting to DB or preparing statements.
      */
     public URLManager(RDBLayer db) throws SQLException {
         dbLayer = db;
         hostMapper = HostManager.getMapper(dbLayer);
-        dbConn = dbLayer.getConnection();
-        dbConn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-        //
-        //getEntry = dbConn.prepareStatement(GET_FOR_HOST.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        updEntry = dbConn.prepareStatement(UPDATE_ENTRY.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        addEntry = dbConn.prepareStatement(ADD_ENTRY.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        lockUrl = dbConn.prepareStatement(LOCK_URL.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        unlockUrl = dbConn.prepareStatement((UNLOCK_URL + UNLOCK_CONDITION).replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
-        unlockAll = dbConn.prepareStatement(UNLOCK_URL.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema()));
+        Connection conn = connect();
+        try {
+            for (String sql : new String[]{UPDATE_ENTRY, RETURN_ENTRY, ADD_ENTRY, ADD_INLINKS, LOCK_URL, UNLOCK_URL + UNLOCK_CONDITION}) {
+                conn.prepareStatement(withSchema(sql)).close();
+            }
+        } finally {
+            close(conn);
+        }
+    }
+
+    /**
+     * Borrows a connection from the pool of the DB layer, the caller must {@link #close(java.sql.Connection) close} it.
+     */
+    private Connection connect() throws SQLException {
+        Connection conn = dbLayer.getConnection();
+        try {
+            // claims lock the rows they lease, repeatable read would fail on rows updated concurrently
+            conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            return conn;
+        } catch (SQLException ex) {
+            close(conn);
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the connection to the pool. An unfinished transaction is rolled back.
+     */
+    private static void close(Connection conn) {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException ex) {
+                Logger.getLogger(URLManager.class.getName()).log(Level.WARNING, "Can''t close DB connection: {0}", ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replaces <tt>{SCHEMA}</tt> wildcards with schema of the DB layer.
+     */
+    private String withSchema(String sql) {
+        return sql.replaceAll("\\{SCHEMA\\}", dbLayer.getSchema());
     }
 
     /**
      * Retrieves URLs based on the given query.
-     * Locks the entries so that no other thread can get the same URLs at the same time.
+     * Locks (leases) the entries so that no other thread can get the same URLs at the same time.
      * Therefore every URL retrieved should also be returned
      * (and thusly unlocked) by calling {@link #returnEntry(xsmeral.semnet.crawler.model.URLEntry) returnEntry(entry)}.<br />
+     * A query for URLs not locked is a claim, which leases the URLs in the same statement,
+     * other queries are followed by a batch of leases in the same transaction.
+     * A lease expires after the {@linkplain #setLeaseTime(int) lease time}, then the
+     * URL can be fetched again (e.g. if the owner has crashed).
      * @param q The Query to use
      * @param ownerId An identification of the entity that is retrieving and locking this URL
+     * @param params Values of wildcards in the query (e.g. of {@code limit(null)}), if any
+     * @return The entries, or an empty collection in case of error
      */
-    public Collection<URLEntry> fetchEntries(Query q, int ownerId) {
+    @Override
+    public Collection<URLEntry> fetchEntries(Query q, int ownerId, Object... params) {
+        QueryBuilderImpl query = (QueryBuilderImpl) q;
+        Connection conn = null;
+        if (query.isClaim()) {
+            try {
+                Object[] claimParams = new Object[params.length + 2];
+                claimParams[0] = ownerId;
+                claimParams[1] = leaseTime;
+                System.arraycopy(params, 0, claimParams, 2, params.length);
+                conn = connect();
+                PreparedStatement st = conn.prepareStatement(query.getSQL());
+                ResultSet rs = populateStatement(st, claimParams).executeQuery();
+                List<URLEntry> entries = resultSetToCollection(rs);
+                rs.close();
+                st.close();
+                if (query.isByPriority()) {
+                    // rows returned by the update are not ordered
+                    Collections.sort(entries, PRIORITY_ORDER);
+                }
+                return entries;
+            } catch (SQLException ex) {
+                Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t claim URLs: {0}", ex.getMessage());
+                return Collections.emptyList();
+            } finally {
+                close(conn);
+            }
+        }
         try {
-            dbConn.setAutoCommit(false);// fetch atomically
-            ResultSet rs = q.getStatement().executeQuery();
+            conn = connect();
+            conn.setAutoCommit(false);// fetch atomically
+            PreparedStatement st = conn.prepareStatement(query.getSQL());
+            ResultSet rs = populateStatement(st, params).executeQuery();
             Collection<URLEntry> entries = resultSetToCollection(rs);
-            lockUrls(ownerId, entries);
-            dbConn.commit();
+            rs.close();
+            st.close();
+            lockUrls(conn, ownerId, entries);
+            conn.commit();
             return entries;
         } catch (SQLException ex) {
-            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-            return null;
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t fetch URLs: {0}", ex.getMessage());
+            return Collections.emptyList();
         } finally {
-            try {
-                dbConn.setAutoCommit(true);
-            } catch (SQLException ex) {
-                Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-            }
+            close(conn);// rolls back if not committed
         }
     }
 
     /**
-     * Updates and unlocks the given entry in DB.
+     * Updates and unlocks the given entry in DB, in one statement.
+     * If write-behind is enabled, the entry is buffered and written with other
+     * entries later.
      */
+    @Override
     public void returnEntry(URLEntry entry) {
-        updateEntry(entry);
-        unlockUrl(entry);
+        boolean full;
+        synchronized (pending) {
+            pending.add(entry);
+            full = pending.size() >= batchSize;
+            if (!full && flushTask == null) {
+                scheduleFlush();
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Schedules a flush after the flush interval. Must be called while holding the lock of the buffer.
+     */
+    private void scheduleFlush() {
+        flushTask = flusher.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The counts are buffered like returned entries, counts of the same URL are summed.
+     */
+    @Override
+    public void addInlinks(Map<String, Integer> paths) {
+        boolean full;
+        synchronized (pending) {
+            for (Map.Entry<String, Integer> path : paths.entrySet()) {
+                Integer count = pendingLinks.get(path.getKey());
+                pendingLinks.put(path.getKey(), count != null ? count + path.getValue() : path.getValue());
+            }
+            full = batchSize == 1 || pendingLinks.size() >= LINK_BATCH_SIZE;
+            if (!full && flushTask == null) {
+                scheduleFlush();
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered returned entries, in one transaction.
+     * Then writes the buffered in-link counts, each in a transaction of its own,
+     * so that no transaction waits for locks while holding others.
+     */
+    @Override
+    public void flush() {
+        List<URLEntry> batch;
+        Map<String, Integer> links;
+        synchronized (pending) {
+            if (flushTask != null) {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+            if (pending.isEmpty() && pendingLinks.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<URLEntry>(pending);
+            pending.clear();
+            links = new HashMap<String, Integer>(pendingLinks);
+            pendingLinks.clear();
+        }
+        Connection conn = null;
+        try {
+            conn = connect();
+            if (!batch.isEmpty()) {
+                conn.setAutoCommit(false);
+                PreparedStatement st = conn.prepareStatement(withSchema(RETURN_ENTRY));
+                for (URLEntry entry : batch) {
+                    populateEntry(st, entry).addBatch();
+                }
+                st.executeBatch();
+                conn.commit();
+                st.close();
+                conn.setAutoCommit(true);
+            }
+            if (!links.isEmpty()) {
+                PreparedStatement st = conn.prepareStatement(withSchema(ADD_INLINKS));
+                for (Map.Entry<String, Integer> link : links.entrySet()) {
+                    populateStatement(st, link.getValue(), link.getValue(), link.getKey()).addBatch();
+                }
+                st.executeBatch();
+                st.close();
+            }
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t return {0} URLs (they stay leased) or count {1} links: {2}", new Object[]{batch.size(), links.size(), ex.getMessage()});
+        } finally {
+            close(conn);
+        }
+    }
+
+    /**
+     * Enables write-behind of returned entries.
+     * @param batchSize Number of entries written at once, 1 means each entry is written when returned
+     * @param flushInterval Maximum time (in milliseconds) an entry waits in the buffer.
+     * Should be much shorter than the {@linkplain #setLeaseTime(int) lease time}.
+     * Default is {@value #DEF_FLUSH_INTERVAL}.
+     */
+    public void setWriteBehind(int batchSize, long flushInterval) {
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    /**
+     * Sets the time (in seconds) for which fetched URLs are leased.
+     * Should be longer than the time URLs are buffered and visited. Default is {@value #DEF_LEASE_TIME}.
+     */
+    public void setLeaseTime(int leaseTime) {
+        this.leaseTime = leaseTime;
     }
 
     /**
@@ -331,124 +506,135 @@ public class URLManager {
      * @return True, if the entry was added (did not exist).
      * @see #addEntries(java.util.Collection)
      */
+    @Override
     public boolean addEntry(URLEntry entry) {
         return addEntries(Collections.singletonList(entry)) > 0;
     }
 
     /**
      * Adds given entries to DB.
-     * Any entries already present in DB are ignored.
+     * Any entries already present in DB are not added, their in-link counts are raised.
      * @return Number of modified rows (added entries).
      */
+    @Override
     public int addEntries(Collection<URLEntry> entries) {
-        synchronized (addEntry) {
-            int added = 0;
-            try {
-                for (URLEntry entry : entries) {
-                    populateStatement(addEntry,
-                            hostMapper.getHostId(entry.getHost()),
-                            entry.getPath(),
-                            entry.getUpdateFreq(),
-                            entry.isEntity(),
-                            entry.getPattern(),
-                            entry.getPath()).addBatch();
-                }
+        int added = 0;
+        Connection conn = null;
+        try {
+            conn = connect();
+            PreparedStatement addEntry = conn.prepareStatement(withSchema(ADD_ENTRY));
+            for (URLEntry entry : entries) {
+                populateStatement(addEntry,
+                        hostMapper.getHostId(entry.getHost()),
+                        entry.getPath(),
+                        entry.getUpdateFreq(),
+                        entry.isEntity(),
+                        entry.getPattern(),
+                        entry.getInlinks(),
+                        entry.getPriority(),
+                        entry.getPath()).addBatch();
+            }
 
-                int[] result = addEntry.executeBatch();
-                // return count of modified rows
-                for (int i : result) {
+            int[] result = addEntry.executeBatch();
+            addEntry.close();
+            close(conn);
+            conn = null;
+            // return count of modified rows, count links to the present ones
+            Map<String, Integer> present = new HashMap<String, Integer>();
+            Iterator<URLEntry> it = entries.iterator();
+            for (int i : result) {
+                URLEntry entry = it.next();
+                if (i == 0) {
+                    present.put(entry.getPath(), Math.max(1, entry.getInlinks()));
+                } else if (i > 0) {
                     added += i;
                 }
-                return added;
-            } catch (SQLException ex) {
-                Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-                return added;
             }
+            if (!present.isEmpty()) {
+                addInlinks(present);
+            }
+            return added;
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t add URLs: {0}", ex.getMessage());
+            return added;
+        } finally {
+            close(conn);
         }
     }
 
     /**
      * Updates the given entry in DB.
      */
+    @Override
     public void updateEntry(URLEntry entry) {
-        synchronized (updEntry) {
-            try {
-                populateStatement(updEntry,
-                        (int) (entry.getLastVisited().getTime() / 1000),
-                        entry.getVisitCount(),
-                        entry.getUpdateFreq(),
-                        entry.isEntity(),
-                        entry.getPattern(),
-                        entry.isWorking(),
-                        entry.getScore(),
-                        entry.getId()).executeUpdate();
-            } catch (SQLException ex) {
-                Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-            }
+        Connection conn = null;
+        try {
+            conn = connect();
+            PreparedStatement st = conn.prepareStatement(withSchema(UPDATE_ENTRY));
+            populateEntry(st, entry).executeUpdate();
+            st.close();
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t update URL: {0}", ex.getMessage());
+        } finally {
+            close(conn);
         }
     }
 
     /**
-     * Closes the DB connection and all prepared statements.
+     * Populates the update (or return) statement with values of the entry.
      */
-    public void close() {
-        try {
-            if (!dbConn.getAutoCommit()) {
-                dbConn.commit();
-            }
-            //getEntry.close();
-            updEntry.close();
-            addEntry.close();
-            lockUrl.close();
-            unlockUrl.close();
-            unlockAll.close();
-            if (listLocked != null) {
-                listLocked.close();
-            }
-            if (listBroken != null) {
-                listBroken.close();
-            }
-            dbConn.close();
-        } catch (SQLException ex) {
-            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-        }
+    private PreparedStatement populateEntry(PreparedStatement st, URLEntry entry) throws SQLException {
+        return populateStatement(st,
+                (int) (entry.getLastVisited().getTime() / 1000),
+                entry.getVisitCount(),
+                entry.getUpdateFreq(),
+                entry.isEntity(),
+                entry.getPattern(),
+                entry.isWorking(),
+                entry.getScore(),
+                entry.getEtag(),
+                entry.getLastModified(),
+                entry.getDigest(),
+                entry.getSimHash(),
+                entry.getYield(),
+                entry.getPriority(),
+                entry.getChangeCount(),
+                entry.getObservedTime(),
+                entry.getId());
     }
 
     /**
-     * Locks the URL specified by given entry for use by the given owner.
-     * All calls to this method should be matched by a call to {@link #unlockUrl(xsmeral.semnet.crawler.model.URLEntry) unlockUrl}.
-     * @param ownerId An identification of the entity that is retrieving and locking this URL
-     * @param entry The entry to lock
-     * @return True, if the URL was successfully locked
+     * Writes the buffered returned entries.
      */
-    private boolean lockUrl(int ownerId, URLEntry entry) {
-        return lockUrls(ownerId, Collections.singletonList(entry));
+    @Override
+    public void close() {
+        flush();
     }
 
     /**
-     * See {@link #lockUrl(int, xsmeral.semnet.crawler.model.URLEntry) lockUrl}.
+     * Leases the URLs specified by given entries to the given owner.
+     * All calls to this method should be matched by a call to {@link #unlockUrls(java.util.Collection) unlockUrls}.
+     * @param conn Connection of the transaction the entries have been fetched in
+     * @param ownerId An identification of the entity that is retrieving and locking this URL
+     * @param entries The entries to lock
      */
-    private boolean lockUrls(int ownerId, Collection<URLEntry> entries) {
-        synchronized (lockUrl) {
-            try {
-                for (URLEntry entry : entries) {
-                    populateStatement(lockUrl, ownerId, entry.getId()).addBatch();
-                }
-                if (!entries.isEmpty()) {
-                    lockUrl.executeBatch();
-                }
-                return true;
-            } catch (SQLException ex) {
-                Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-                return false;
-            }
+    private void lockUrls(Connection conn, int ownerId, Collection<URLEntry> entries) throws SQLException {
+        if (entries.isEmpty()) {
+            return;
         }
+        PreparedStatement lockUrl = conn.prepareStatement(withSchema(LOCK_URL));
+        for (URLEntry entry : entries) {
+            populateStatement(lockUrl, ownerId, leaseTime, entry.getId()).addBatch();
+        }
+        lockUrl.executeBatch();
+        lockUrl.close();
     }
 
     /**
      * Unlocks the URL specified by given entry.
      * @return True, if the URL was successfully unlocked
      */
+    @Override
     public boolean unlockUrl(URLEntry entry) {
         return unlockUrls(Collections.singletonList(entry));
     }
@@ -456,64 +642,170 @@ public class URLManager {
     /**
      * See {@link #unlockUrl(xsmeral.semnet.crawler.model.URLEntry) unlockUrl}
      */
+    @Override
     public boolean unlockUrls(Collection<URLEntry> entries) {
-        synchronized (unlockUrl) {
-            try {
-                for (URLEntry entry : entries) {
-                    populateStatement(unlockUrl, entry.getId()).addBatch();
-                }
-                if (!entries.isEmpty()) {
-                    unlockUrl.executeBatch();
-                }
-                return true;
-            } catch (SQLException ex) {
-                Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-                return false;
+        if (entries.isEmpty()) {
+            return true;
+        }
+        Connection conn = null;
+        try {
+            conn = connect();
+            PreparedStatement unlockUrl = conn.prepareStatement(withSchema(UNLOCK_URL + UNLOCK_CONDITION));
+            for (URLEntry entry : entries) {
+                populateStatement(unlockUrl, entry.getId()).addBatch();
             }
+            unlockUrl.executeBatch();
+            unlockUrl.close();
+            return true;
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t unlock URLs: {0}", ex.getMessage());
+            return false;
+        } finally {
+            close(conn);
         }
     }
 
     /**
      * Returns list of locked entries.
      */
+    @Override
     public Collection<URLEntry> listLocked() {
+        return list(new QueryBuilderImpl().locked(), "locked");
+    }
+
+    /**
+     * Returns list of URL marked as not working.
+     */
+    public Collection<URLEntry> listBroken() {
+        return list(new QueryBuilderImpl().locked(), "broken");
+    }
+
+    /**
+     * Returns the entries matching the query, or null in case of error.
+     */
+    private Collection<URLEntry> list(QueryBuilder builder, String what) {
+        Connection conn = null;
         try {
-            if (listLocked == null) {
-                listLocked = new QueryBuilderImpl().locked().getQuery().getStatement();
-            }
-            synchronized (listLocked) {
-                ResultSet rs = listLocked.executeQuery();
-                Collection<URLEntry> entries = resultSetToCollection(rs);
-                return entries;
-            }
+            QueryBuilderImpl query = (QueryBuilderImpl) builder.getQuery();
+            conn = connect();
+            PreparedStatement st = conn.prepareStatement(query.getSQL());
+            ResultSet rs = st.executeQuery();
+            Collection<URLEntry> entries = resultSetToCollection(rs);
+            rs.close();
+            st.close();
+            return entries;
         } catch (SQLException ex) {
-            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t list locked URLs: {0}", ex.getMessage());
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t list {0} URLs: {1}", new Object[]{what, ex.getMessage()});
             return null;
         } catch (ConfigurationException ex) {
-            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t list locked URLs: {0}", ex.getMessage());
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t list {0} URLs: {1}", new Object[]{what, ex.getMessage()});
             return null;
+        } finally {
+            close(conn);
         }
     }
 
     /**
-     * Returns list of URL marked as not working.
+     * Returns the time when the first working URL needs updating
+     * (the minimum of <tt>last_visited + update_freq</tt>).
+     * @return The time or null if there are no working URLs or the query failed
      */
-    public Collection<URLEntry> listBroken() {
+    @Override
+    public Date getNextDueTime() {
+        Connection conn = null;
         try {
-            if (listBroken == null) {
-                listBroken = new QueryBuilderImpl().locked().getQuery().getStatement();
-            }
-            synchronized (listBroken) {
-                ResultSet rs = listBroken.executeQuery();
-                Collection<URLEntry> entries = resultSetToCollection(rs);
-                return entries;
+            conn = connect();
+            PreparedStatement st = conn.prepareStatement(withSchema(NEXT_DUE));
+            ResultSet rs = st.executeQuery();
+            Date due = null;
+            if (rs.next()) {
+                long seconds = rs.getLong("due");
+                if (!rs.wasNull()) {
+                    due = new Date(seconds * 1000);
+                }
             }
+            rs.close();
+            st.close();
+            return due;
         } catch (SQLException ex) {
-            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t list broken URLs: {0}", ex.getMessage());
-            return null;
-        } catch (ConfigurationException ex) {
-            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t list broken URLs: {0}", ex.getMessage());
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t query next due time: {0}", ex.getMessage());
             return null;
+        } finally {
+            close(conn);
+        }
+    }
+
+    /**
+     * Returns the number of URLs in DB, or -1 in case of error.
+     */
+    @Override
+    public long countEntries() {
+        Connection conn = null;
+        try {
+            conn = connect();
+            PreparedStatement st = conn.prepareStatement(withSchema(COUNT_ENTRIES));
+            ResultSet rs = st.executeQuery();
+            long count = rs.next() ? rs.getLong("total") : 0;
+            rs.close();
+            st.close();
+            return count;
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t count URLs: {0}", ex.getMessage());
+            return -1;
+        } finally {
+            close(conn);
+        }
+    }
+
+    /**
+     * Returns the number of revisits per day needed by working URLs in DB
+     * (the sum of <tt>DAY_SEC / update_freq</tt>), or -1 in case of error.
+     */
+    @Override
+    public double getRevisitRate() {
+        Connection conn = null;
+        try {
+            conn = connect();
+            PreparedStatement st = conn.prepareStatement(withSchema(REVISIT_RATE));
+            ResultSet rs = st.executeQuery();
+            double rate = rs.next() ? rs.getDouble("rate") : 0;
+            rs.close();
+            st.close();
+            return rate;
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t query revisit rate: {0}", ex.getMessage());
+            return -1;
+        } finally {
+            close(conn);
+        }
+    }
+
+    /**
+     * Adds paths of all URLs in DB to the filter.
+     * The paths are read in chunks, not all at once.
+     * @return True, if all paths have been added
+     */
+    @Override
+    public boolean addPathsTo(BloomFilter filter) {
+        Connection conn = null;
+        try {
+            conn = connect();
+            conn.setAutoCommit(false);// enables fetching in chunks
+            PreparedStatement st = conn.prepareStatement(withSchema(LIST_PATHS));
+            st.setFetchSize(PATH_FETCH_SIZE);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                filter.add(rs.getString(1));
+            }
+            rs.close();
+            st.close();
+            conn.commit();
+            return true;
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t list URLs: {0}", ex.getMessage());
+            return false;
+        } finally {
+            close(conn);
         }
     }
 
@@ -521,19 +813,23 @@ public class URLManager {
      * Unlocks all locked URLs.
      * Should only be called in case of a crash, where not all locked URLs
      * have been unlocked.
-     * @see #lockUrl(int, xsmeral.semnet.crawler.model.URLEntry) lockUrl
      * @see #unlockUrl(xsmeral.semnet.crawler.model.URLEntry) unlockUrl
      * @return True, if all URLs have been successfully unlocked
      */
+    @Override
     public boolean unlockAll() {
-        synchronized (unlockAll) {
-            try {
-                unlockAll.executeUpdate();
-                return true;
-            } catch (SQLException ex) {
-                Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, ex.getNextException().getMessage(), ex);
-                return false;
-            }
+        Connection conn = null;
+        try {
+            conn = connect();
+            PreparedStatement st = conn.prepareStatement(withSchema(UNLOCK_URL + UNLOCK_ALL_CONDITION));
+            st.executeUpdate();
+            st.close();
+            return true;
+        } catch (SQLException ex) {
+            Logger.getLogger(URLManager.class.getName()).log(Level.SEVERE, "Can''t unlock URLs: {0}", ex.getMessage());
+            return false;
+        } finally {
+            close(conn);
         }
     }
 
@@ -546,7 +842,11 @@ public class URLManager {
     private PreparedStatement populateStatement(PreparedStatement st, Object... objs) throws SQLException {
         st.clearParameters();
         for (int i = 0; i < objs.length; i++) {
-            st.setObject(i + 1, objs[i]);
+            if (objs[i] != null) {
+                st.setObject(i + 1, objs[i]);
+            } else {
+                st.setNull(i + 1, Types.VARCHAR);// only nullable columns are strings
+            }
         }
         return st;
     }
@@ -554,10 +854,10 @@ public class URLManager {
     /**
      * Transforms ResultSet to collection of URLEntry.
      */
-    private Collection<URLEntry> resultSetToCollection(ResultSet rs) throws SQLException {
-        Collection<URLEntry> entries = new ArrayList<URLEntry>();
+    private List<URLEntry> resultSetToCollection(ResultSet rs) throws SQLException {
+        List<URLEntry> entries = new ArrayList<URLEntry>();
         while (rs.next()) {
-            entries.add(new URLEntry(
+            URLEntry entry = new URLEntry(
                     rs.getInt("urlid"),
                     hostMapper.getHostName(rs.getInt("hostid")),
                     rs.getString("path"),
@@ -567,7 +867,17 @@ public class URLManager {
                     rs.getBoolean("entity"),
                     rs.getString("pattern"),
                     rs.getBoolean("working"),
-                    rs.getShort("score")));
+                    rs.getShort("score"));
+            entry.setEtag(rs.getString("etag"));
+            entry.setLastModified(rs.getString("last_modified"));
+            entry.setDigest(rs.getString("digest"));
+            entry.setSimHash(rs.getLong("simhash"));
+            entry.setInlinks(rs.getInt("inlinks"));
+            entry.setYield(rs.getFloat("yield"));
+            entry.setPriority(rs.getInt("priority"));
+            entry.setChangeCount(rs.getInt("change_count"));
+            entry.setObservedTime(rs.getInt("observed_time"));
+            entries.add(entry);
         }
         return entries;
     }
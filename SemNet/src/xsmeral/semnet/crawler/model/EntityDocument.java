@@ -1,7 +1,14 @@
 package xsmeral.semnet.crawler.model;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.htmlcleaner.TagNode;
 import xsmeral.semnet.crawler.HTMLCrawler;
+import xsmeral.semnet.crawler.util.DocumentParser;
 
 /**
  * Container for documents retrieved by {@link HTMLCrawler}, passed to a scraper (wrapper).
@@ -9,6 +16,12 @@ import xsmeral.semnet.crawler.HTMLCrawler;
  * Contains base URL for resolving links, absolute URL of this document,
  * a descriptor of the contained entity and a TagNode containing parsed
  * document tree.
+ * <br />
+ * A document can be created from the raw content, which is parsed once, by
+ * whichever comes first - a call to {@link #parse() parse} (e.g. by a parse
+ * worker of the crawler) or the first call to {@link #getDocument() getDocument}
+ * (e.g. by a scraper). The content is released after parsing.
+ * Documents are equal if their URLs are equal.
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  * @see <a href="http://htmlcleaner.sourceforge.net/">HtmlCleaner</a>
  */
@@ -17,7 +30,10 @@ public class EntityDocument {
     private String baseURL;
     private String url;
     private EntityDescriptor entDesc;
-    private TagNode document;
+    private volatile TagNode document;
+    private volatile FutureTask<TagNode> parsing;
+    // set by the thread which runs the parsing
+    private final AtomicBoolean parseClaimed = new AtomicBoolean();
 
     public EntityDocument() {
     }
@@ -32,18 +48,67 @@ public class EntityDocument {
         this.document = document;
     }
 
+    /**
+     * Initializes all fields, the content is parsed when needed.
+     * @param content HTML content
+     * @param charset Character set of the content
+     */
+    public EntityDocument(String baseURL, String url, EntityDescriptor entDesc, final byte[] content, final String charset) {
+        this.baseURL = baseURL;
+        this.url = url;
+        this.entDesc = entDesc;
+        this.parsing = new FutureTask<TagNode>(new Callable<TagNode>() {
+
+            @Override
+            public TagNode call() throws Exception {
+                return DocumentParser.parse(content, charset);
+            }
+        });
+    }
+
     /**
      * Returns the TagNode (<a href="http://htmlcleaner.sourceforge.net/">HtmlCleaner</a>)
-     * containing the document tree.
+     * containing the document tree. Parses the content, if not yet parsed,
+     * or waits for the parsing in progress.
+     * @return The tree, or null if the content could not be parsed
      */
     public TagNode getDocument() {
+        FutureTask<TagNode> task = parsing;
+        if (task != null) {
+            if (parseClaimed.compareAndSet(false, true)) {
+                task.run();
+            }
+            try {
+                document = task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException ex) {
+                Logger.getLogger(EntityDocument.class.getName()).log(Level.SEVERE, "Can''t parse " + url, ex.getCause());
+            }
+            parsing = null;
+        }
         return document;
     }
 
     public void setDocument(TagNode document) {
+        this.parsing = null;
         this.document = document;
     }
 
+    /**
+     * Parses the content, if it has not been parsed nor is being parsed.
+     * @return True, if the content has been parsed by this call
+     */
+    public boolean parse() {
+        FutureTask<TagNode> task = parsing;
+        if (task == null || !parseClaimed.compareAndSet(false, true)) {
+            return false;
+        }
+        task.run();
+        return true;
+    }
+
     /**
      * Returns the base URL of the host, where this document originated.
      */
@@ -89,9 +154,6 @@ public class EntityDocument {
         if ((this.url == null) ? (other.url != null) : !this.url.equals(other.url)) {
             return false;
         }
-        if (this.document != other.document && (this.document == null || !this.document.equals(other.document))) {
-            return false;
-        }
         return true;
     }
 
@@ -99,7 +161,6 @@ public class EntityDocument {
     public int hashCode() {
         int hash = 7;
         hash = 23 * hash + (this.url != null ? this.url.hashCode() : 0);
-        hash = 23 * hash + (this.document != null ? this.document.hashCode() : 0);
         return hash;
     }
 
@@ -20,6 +20,14 @@ import xsmeral.semnet.crawler.URLManager;
  *  <li>An indication, whether this URL is working (whether there were any errors
  *      during last visit)</li>
  *  <li>Score - a number from -3 to 0, indicating likelihood of the URL to work</li>
+ *  <li>HTTP validators ({@code ETag} and {@code Last-Modified} headers) of the last
+ *      response, used for conditional requests on revisits</li>
+ *  <li>Fingerprints of the content of the last response (digest and optional SimHash),
+ *      used to detect unchanged pages</li>
+ *  <li>Priority data - number of links to this URL found, average number of new
+ *      entity links found at this URL (yield) and the resulting rank in the frontier</li>
+ *  <li>Change data - number of revisits which found the content changed and
+ *      the total time between revisits, used to adapt the update frequency</li>
  *
  * </ul>
  * 
@@ -70,6 +78,15 @@ public class URLEntry {
     private String pattern;
     private boolean working;
     private short score;
+    private String etag;
+    private String lastModified;
+    private String digest;
+    private long simHash;
+    private int inlinks;
+    private float yield;
+    private int priority;
+    private int changeCount;
+    private int observedTime;
 
     public URLEntry() {
     }
@@ -222,6 +239,110 @@ public class URLEntry {
         this.score = score;
     }
 
+    /**
+     * Returns value of the {@code ETag} header of the last response, or null.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * Returns value of the {@code Last-Modified} header of the last response, or null.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns digest of the content of the last response, or null.
+     * @see xsmeral.semnet.crawler.util.ContentFingerprint#digest(byte[])
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Returns SimHash of the content of the last response, or 0 if not computed.
+     * @see xsmeral.semnet.crawler.util.ContentFingerprint#simHash(byte[], java.lang.String)
+     */
+    public long getSimHash() {
+        return simHash;
+    }
+
+    public void setSimHash(long simHash) {
+        this.simHash = simHash;
+    }
+
+    /**
+     * Returns the number of times a link to this URL has been found.
+     */
+    public int getInlinks() {
+        return inlinks;
+    }
+
+    public void setInlinks(int inlinks) {
+        this.inlinks = inlinks;
+    }
+
+    /**
+     * Returns the (smoothed) average number of new entity links found at this URL.
+     */
+    public float getYield() {
+        return yield;
+    }
+
+    public void setYield(float yield) {
+        this.yield = yield;
+    }
+
+    /**
+     * Returns the rank of this URL in the frontier, lower rank means higher priority.
+     * @see xsmeral.semnet.crawler.util.PriorityScore
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the number of revisits which found the content of this URL changed.
+     * @see xsmeral.semnet.crawler.util.RevisitPolicy
+     */
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    public void setChangeCount(int changeCount) {
+        this.changeCount = changeCount;
+    }
+
+    /**
+     * Returns the total time (in seconds) between the revisits of this URL.
+     * @see xsmeral.semnet.crawler.util.RevisitPolicy
+     */
+    public int getObservedTime() {
+        return observedTime;
+    }
+
+    public void setObservedTime(int observedTime) {
+        this.observedTime = observedTime;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -0,0 +1,136 @@
+package xsmeral.semnet.crawler.util;
+
+/**
+ * Probabilistic set of strings with no false negatives.
+ * <br />
+ * {@link #mightContain(java.lang.String) mightContain} returns true for every
+ * string that has been added and, with probability close to the configured
+ * false positive probability, for a string that has not. The probability holds
+ * up to the expected number of strings and grows beyond it, see {@link #isFull()}.
+ * <br />
+ * The filter is sized in advance, it takes about 2.4 bytes per expected string
+ * at the false positive probability of 10<sup>-4</sup>. Thread-safe.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class BloomFilter {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_HASHES = 30;
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashes;
+    private final long expected;
+    private long count = 0;
+
+    /**
+     * Creates an empty filter.
+     * @param expected Expected number of strings
+     * @param fpp Desired false positive probability, between 0 and 1 (exclusive)
+     */
+    public BloomFilter(long expected, double fpp) {
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("False positive probability must be between 0 and 1");
+        }
+        this.expected = Math.max(1, expected);
+        // optimal size: -n ln p / (ln 2)^2 bits, (m/n) ln 2 hash functions
+        long size = (long) Math.ceil(-this.expected * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        size = Math.max(64, Math.min(size, 64L * Integer.MAX_VALUE));
+        this.bits = new long[(int) ((size + 63) / 64)];
+        this.bitCount = 64L * bits.length;
+        this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) bitCount / this.expected * Math.log(2))));
+    }
+
+    /**
+     * Returns false if the string has certainly not been added, true if it probably has.
+     */
+    public synchronized boolean mightContain(String str) {
+        long hash1 = hash(str);
+        long hash2 = mix(hash1);
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(hash1, hash2, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the string to the filter.
+     * @return True, if the string has certainly not been added before
+     */
+    public synchronized boolean add(String str) {
+        long hash1 = hash(str);
+        long hash2 = mix(hash1);
+        boolean added = false;
+        for (int i = 0; i < hashes; i++) {
+            long bit = index(hash1, hash2, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits[word] & mask) == 0) {
+                bits[word] |= mask;
+                added = true;
+            }
+        }
+        if (added) {
+            count++;
+        }
+        return added;
+    }
+
+    /**
+     * Returns the (approximate) number of distinct strings added.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the expected number of strings the filter has been sized for.
+     */
+    public long getExpected() {
+        return expected;
+    }
+
+    /**
+     * Indicates whether more strings than expected have been added,
+     * so that the false positive probability is higher than configured.
+     */
+    public synchronized boolean isFull() {
+        return count > expected;
+    }
+
+    /**
+     * Returns the i-th bit index of the string, by double hashing.
+     */
+    private long index(long hash1, long hash2, int i) {
+        long combined = hash1 + i * hash2;
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+
+    /**
+     * FNV-1a hash of the string.
+     */
+    private static long hash(String str) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < str.length(); i++) {
+            hash ^= str.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits of the hash.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -17,6 +17,11 @@ import xsmeral.semnet.crawler.HTMLCrawler;
 
 /**
  * Provides method for detection of character set of HTML content.
+ * <br />
+ * The charset of a fetched response can be found without further requests by
+ * {@link #detectDeclared(java.lang.String, byte[]) detectDeclared} (from the
+ * {@code Content-Type} header, byte order mark or META tag) and
+ * {@link #guess(byte[]) guess} (from the content itself).
  */
 public class CharsetDetector {
 
@@ -24,6 +29,10 @@ public class CharsetDetector {
     private static final String HTTP_HEAD = "HEAD";
     private static final Pattern PATTERN_HEADER = Pattern.compile("charset=(.*)\\s*", Pattern.CASE_INSENSITIVE);
     private static final Pattern PATTERN_HTML_META = Pattern.compile("<meta\\s+http-equiv\\s*=\\s*[\"']Content-Type[\"']\\s+content\\s*=\\s*[\"'][^;]+;\\s*charset=([^\"']+)[\"']\\s*/?>", Pattern.CASE_INSENSITIVE);
+    // any META tag declaring a charset, either in http-equiv content or in the charset attribute (HTML5)
+    private static final Pattern PATTERN_ANY_META = Pattern.compile("<meta\\s[^>]*?charset\\s*=\\s*[\"']?\\s*([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PATTERN_CONTENT_TYPE = Pattern.compile("charset\\s*=\\s*[\"']?\\s*([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+    private static final Charset META_CHARSET = Charset.forName("ISO-8859-1");
     /**
      * The META tags in HTML are usually found within the first 512 bytes
      */
@@ -32,6 +41,10 @@ public class CharsetDetector {
      * An upper bound to where the META tag can be found
      */
     private static final int MAX_BYTES_READ_META = 8192;// bytes
+    /**
+     * Number of bytes from the start of the content used to guess the charset
+     */
+    private static final int MAX_BYTES_GUESS = 65536;// bytes
 
     /**
      * Convenience method, calls {@link #detectCharset(java.net.URL) detectCharset(new URL(url))}.
@@ -55,9 +68,17 @@ public class CharsetDetector {
      * @return The first found result or null if the charset can't be found or guessed
      */
     public static String detectCharset(URL url) {
+        return detectCharset(url, ConnectionManager.getDefault());
+    }
+
+    /**
+     * Same as {@link #detectCharset(java.net.URL) detectCharset(URL)},
+     * using the supplied connection settings.
+     */
+    public static String detectCharset(URL url, ConnectionManager connMgr) {
         try {
             // look in Content-Type HTTP header first
-            HttpURLConnection conn = ConnectionManager.getConnection(url);
+            HttpURLConnection conn = connMgr.getConnection(url);
             conn.setRequestMethod(HTTP_HEAD);
             String contentType = conn.getHeaderField(HTTP_CONTENT_TYPE);
             if (contentType != null) {
@@ -68,13 +89,13 @@ public class CharsetDetector {
             }
 
             // if not found, look for <meta http-equiv="Content-Type"... /> in HTML
-            conn = ConnectionManager.getConnection(url);
+            conn = connMgr.getConnection(url);
             int read = 0;
             int totalRead = 0;
             byte[] buf = new byte[BUFFER_SIZE];
             boolean found = false;
             Matcher matcher = null;
-            PushbackInputStream is = new PushbackInputStream(conn.getInputStream(), MAX_BYTES_READ_META);
+            PushbackInputStream is = new PushbackInputStream(connMgr.decode(conn.getInputStream(), conn.getContentEncoding()), MAX_BYTES_READ_META);
             // read BUFFER_SIZE bytes until MAX_BYTES_READ_META is reached
             while (!found && totalRead < MAX_BYTES_READ_META && (read = is.read(buf, totalRead, Math.min(BUFFER_SIZE, MAX_BYTES_READ_META - totalRead))) > 0) {
                 totalRead += read;
@@ -108,7 +129,69 @@ public class CharsetDetector {
         return null;
     }
 
+    /**
+     * Returns the charset declared for the content of a response, looking,
+     * in this order, in
+     * <ol>
+     *  <li>the {@code Content-Type} HTTP header</li>
+     *  <li>the byte order mark</li>
+     *  <li>the META tag ({@code http-equiv} or {@code charset}) within
+     *      the first {@value #MAX_BYTES_READ_META} bytes</li>
+     * </ol>
+     * @param contentType The {@code Content-Type} header, or null
+     * @param content The content of the response
+     * @return The first supported charset found, or null
+     */
+    public static String detectDeclared(String contentType, byte[] content) {
+        if (contentType != null) {
+            Matcher m = PATTERN_CONTENT_TYPE.matcher(contentType);
+            String charset = m.find() ? validateCharset(m.group(1)) : null;
+            if (charset != null) {
+                return charset;
+            }
+        }
+        String bom = detectBOM(content);
+        if (bom != null) {
+            return bom;
+        }
+        // ASCII-compatible charsets are assumed, the META tag is ASCII in them
+        Matcher m = PATTERN_ANY_META.matcher(new String(content, 0, Math.min(content.length, MAX_BYTES_READ_META), META_CHARSET));
+        return m.find() ? validateCharset(m.group(1)) : null;
+    }
+
+    /**
+     * Returns the charset indicated by the byte order mark at the start of the content, or null.
+     */
+    public static String detectBOM(byte[] content) {
+        if (content.length >= 3 && (content[0] & 0xFF) == 0xEF && (content[1] & 0xFF) == 0xBB && (content[2] & 0xFF) == 0xBF) {
+            return "UTF-8";
+        } else if (content.length >= 2 && (content[0] & 0xFF) == 0xFE && (content[1] & 0xFF) == 0xFF) {
+            return "UTF-16BE";
+        } else if (content.length >= 2 && (content[0] & 0xFF) == 0xFF && (content[1] & 0xFF) == 0xFE) {
+            return "UTF-16LE";
+        }
+        return null;
+    }
+
+    /**
+     * Guesses the charset of the content using
+     * <a href="http://code.google.com/p/juniversalchardet/">juniversalchardet</a>,
+     * from at most the first {@value #MAX_BYTES_GUESS} bytes.
+     * @return The guessed charset, or null if it can't be guessed
+     */
+    public static String guess(byte[] content) {
+        UniversalDetector detector = new UniversalDetector(null);
+        detector.handleData(content, 0, Math.min(content.length, MAX_BYTES_GUESS));
+        detector.dataEnd();
+        String encoding = detector.getDetectedCharset();
+        return encoding != null ? validateCharset(encoding) : null;
+    }
+
     private static String validateCharset(String charset) {
-        return Charset.isSupported(charset)?charset:null;
+        try {
+            return Charset.isSupported(charset) ? charset : null;
+        } catch (IllegalArgumentException ex) {// illegal name
+            return null;
+        }
     }
 }
@@ -1,112 +1,353 @@
 package xsmeral.semnet.crawler.util;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import xsmeral.pipe.stats.StatFunction;
+import xsmeral.pipe.stats.Stats;
+import xsmeral.pipe.stats.Sum;
 
 /*
  * TODO: HTTP status checking
  */
 /**
- * Provides consistent network settings across classes using HttpURLConnections.
+ * Provides consistent network settings across classes using HTTP connections.
+ * <br />
+ * Each instance holds its own settings, a {@linkplain #getDefault() default instance}
+ * is used by classes that are not given one.
+ * <br />
+ * If compression is enabled, compressed responses ({@code gzip} or {@code deflate}
+ * content encoding) are requested and the streams returned by
+ * {@link #getInputStream(java.net.URL, int, java.lang.String) getInputStream}
+ * decompress them on the fly.
+ * Keep-alive settings apply to the connections pooled by {@link HttpFetcher},
+ * {@link HttpURLConnection}s are pooled by the JDK.
+ * <br />
+ * If {@linkplain #setStats(xsmeral.pipe.stats.Stats) stats} are set, the following are reported:
+ * <ul>
+ *  <li>{@code net.requests} - number of HTTP requests</li>
+ *  <li>{@code net.reused} - number of requests sent over a pooled connection</li>
+ *  <li>{@code net.compressed} - number of compressed bytes received</li>
+ *  <li>{@code net.saved} - number of bytes saved by compression</li>
+ * </ul>
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  */
 public class ConnectionManager {
 
     private static final String HTTP_REFERER = "Referer";
     private static final String HTTP_USER_AGENT = "User-Agent";
+    private static final String HTTP_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HTTP_CONNECTION = "Connection";
+    private static final String HTTP_CONTENT_ENCODING = "Content-Encoding";
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
     private static final int TIMEOUT_WAIT = 5000;
-    private static int readTimeout = 10000;
-    private static int connTimeout = 10000;
-    private static boolean followRedirects = true;
-    private static String userAgent = "SemNetCrawler/1.0";
+    private static final ConnectionManager defaultInstance = new ConnectionManager();
+    private int readTimeout = 10000;
+    private int connTimeout = 10000;
+    private boolean followRedirects = true;
+    private String userAgent = "SemNetCrawler/1.0";
+    private boolean compression = true;
+    private boolean keepAlive = true;
+    private int keepAliveTimeout = 15000;
+    private int maxIdlePerHost = 2;
+    // stats
+    private StatFunction<Long> requests;
+    private StatFunction<Long> reused;
+    private StatFunction<Long> compressedBytes;
+    private StatFunction<Long> bytesSaved;
+
+    /**
+     * Stream that counts bytes read through it and reports compression stats when closed.
+     */
+    private class CountingInputStream extends FilterInputStream {
+
+        private final CountingInputStream raw;
+        private long count = 0;
+        private boolean closed = false;
+
+        /**
+         * @param in The stream to count
+         * @param raw Counter of the underlying compressed stream, or null for the raw stream itself
+         */
+        public CountingInputStream(InputStream in, CountingInputStream raw) {
+            super(in);
+            this.raw = raw;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed && raw != null) {
+                closed = true;
+                count(compressedBytes, raw.count);
+                count(bytesSaved, Math.max(0, count - raw.count));
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Returns the instance used by classes that are not given their own.
+     */
+    public static ConnectionManager getDefault() {
+        return defaultInstance;
+    }
 
     /**
      * Corresponds to {@link HttpURLConnection#getConnectTimeout()}
      */
-    public static int getConnTimeout() {
+    public int getConnTimeout() {
         return connTimeout;
     }
 
     /**
      * Corresponds to {@link HttpURLConnection#setConnectTimeout(int)}
      */
-    public static void setConnTimeout(int connTimeout) {
-        ConnectionManager.connTimeout = connTimeout;
+    public void setConnTimeout(int connTimeout) {
+        this.connTimeout = connTimeout;
     }
 
     /**
      * Corresponds to {@link HttpURLConnection#getReadTimeout()}
      */
-    public static int getReadTimeout() {
+    public int getReadTimeout() {
         return readTimeout;
     }
 
     /**
      * Corresponds to {@link HttpURLConnection#setReadTimeout(int)}
      */
-    public static void setReadTimeout(int readTimeout) {
-        ConnectionManager.readTimeout = readTimeout;
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
     }
 
     /**
      * Returns the User-agent.
      * If it has not been set, returns the default value (not Java default).
      */
-    public static String getUserAgent() {
+    public String getUserAgent() {
         return userAgent;
     }
 
     /**
      * Same as {@link HttpURLConnection#setRequestProperty(java.lang.String, java.lang.String) HttpURLConnection.setRequestProperty("User-Agent", userAgent)}
      */
-    public static void setUserAgent(String userAgent) {
-        ConnectionManager.userAgent = userAgent;
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
     }
 
     /**
-     * Corresponds to {@link HttpURLConnection#getFollowRedirects()}
+     * Corresponds to {@link HttpURLConnection#getInstanceFollowRedirects()}
      */
-    public static boolean isFollowRedirects() {
+    public boolean isFollowRedirects() {
         return followRedirects;
     }
 
     /**
-     * Corresponds to {@link HttpURLConnection#setFollowRedirects(boolean)}
+     * Corresponds to {@link HttpURLConnection#setInstanceFollowRedirects(boolean)}
+     */
+    public void setFollowRedirects(boolean followRedirects) {
+        this.followRedirects = followRedirects;
+    }
+
+    /**
+     * Indicates whether compressed responses are requested. Default is true.
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets whether compressed responses are requested.
      */
-    public static void setFollowRedirects(boolean followRedirects) {
-        ConnectionManager.followRedirects = followRedirects;
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Indicates whether connections are kept open for further requests. Default is true.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Sets whether connections are kept open for further requests.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Time (ms) after which an idle pooled connection is closed. Default is 15000.
+     */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Time (ms) after which an idle pooled connection is closed.
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Maximum number of idle pooled connections to one host. Default is 2.
+     */
+    public int getMaxIdlePerHost() {
+        return maxIdlePerHost;
+    }
+
+    /**
+     * Maximum number of idle pooled connections to one host.
+     */
+    public void setMaxIdlePerHost(int maxIdlePerHost) {
+        this.maxIdlePerHost = maxIdlePerHost;
+    }
+
+    /**
+     * Starts reporting connection stats to the supplied stats group.
+     */
+    public void setStats(Stats stats) {
+        requests = stats.newFunction("net.requests", Sum.class);
+        reused = stats.newFunction("net.reused", Sum.class);
+        compressedBytes = stats.newFunction("net.compressed", Sum.class);
+        bytesSaved = stats.newFunction("net.saved", Sum.class);
+    }
+
+    private static void count(StatFunction<Long> stat, long value) {
+        if (stat != null) {
+            stat.add(value);
+        }
+    }
+
+    /**
+     * Records a request, sent over a new or a pooled connection.
+     */
+    void countRequest(boolean reusedConnection) {
+        count(requests, 1);
+        if (reusedConnection) {
+            count(reused, 1);
+        }
     }
 
     /**
      * Returns a HttpUrlConnection set up with the defined settings.
      */
-    public static HttpURLConnection getConnection(URL url) throws IOException {
+    public HttpURLConnection getConnection(URL url) throws IOException {
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         conn.setReadTimeout(readTimeout);
         conn.setConnectTimeout(connTimeout);
         conn.setRequestProperty(HTTP_USER_AGENT, userAgent);
-        HttpURLConnection.setFollowRedirects(followRedirects);
+        conn.setInstanceFollowRedirects(followRedirects);
+        if (compression) {
+            conn.setRequestProperty(HTTP_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        }
+        if (!keepAlive) {
+            conn.setRequestProperty(HTTP_CONNECTION, "close");
+        }
+        countRequest(false);
         return conn;
     }
 
     /**
-     * Returns an InputStream to the given URL, possibly retrying the connection.
+     * Returns the request headers to send with each request, according to the settings,
+     * formatted as in HTTP message (each followed by CRLF).
+     */
+    String getRequestHeaders() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(HTTP_USER_AGENT).append(": ").append(userAgent).append("\r\n");
+        if (compression) {
+            sb.append(HTTP_ACCEPT_ENCODING).append(": ").append(ACCEPTED_ENCODINGS).append("\r\n");
+        }
+        sb.append(HTTP_CONNECTION).append(": ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Wraps the stream in a decompressing stream, according to the content encoding.
+     * @param is Stream of the response body
+     * @param contentEncoding Value of the {@code Content-Encoding} header, may be null
+     */
+    public InputStream decode(InputStream is, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return is;
+        }
+        String encoding = contentEncoding.trim().toLowerCase();
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            CountingInputStream raw = new CountingInputStream(is, null);
+            return new CountingInputStream(new GZIPInputStream(raw), raw);
+        } else if (encoding.equals("deflate")) {
+            CountingInputStream raw = new CountingInputStream(is, null);
+            return new CountingInputStream(new InflaterInputStream(raw), raw);
+        } else {
+            return is;
+        }
+    }
+
+    /**
+     * Sends a request to the given URL with additional request headers and
+     * reads the response status, possibly retrying the connection.
+     * Responses with an error status (4xx, 5xx) are considered failed.
      * Sets the referer field to the given value.
+     * @param headers Additional request headers, may be null
+     * @return The connection with the response status available
      */
-    public static InputStream getInputStream(URL url, int retries, String referer) throws IOException {
-        InputStream is = null;
+    public HttpURLConnection connect(URL url, int retries, String referer, Map<String, String> headers) throws IOException {
+        HttpURLConnection conn = null;
         int tried = 0;
-        while (is == null) {
+        while (conn == null) {
             try {
                 HttpURLConnection httpConn = getConnection(url);
                 if (referer != null) {
                     httpConn.setRequestProperty(HTTP_REFERER, referer);
                 }
-                is = httpConn.getInputStream();
+                if (headers != null) {
+                    for (Map.Entry<String, String> header : headers.entrySet()) {
+                        httpConn.setRequestProperty(header.getKey(), header.getValue());
+                    }
+                }
+                if (httpConn.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    httpConn.getInputStream();// throws the exception corresponding to the status
+                }
+                conn = httpConn;
             } catch (IOException ex) {
                 if (tried++ == retries) {
                     throw ex;
@@ -118,20 +359,30 @@ public class ConnectionManager {
                 }
             }
         }
-        return is;
+        return conn;
+    }
+
+    /**
+     * Returns an InputStream to the given URL, possibly retrying the connection.
+     * Sets the referer field to the given value.
+     * The stream is decompressed, if the response is compressed.
+     */
+    public InputStream getInputStream(URL url, int retries, String referer) throws IOException {
+        HttpURLConnection conn = connect(url, retries, referer, null);
+        return decode(conn.getInputStream(), conn.getHeaderField(HTTP_CONTENT_ENCODING));
     }
 
     /**
      * Returns an InputStream to the given URL, possibly retrying the connection.
      */
-    public static InputStream getInputStream(URL url, int retries) throws IOException {
+    public InputStream getInputStream(URL url, int retries) throws IOException {
         return getInputStream(url, retries, null);
     }
 
     /**
      * Returns an InputStream to the given URL.
      */
-    public static InputStream getInputStream(URL url) throws IOException {
+    public InputStream getInputStream(URL url) throws IOException {
         return getInputStream(url, 0, null);
     }
 }
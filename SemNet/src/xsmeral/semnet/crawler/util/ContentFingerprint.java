@@ -0,0 +1,142 @@
+package xsmeral.semnet.crawler.util;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fingerprints of page content, used to detect unchanged pages.
+ * <br />
+ * The {@linkplain #digest(byte[]) digest} identifies exactly the same content.
+ * The {@linkplain #simHash(byte[], java.lang.String) SimHash} is a 64-bit
+ * fingerprint of the text of the page, such that similar texts have fingerprints
+ * differing in few bits (see {@link #distance(long, long) distance}).
+ * Markup, scripts, styles and timestamp-like text (times, dates and
+ * long digit strings such as epoch times or generated identifiers) are ignored,
+ * so pages differing only in such boilerplate are near-duplicates.
+ * Other numbers (ratings, years, counts) are kept, as they are often the data
+ * scraped from the page.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class ContentFingerprint {
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final String CHARSET_FALLBACK = "UTF-8";
+    private static final Pattern INVISIBLE = Pattern.compile("<(script|style)[^>]*>.*?</\\1\\s*>|<!--.*?-->", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern MARKUP = Pattern.compile("<[^>]*>|&[#a-zA-Z0-9]+;");
+    private static final Pattern TOKEN = Pattern.compile("[\\p{L}\\p{N}]+");
+    // times, ISO and numeric dates (including the Czech "19. 10. 2026"), 10+ digits
+    private static final Pattern TIMESTAMP = Pattern.compile(
+            "\\b\\d{1,2}:\\d{2}(:\\d{2})?(\\s*[ap]\\.?m\\b\\.?)?"
+            + "|\\b\\d{4}-\\d{2}-\\d{2}([T ]\\d{2}:\\d{2}(:\\d{2})?)?"
+            + "|\\b\\d{1,2}[./-] ?\\d{1,2}[./-] ?\\d{2,4}\\b"
+            + "|\\b\\d{10,}\\b", Pattern.CASE_INSENSITIVE);
+    private static final int SHINGLE_SIZE = 3;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentFingerprint() {
+    }
+
+    /**
+     * Returns hexadecimal SHA-1 digest of the content.
+     */
+    public static String digest(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(content);
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not supported", ex);
+        }
+    }
+
+    /**
+     * Returns SimHash of the text of the HTML content.
+     * Timestamp-like text is dropped, the rest is split into words and
+     * the fingerprint is computed from shingles (runs of {@value #SHINGLE_SIZE} words).
+     * @param content HTML content
+     * @param charset Character set of the content, UTF-8 is used if null or unsupported
+     * @return The fingerprint, 0 if the content has no text
+     */
+    public static long simHash(byte[] content, String charset) {
+        Charset cs;
+        try {
+            cs = Charset.forName(charset);
+        } catch (IllegalArgumentException ex) {
+            cs = Charset.forName(CHARSET_FALLBACK);
+        }
+        String html = new String(content, cs);
+        String text = MARKUP.matcher(INVISIBLE.matcher(html).replaceAll(" ")).replaceAll(" ");
+        text = TIMESTAMP.matcher(text).replaceAll(" ");
+        List<String> words = new ArrayList<String>();
+        Matcher m = TOKEN.matcher(text);
+        while (m.find()) {
+            words.add(m.group().toLowerCase());
+        }
+        if (words.isEmpty()) {
+            return 0;
+        }
+        int[] weights = new int[64];
+        int shingles = Math.max(1, words.size() - SHINGLE_SIZE + 1);
+        for (int i = 0; i < shingles; i++) {
+            long hash = FNV_OFFSET;
+            for (int j = i; j < Math.min(words.size(), i + SHINGLE_SIZE); j++) {
+                hash = fnv(hash, words.get(j));
+                hash = fnv(hash, " ");
+            }
+            hash = mix(hash);
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((hash >>> bit) & 1) != 0 ? 1 : -1;
+            }
+        }
+        long result = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                result |= 1L << bit;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the Hamming distance of two SimHash fingerprints (number of differing bits).
+     */
+    public static int distance(long simHash1, long simHash2) {
+        return Long.bitCount(simHash1 ^ simHash2);
+    }
+
+    /**
+     * Spreads the bits of the hash (finalizer of MurmurHash3), FNV alone
+     * is biased in the high bits for short strings.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * FNV-1a hash of the string, continuing from the given hash.
+     */
+    private static long fnv(long hash, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            hash ^= str.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
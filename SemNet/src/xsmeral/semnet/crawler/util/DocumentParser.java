@@ -0,0 +1,51 @@
+package xsmeral.semnet.crawler.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import org.htmlcleaner.CleanerProperties;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+
+/**
+ * Parses HTML content into document trees using
+ * <a href="http://htmlcleaner.sourceforge.net/">HtmlCleaner</a>.
+ * Each thread uses its own cleaner, so the parser can be used by any number of threads.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class DocumentParser {
+
+    private static final String CHARSET_FALLBACK = "UTF-8";
+    private static final ThreadLocal<HtmlCleaner> cleaners = new ThreadLocal<HtmlCleaner>() {
+
+        @Override
+        protected HtmlCleaner initialValue() {
+            CleanerProperties cp = new CleanerProperties();
+            cp.setTransResCharsToNCR(true);
+            cp.setTransSpecialEntitiesToNCR(true);
+            cp.setPruneTags("script,style,embed,object,iframe");
+            return new HtmlCleaner(cp);
+        }
+    };
+
+    private DocumentParser() {
+    }
+
+    /**
+     * Parses the HTML content.
+     * @param content HTML content
+     * @param charset Character set of the content, UTF-8 is used if null or unsupported
+     * @return Root node of the document
+     */
+    public static TagNode parse(byte[] content, String charset) throws IOException {
+        try {
+            if (charset == null || !Charset.isSupported(charset)) {
+                charset = CHARSET_FALLBACK;
+            }
+        } catch (IllegalArgumentException ex) {// illegal name
+            charset = CHARSET_FALLBACK;
+        }
+        return cleaners.get().clean(new ByteArrayInputStream(content), charset);
+    }
+}
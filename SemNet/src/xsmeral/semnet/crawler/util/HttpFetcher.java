@@ -0,0 +1,1017 @@
+package xsmeral.semnet.crawler.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous HTTP fetcher, keeps many requests in flight using one thread.
+ * <br />
+ * Requests are {@linkplain #submit(java.net.URL, long, int, java.lang.String, java.util.Map, java.lang.Object) submitted}
+ * with an arbitrary attachment and responses are {@linkplain #poll(long) taken}
+ * from a queue of completed requests, in the order of completion.
+ * <br />
+ * Politeness is enforced per host - at most one request to a host is in progress
+ * at a time and consecutive requests to a host are started at least the
+ * supplied crawl delay apart.
+ * <br />
+ * Plain HTTP requests are served by non-blocking sockets in a selector thread.
+ * Host names are resolved in a small thread pool, once per host, so neither
+ * the submitting thread nor the selector thread waits for DNS.
+ * If keep-alive is enabled, the connections are pooled per host and reused
+ * by subsequent requests to the host.
+ * Other protocols (HTTPS) fall back to blocking {@link HttpURLConnection}s
+ * in a small thread pool.
+ * Network settings (timeouts, user agent, following of redirects, compression,
+ * keep-alive) are taken from a {@link ConnectionManager}.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class HttpFetcher {
+
+    private static final int BLOCKING_THREADS = 4;
+    private static final int RESOLVER_THREADS = 4;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int RETRY_WAIT = 5000;
+    private static final int MAX_SELECT_WAIT = 1000;
+    private static final int READ_BUFFER_SIZE = 16384;
+    private static final String CHARSET = "ISO-8859-1";
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    /**
+     * Response to a submitted request.
+     */
+    public static class Response {
+
+        private final URL url;
+        private final Object attachment;
+        private final ConnectionManager connMgr;
+        private URL finalURL;
+        private int status = -1;
+        private Map<String, String> headers = Collections.emptyMap();
+        private byte[] body;
+        private IOException error;
+
+        private Response(URL url, Object attachment, ConnectionManager connMgr) {
+            this.url = url;
+            this.attachment = attachment;
+            this.connMgr = connMgr;
+        }
+
+        /**
+         * Returns the requested URL.
+         */
+        public URL getURL() {
+            return url;
+        }
+
+        /**
+         * Returns the URL of the response, differs from the requested one if redirected.
+         */
+        public URL getFinalURL() {
+            return finalURL;
+        }
+
+        /**
+         * Returns the object supplied with the request.
+         */
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        /**
+         * Returns HTTP status code, or -1 if the request failed.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the value of a response header (case-insensitive), or null.
+         * Multiple occurrences of a header are joined by comma.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        /**
+         * Returns the decompressed response body, or null if the request failed.
+         */
+        public byte[] getBody() throws IOException {
+            InputStream is = getBodyStream();
+            return is != null ? readFully(is) : null;
+        }
+
+        /**
+         * Returns a stream of the response body, decompressing it on the fly if
+         * the response is compressed, or null if the request failed.
+         */
+        public InputStream getBodyStream() throws IOException {
+            if (body == null) {
+                return null;
+            }
+            return connMgr.decode(new ByteArrayInputStream(body), getHeader("Content-Encoding"));
+        }
+
+        /**
+         * Returns the exception that caused the request to fail, or null.
+         */
+        public IOException getError() {
+            return error;
+        }
+
+        /**
+         * Indicates whether the request succeeded with a 2xx status.
+         */
+        public boolean isSuccess() {
+            return error == null && status >= 200 && status < 300;
+        }
+    }
+
+    /**
+     * A request waiting or being processed.
+     */
+    private static class Request {
+
+        private final Response response;
+        private final String referrer;
+        private final Map<String, String> headers;
+        private URL url;
+        private int retriesLeft;
+        private int redirects = 0;
+        private long delay;
+
+        public Request(URL url, String referrer, Map<String, String> headers, int retries, long delay, Object attachment, ConnectionManager connMgr) {
+            this.response = new Response(url, attachment, connMgr);
+            this.url = url;
+            this.referrer = referrer;
+            this.headers = headers;
+            this.retriesLeft = retries;
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * Politeness state of one host.
+     */
+    private static class Host implements Comparable<Host> {
+
+        private final String key;
+        private final String hostName;
+        private final int port;
+        private final Queue<Request> pending = new LinkedList<Request>();
+        private final Deque<SelectionKey> idle = new LinkedList<SelectionKey>();
+        private long nextAt = 0;
+        private boolean active = false;
+        private boolean scheduled = false;
+        // resolved address, accessed by the selector thread only
+        private InetSocketAddress address;
+
+        public Host(String key, String hostName, int port) {
+            this.key = key;
+            this.hostName = hostName;
+            this.port = port;
+        }
+
+        @Override
+        public int compareTo(Host o) {
+            return nextAt < o.nextAt ? -1 : (nextAt > o.nextAt ? 1 : 0);
+        }
+    }
+
+    /**
+     * Attachment of a pooled idle connection.
+     */
+    private static class Idle {
+
+        private final Host host;
+        private final long since;
+
+        public Idle(Host host, long since) {
+            this.host = host;
+            this.since = since;
+        }
+    }
+
+    /**
+     * A request being processed over a non-blocking socket.
+     */
+    private class Exchange {
+
+        private final Request request;
+        private final Host host;
+        private final SocketChannel channel;
+        private final boolean reused;
+        private final ByteBuffer out;
+        private final ReceiveBuffer in = new ReceiveBuffer();
+        private long deadline;
+        private int headerEnd = -1;
+        // where the search for the end of head continues
+        private int headerScan = 0;
+        private int contentLength = -1;
+        private boolean chunked = false;
+        private boolean persistent = false;
+        // decoded chunks and position of the next chunk in received data
+        private ByteArrayOutputStream chunkedBody;
+        private int chunkPos;
+        private boolean chunksDone = false;
+
+        /**
+         * Sends the request over a pooled connection to the host, or opens a new one.
+         * @param pooled Whether a pooled connection may be used
+         */
+        public Exchange(Request request, Host host, boolean pooled) throws IOException {
+            this.request = request;
+            this.host = host;
+            this.out = ByteBuffer.wrap(requestHead(request).getBytes(CHARSET));
+            SelectionKey key = pooled ? takeIdle(host) : null;
+            this.reused = key != null;
+            if (reused) {
+                this.channel = (SocketChannel) key.channel();
+                key.attach(this);
+                key.interestOps(SelectionKey.OP_WRITE);
+                deadline = System.currentTimeMillis() + connMgr.getReadTimeout();
+            } else {
+                this.channel = SocketChannel.open();
+                boolean registered = false;
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    deadline = System.currentTimeMillis() + connMgr.getConnTimeout();
+                    if (channel.connect(host.address)) {
+                        channel.register(selector, SelectionKey.OP_WRITE, this);
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, this);
+                    }
+                    registered = true;
+                } finally {
+                    if (!registered) {
+                        closeChannel(channel);
+                    }
+                }
+            }
+            connMgr.countRequest(reused);
+        }
+
+        /**
+         * Performs the I/O operation the key is ready for.
+         * @return True, if the response has been read completely
+         */
+        public boolean handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                key.interestOps(SelectionKey.OP_WRITE);
+                deadline = System.currentTimeMillis() + connMgr.getReadTimeout();
+            } else if (key.isWritable()) {
+                channel.write(out);
+                if (!out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    if (headerEnd < 0) {
+                        throw new IOException("Connection closed before response");
+                    }
+                    return true;
+                }
+                in.write(readBuffer.array(), 0, read);
+                deadline = System.currentTimeMillis() + connMgr.getReadTimeout();
+                return isComplete();
+            }
+            return false;
+        }
+
+        /**
+         * Parses the head once it has been received and checks whether the body is complete.
+         * Only the newly received data is examined, so the work done over the whole
+         * response is proportional to its size.
+         */
+        private boolean isComplete() throws IOException {
+            byte[] data = in.data();
+            int length = in.size();
+            if (headerEnd < 0) {
+                headerEnd = indexOf(data, length, HEADER_END, headerScan);
+                if (headerEnd < 0) {
+                    headerScan = Math.max(0, length - HEADER_END.length + 1);
+                    return false;
+                }
+                headerEnd += HEADER_END.length;
+                parseHead(new String(data, 0, headerEnd, CHARSET));
+                chunkPos = headerEnd;
+            }
+            int status = request.response.status;
+            if (status < 200 || status == 204 || status == 304) {
+                return true;
+            } else if (chunked) {
+                return decodeChunks(data, length);
+            } else if (contentLength >= 0) {
+                return length - headerEnd >= contentLength;
+            }
+            return false;// read until closed
+        }
+
+        /**
+         * Decodes the chunks received completely since the last call.
+         * @return True, if the last chunk and trailers have been received
+         */
+        private boolean decodeChunks(byte[] data, int length) throws IOException {
+            if (chunkedBody == null) {
+                chunkedBody = new ByteArrayOutputStream();
+            }
+            while (!chunksDone) {
+                int lineEnd = indexOfCRLF(data, length, chunkPos);
+                if (lineEnd < 0) {
+                    return false;
+                }
+                String sizeLine = new String(data, chunkPos, lineEnd - chunkPos, CHARSET);
+                int semicolon = sizeLine.indexOf(';');
+                int size;
+                try {
+                    size = Integer.parseInt((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                if (size < 0) {
+                    throw new IOException("Invalid chunk size: " + sizeLine);
+                }
+                int dataStart = lineEnd + 2;
+                if (size == 0) {
+                    // trailers end with an empty line
+                    int pos = dataStart;
+                    while (true) {
+                        int trailerEnd = indexOfCRLF(data, length, pos);
+                        if (trailerEnd < 0) {
+                            return false;
+                        }
+                        if (trailerEnd == pos) {
+                            chunksDone = true;
+                            break;
+                        }
+                        pos = trailerEnd + 2;
+                    }
+                } else {
+                    if ((long) length < (long) dataStart + size + 2) {
+                        return false;
+                    }
+                    chunkedBody.write(data, dataStart, size);
+                    chunkPos = dataStart + size + 2;
+                }
+            }
+            return true;
+        }
+
+        private void parseHead(String head) throws IOException {
+            String[] lines = head.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+            try {
+                request.response.status = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid status line: " + lines[0]);
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    String name = lines[i].substring(0, colon).trim().toLowerCase();
+                    String value = lines[i].substring(colon + 1).trim();
+                    String prev = headers.get(name);
+                    headers.put(name, prev == null ? value : prev + ", " + value);
+                }
+            }
+            request.response.headers = headers;
+            String connection = headers.get("connection");
+            persistent = statusLine[0].equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connection)
+                    : "keep-alive".equalsIgnoreCase(connection);
+            chunked = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
+            String length = headers.get("content-length");
+            if (length != null) {
+                try {
+                    contentLength = Integer.parseInt(length);
+                } catch (NumberFormatException ex) {
+                    contentLength = -1;
+                }
+            }
+        }
+
+        /**
+         * Extracts the body from received data.
+         */
+        public byte[] getBody() throws IOException {
+            if (chunked) {
+                if (!decodeChunks(in.data(), in.size())) {
+                    throw new IOException("Incomplete chunked response");
+                }
+                return chunkedBody.toByteArray();
+            }
+            byte[] data = in.data();
+            int length = in.size() - headerEnd;
+            if (contentLength >= 0) {
+                if (length < contentLength) {
+                    throw new IOException("Incomplete response");
+                }
+                length = contentLength;
+            }
+            byte[] body = new byte[Math.max(0, length)];
+            System.arraycopy(data, headerEnd, body, 0, body.length);
+            return body;
+        }
+
+        /**
+         * Indicates whether the connection can be reused after the response has been read.
+         */
+        public boolean isReusable() {
+            int status = request.response.status;
+            boolean delimited = chunked || contentLength >= 0 || status < 200 || status == 204 || status == 304;
+            return connMgr.isKeepAlive() && persistent && delimited;
+        }
+
+        /**
+         * Indicates whether a pooled connection failed before receiving anything,
+         * probably closed by the server while idle.
+         */
+        public boolean isStale() {
+            return reused && in.size() == 0;
+        }
+    }
+
+    /**
+     * Received data, accessible without copying.
+     */
+    private static class ReceiveBuffer extends ByteArrayOutputStream {
+
+        public ReceiveBuffer() {
+            super(READ_BUFFER_SIZE);
+        }
+
+        /**
+         * Returns the internal array, valid up to {@link #size()}.
+         */
+        public byte[] data() {
+            return buf;
+        }
+    }
+    //
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private final PriorityQueue<Host> scheduled = new PriorityQueue<Host>();
+    private final BlockingQueue<Response> completed = new LinkedBlockingQueue<Response>();
+    private final Queue<Object[]> finished = new ConcurrentLinkedQueue<Object[]>();
+    private final Queue<Object[]> resolved = new ConcurrentLinkedQueue<Object[]>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ConnectionManager connMgr;
+    private final Selector selector;
+    private final ExecutorService blockingPool;
+    private final ExecutorService resolverPool;
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and starts the selector thread.
+     * @param connMgr Connection settings
+     * @throws IOException If the selector can't be opened
+     */
+    public HttpFetcher(ConnectionManager connMgr) throws IOException {
+        this.connMgr = connMgr;
+        selector = Selector.open();
+        blockingPool = Executors.newFixedThreadPool(BLOCKING_THREADS, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fetcher-blocking");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        resolverPool = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fetcher-resolver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        selectorThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "fetcher-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Submits a request.
+     * @param url The URL to fetch
+     * @param crawlDelay Minimum time (ms) between starts of requests to the host of the URL
+     * @param retries Number of retries of a failed request
+     * @param referrer Value of the Referer header or null
+     * @param headers Additional request headers or null, not sent when following redirects
+     * @param attachment Arbitrary object returned with the response
+     */
+    public void submit(URL url, long crawlDelay, int retries, String referrer, Map<String, String> headers, Object attachment) {
+        Request request = new Request(url, referrer, headers, retries, crawlDelay, attachment, connMgr);
+        outstanding.incrementAndGet();
+        enqueue(request);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the next completed response, waiting up to the specified time.
+     * @return The response or null if none completed in time
+     */
+    public Response poll(long timeout) throws InterruptedException {
+        return completed.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns number of submitted requests whose responses have not yet been taken
+     * by {@link #poll(long) poll}.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Removes requests that have not been started yet.
+     * @return Attachments of the removed requests
+     */
+    public synchronized Collection<Object> cancelPending() {
+        Collection<Object> attachments = new ArrayList<Object>();
+        for (Host host : hosts.values()) {
+            for (Request request : host.pending) {
+                attachments.add(request.response.attachment);
+                outstanding.decrementAndGet();
+            }
+            host.pending.clear();
+        }
+        return attachments;
+    }
+
+    /**
+     * Stops the selector thread, closes all connections, shuts down the blocking pool.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        blockingPool.shutdownNow();
+        resolverPool.shutdownNow();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException ex) {
+            Logger.getLogger(HttpFetcher.class.getName()).log(Level.WARNING, "Interrupted while shutting down");
+        }
+    }
+
+    /**
+     * Adds the request to the queue of its host and schedules the host.
+     */
+    private void enqueue(Request request) {
+        URL url = request.url;
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+        synchronized (this) {
+            Host host = hosts.get(key);
+            if (host == null) {
+                host = new Host(key, url.getHost(), port);
+                hosts.put(key, host);
+            }
+            host.pending.add(request);
+            schedule(host);
+        }
+    }
+
+    /**
+     * Puts the host to the schedule, if it has pending requests and is idle.
+     * Must be called while holding the lock.
+     */
+    private void schedule(Host host) {
+        if (!host.active && !host.scheduled && !host.pending.isEmpty()) {
+            host.scheduled = true;
+            scheduled.add(host);
+        }
+    }
+
+    /**
+     * The selector thread loop.
+     */
+    private void loop() {
+        while (running) {
+            try {
+                long wait = startDue();
+                selector.select(wait);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Exchange exchange = (Exchange) key.attachment();
+                    try {
+                        if (key.isValid() && exchange.handle(key)) {
+                            Response response = exchange.request.response;
+                            response.body = exchange.getBody();
+                            response.finalURL = exchange.request.url;
+                            if (exchange.isReusable()) {
+                                release(key, exchange.host);
+                            } else {
+                                close(key);
+                            }
+                            finish(exchange.request, exchange.host);
+                        }
+                    } catch (IOException ex) {
+                        close(key);
+                        if (exchange.isStale()) {
+                            start(exchange.request, exchange.host, false);
+                        } else {
+                            fail(exchange.request, exchange.host, ex);
+                        }
+                    }
+                }
+                Object[] ready;
+                while ((ready = resolved.poll()) != null) {
+                    Host host = (Host) ready[1];
+                    host.address = (InetSocketAddress) ready[2];
+                    startExchange((Request) ready[0], host, (Boolean) ready[3]);
+                }
+                checkTimeouts();
+                Object[] done;
+                while ((done = finished.poll()) != null) {
+                    finish((Request) done[0], (Host) done[1]);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(HttpFetcher.class.getName()).log(Level.SEVERE, "Selector failed", ex);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            Logger.getLogger(HttpFetcher.class.getName()).log(Level.FINE, "Can''t close selector: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts requests to hosts whose crawl delay has elapsed.
+     * @return Time (ms) until the next host is due
+     */
+    private long startDue() {
+        List<Object[]> toStart = new ArrayList<Object[]>();
+        long wait = MAX_SELECT_WAIT;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            while (!scheduled.isEmpty()) {
+                Host host = scheduled.peek();
+                if (host.nextAt > now) {
+                    wait = Math.min(wait, host.nextAt - now);
+                    break;
+                }
+                scheduled.poll();
+                host.scheduled = false;
+                Request request = host.pending.poll();
+                if (request != null) {
+                    host.active = true;
+                    host.nextAt = now + request.delay;
+                    toStart.add(new Object[]{request, host});
+                }
+            }
+        }
+        for (Object[] pair : toStart) {
+            start((Request) pair[0], (Host) pair[1], true);
+        }
+        return Math.max(1, wait);
+    }
+
+    /**
+     * Starts the request, either over a non-blocking socket or in the blocking pool.
+     * If the address of the host is not known yet, it is resolved in the resolver pool
+     * and the request is started by the selector thread afterwards.
+     * @param pooled Whether a pooled connection may be used
+     */
+    private void start(final Request request, final Host host, final boolean pooled) {
+        if (isPlain(request.url)) {
+            if (host.address != null) {
+                startExchange(request, host, pooled);
+            } else {
+                resolverPool.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        resolved.add(new Object[]{request, host, new InetSocketAddress(host.hostName, host.port), pooled});
+                        selector.wakeup();
+                    }
+                });
+            }
+        } else {
+            blockingPool.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    fetchBlocking(request);
+                    finished.add(new Object[]{request, host});
+                    selector.wakeup();
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts the request over a non-blocking socket to the resolved address of the host.
+     */
+    private void startExchange(Request request, Host host, boolean pooled) {
+        try {
+            if (host.address.isUnresolved()) {
+                throw new UnknownHostException("Unknown host: " + host.hostName);
+            }
+            new Exchange(request, host, pooled);
+        } catch (IOException ex) {
+            fail(request, host, ex);
+        }
+    }
+
+    /**
+     * Fetches the request using HttpURLConnection (which follows redirects by itself).
+     */
+    private void fetchBlocking(Request request) {
+        Response response = request.response;
+        while (true) {
+            try {
+                HttpURLConnection conn = connMgr.getConnection(request.url);
+                if (request.referrer != null) {
+                    conn.setRequestProperty("Referer", request.referrer);
+                }
+                if (request.headers != null) {
+                    for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                        conn.setRequestProperty(header.getKey(), header.getValue());
+                    }
+                }
+                response.status = conn.getResponseCode();
+                Map<String, String> headers = new HashMap<String, String>();
+                for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+                    if (header.getKey() != null) {
+                        StringBuilder value = new StringBuilder();
+                        for (String v : header.getValue()) {
+                            value.append(value.length() > 0 ? ", " : "").append(v);
+                        }
+                        headers.put(header.getKey().toLowerCase(), value.toString());
+                    }
+                }
+                response.headers = headers;
+                InputStream is = response.status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+                response.body = is != null ? readFully(is) : new byte[0];
+                response.finalURL = conn.getURL();
+                response.error = null;
+                return;
+            } catch (IOException ex) {
+                response.error = ex;
+                if (request.retriesLeft-- <= 0) {
+                    return;
+                }
+                try {
+                    Thread.sleep(RETRY_WAIT);
+                } catch (InterruptedException ex1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a failed exchange - retries the request or completes it with the error.
+     */
+    private void fail(Request request, Host host, IOException error) {
+        if (error instanceof UnknownHostException || error instanceof ConnectException) {
+            // resolve again on retry
+            host.address = null;
+        }
+        if (request.retriesLeft-- > 0) {
+            synchronized (this) {
+                host.active = false;
+                host.nextAt = Math.max(host.nextAt, System.currentTimeMillis() + RETRY_WAIT);
+                ((LinkedList<Request>) host.pending).addFirst(request);
+                schedule(host);
+            }
+        } else {
+            request.response.error = error;
+            request.response.status = -1;
+            finish(request, host);
+        }
+    }
+
+    /**
+     * Follows a redirect, or puts the response to the queue of completed ones.
+     * Schedules next request of the host.
+     */
+    private void finish(Request request, Host host) {
+        synchronized (this) {
+            host.active = false;
+            schedule(host);
+        }
+        Response response = request.response;
+        String location = response.getHeader("Location");
+        if (isPlain(request.url) && response.error == null && isRedirect(response.status)
+                && location != null && connMgr.isFollowRedirects()) {
+            if (request.redirects < MAX_REDIRECTS) {
+                try {
+                    request.url = new URL(request.url, location);
+                    request.redirects++;
+                    enqueue(request);
+                    return;
+                } catch (MalformedURLException ex) {
+                    response.error = ex;
+                }
+            } else {
+                response.error = new IOException("Too many redirects");
+            }
+        }
+        outstanding.decrementAndGet();
+        completed.add(response);
+    }
+
+    /**
+     * Fails exchanges whose deadline has passed, closes expired idle connections.
+     */
+    private void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.attachment() instanceof Exchange) {
+                Exchange exchange = (Exchange) key.attachment();
+                if (exchange.deadline < now) {
+                    close(key);
+                    fail(exchange.request, exchange.host, new SocketTimeoutException("Timed out: " + exchange.request.url));
+                }
+            } else if (key.attachment() instanceof Idle) {
+                Idle idle = (Idle) key.attachment();
+                if (now - idle.since > connMgr.getKeepAliveTimeout()) {
+                    idle.host.idle.remove(key);
+                    close(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the connection to the pool of the host, closes the oldest one
+     * if there are too many.
+     */
+    private void release(SelectionKey key, Host host) {
+        key.interestOps(0);
+        key.attach(new Idle(host, System.currentTimeMillis()));
+        host.idle.addFirst(key);
+        while (host.idle.size() > Math.max(0, connMgr.getMaxIdlePerHost())) {
+            close(host.idle.removeLast());
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection to the host, which has
+     * not been closed by the server.
+     * @return Key of the connection or null if there is none
+     */
+    private SelectionKey takeIdle(Host host) {
+        ByteBuffer probe = ByteBuffer.allocate(1);
+        SelectionKey key;
+        while ((key = host.idle.pollFirst()) != null) {
+            try {
+                probe.clear();
+                if (key.isValid() && ((SocketChannel) key.channel()).read(probe) == 0) {
+                    return key;
+                }
+            } catch (IOException ex) {
+                // closed by the server, try next
+            }
+            close(key);
+        }
+        return null;
+    }
+
+    /**
+     * Cancels the key and closes its channel.
+     */
+    private static void close(SelectionKey key) {
+        key.cancel();
+        closeChannel(key.channel());
+    }
+
+    private static void closeChannel(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(HttpFetcher.class.getName()).log(Level.FINE, "Can''t close channel: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Indicates whether the URL is fetched over a non-blocking socket.
+     */
+    private static boolean isPlain(URL url) {
+        return "http".equals(url.getProtocol());
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+    }
+
+    private String requestHead(Request request) {
+        URL url = request.url;
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder sb = new StringBuilder();
+        sb.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append("\r\n");
+        sb.append(connMgr.getRequestHeaders());
+        if (request.referrer != null) {
+            sb.append("Referer: ").append(request.referrer).append("\r\n");
+        }
+        if (request.headers != null && request.redirects == 0) {
+            for (Map.Entry<String, String> header : request.headers.entrySet()) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        sb.append("Accept: text/html, */*\r\n\r\n");
+        return sb.toString();
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int indexOfCRLF(byte[] data, int length, int from) {
+        for (int i = from; i < length - 1; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[READ_BUFFER_SIZE];
+        int read;
+        try {
+            while ((read = is.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
+    }
+}
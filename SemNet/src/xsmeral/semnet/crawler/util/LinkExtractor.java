@@ -0,0 +1,294 @@
+package xsmeral.semnet.crawler.util;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Extracts links from HTML content without building a document tree.
+ * <br />
+ * The content is tokenized in place, only start tags {@code a} and {@code base}
+ * are examined and only values of their {@code href} attributes are decoded.
+ * Comments, declarations, end tags and the content of {@code script} and
+ * {@code style} elements are skipped. Character references in the values
+ * are resolved (numeric ones and those of XML). The result corresponds to
+ * {@code //a/@href} and {@code /head/base/@href} queries on the tree built
+ * by HtmlCleaner, except that the first {@code base} anywhere in the content is used.
+ * <br />
+ * Content in a charset that doesn't encode ASCII as single bytes (e.g. UTF-16)
+ * is transcoded to UTF-8 first.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class LinkExtractor {
+
+    private static final String CHARSET_FALLBACK = "UTF-8";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] PROBE = "<a href=\"\">".getBytes(ASCII);
+    private static final Map<String, Boolean> asciiCompatible = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Links found in a document.
+     */
+    public static class Links {
+
+        private String base;
+        private final List<String> hrefs = new ArrayList<String>();
+
+        /**
+         * Returns the value of the first {@code <base href>}, or null.
+         */
+        public String getBase() {
+            return base;
+        }
+
+        /**
+         * Returns values of {@code <a href>}, in document order.
+         */
+        public List<String> getHrefs() {
+            return hrefs;
+        }
+    }
+
+    private LinkExtractor() {
+    }
+
+    /**
+     * Extracts links from the HTML content.
+     * @param content HTML content
+     * @param charset Character set of the content, UTF-8 is used if null or unsupported
+     */
+    public static Links extract(byte[] content, String charset) {
+        Charset cs = forName(charset);
+        if (!isAsciiCompatible(cs)) {
+            cs = Charset.forName(CHARSET_FALLBACK);
+            content = new String(content, forName(charset)).getBytes(cs);
+        }
+        Links links = new Links();
+        int n = content.length;
+        int i = 0;
+        while ((i = indexOf(content, (byte) '<', i, n)) >= 0 && ++i < n) {
+            byte c = content[i];
+            if (c == '!') {
+                int end = startsWith(content, i, "!--") ? indexOf(content, "-->", i + 3) : indexOf(content, (byte) '>', i, n);
+                i = end < 0 ? n : end + 1;
+            } else if (c == '/' || c == '?') {
+                int end = indexOf(content, (byte) '>', i, n);
+                i = end < 0 ? n : end + 1;
+            } else if (isLetter(c)) {
+                int nameStart = i;
+                while (i < n && !isSpace(content[i]) && content[i] != '>' && content[i] != '/') {
+                    i++;
+                }
+                boolean anchor = equalsIgnoreCase(content, nameStart, i, "a");
+                boolean base = !anchor && links.base == null && equalsIgnoreCase(content, nameStart, i, "base");
+                String rawEnd = equalsIgnoreCase(content, nameStart, i, "script") ? "</script"
+                        : (equalsIgnoreCase(content, nameStart, i, "style") ? "</style" : null);
+                i = readTag(content, i, anchor || base ? links : null, base, cs);
+                if (rawEnd != null) {
+                    int end = indexOfIgnoreCase(content, rawEnd, i);
+                    i = end < 0 ? n : end;
+                }
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Reads attributes of a start tag, stores the {@code href} value in links, if not null.
+     * @return Position after the tag
+     */
+    private static int readTag(byte[] b, int i, Links links, boolean base, Charset cs) {
+        int n = b.length;
+        boolean found = false;
+        while (i < n) {
+            while (i < n && (isSpace(b[i]) || b[i] == '/')) {
+                i++;
+            }
+            if (i >= n || b[i] == '>') {
+                return i + 1;
+            }
+            int nameStart = i;
+            while (i < n && !isSpace(b[i]) && b[i] != '=' && b[i] != '>' && b[i] != '/') {
+                i++;
+            }
+            int nameEnd = i;
+            if (nameEnd == nameStart) {// stray '='
+                i++;
+                continue;
+            }
+            while (i < n && isSpace(b[i])) {
+                i++;
+            }
+            if (i < n && b[i] == '=') {
+                i++;
+                while (i < n && isSpace(b[i])) {
+                    i++;
+                }
+                int valueStart, valueEnd;
+                if (i < n && (b[i] == '"' || b[i] == '\'')) {
+                    valueStart = i + 1;
+                    valueEnd = indexOf(b, b[i], valueStart, n);
+                    if (valueEnd < 0) {
+                        valueEnd = n;
+                    }
+                    i = valueEnd + 1;
+                } else {
+                    valueStart = i;
+                    while (i < n && !isSpace(b[i]) && b[i] != '>') {
+                        i++;
+                    }
+                    valueEnd = i;
+                }
+                // the first href attribute is the valid one
+                if (links != null && !found && equalsIgnoreCase(b, nameStart, nameEnd, "href")) {
+                    found = true;
+                    String value = unescape(new String(b, valueStart, valueEnd - valueStart, cs)).trim();
+                    if (base) {
+                        links.base = value;
+                    } else {
+                        links.hrefs.add(value);
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Resolves numeric character references and references to XML entities.
+     * Other references are kept.
+     */
+    private static String unescape(String value) {
+        int amp = value.indexOf('&');
+        if (amp < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        int last = 0;
+        while (amp >= 0) {
+            int semi = value.indexOf(';', amp + 1);
+            if (semi < 0) {
+                break;
+            }
+            String ref = value.substring(amp + 1, semi);
+            int ch = -1;
+            if (ref.startsWith("#x") || ref.startsWith("#X")) {
+                ch = parseCodePoint(ref.substring(2), 16);
+            } else if (ref.startsWith("#")) {
+                ch = parseCodePoint(ref.substring(1), 10);
+            } else if (ref.equals("amp")) {
+                ch = '&';
+            } else if (ref.equals("lt")) {
+                ch = '<';
+            } else if (ref.equals("gt")) {
+                ch = '>';
+            } else if (ref.equals("quot")) {
+                ch = '"';
+            } else if (ref.equals("apos")) {
+                ch = '\'';
+            }
+            if (ch >= 0) {
+                sb.append(value, last, amp).appendCodePoint(ch);
+                last = semi + 1;
+            }
+            amp = value.indexOf('&', ch >= 0 ? semi + 1 : amp + 1);
+        }
+        return sb.append(value, last, value.length()).toString();
+    }
+
+    private static int parseCodePoint(String digits, int radix) {
+        try {
+            int ch = Integer.parseInt(digits, radix);
+            return Character.isValidCodePoint(ch) ? ch : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static Charset forName(String charset) {
+        try {
+            return Charset.forName(charset);
+        } catch (IllegalArgumentException ex) {
+            return Charset.forName(CHARSET_FALLBACK);
+        }
+    }
+
+    /**
+     * Indicates whether the charset encodes ASCII characters of markup as single ASCII bytes.
+     */
+    private static boolean isAsciiCompatible(Charset cs) {
+        Boolean compatible = asciiCompatible.get(cs.name());
+        if (compatible == null) {
+            compatible = cs.canEncode() && Arrays.equals(PROBE, new String(PROBE, ASCII).getBytes(cs));
+            asciiCompatible.put(cs.name(), compatible);
+        }
+        return compatible;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static int indexOf(byte[] b, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] b, String str, int from) {
+        for (int i = from; i <= b.length - str.length(); i++) {
+            if (startsWith(b, i, str)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfIgnoreCase(byte[] b, String str, int from) {
+        for (int i = from; i <= b.length - str.length(); i++) {
+            if (b[i] == '<' && equalsIgnoreCase(b, i, i + str.length(), str)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] b, int from, String str) {
+        if (from + str.length() > b.length) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (b[from + i] != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the ASCII bytes in the range with the lower case string.
+     */
+    private static boolean equalsIgnoreCase(byte[] b, int from, int to, String lowerCase) {
+        if (to - from != lowerCase.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length(); i++) {
+            byte c = b[from + i];
+            if ((c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c) != lowerCase.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
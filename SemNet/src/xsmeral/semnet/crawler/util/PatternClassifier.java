@@ -0,0 +1,177 @@
+package xsmeral.semnet.crawler.util;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies paths by the first of an ordered list of patterns that matches them.
+ * <br />
+ * The literal prefixes of the patterns (the characters every matching path starts with)
+ * are kept in a trie. A path is only matched against the patterns whose prefix
+ * it starts with, which are found by one walk of the trie along the path,
+ * so the classification takes time proportional to the length of the path
+ * and the number of such candidate patterns, rather than all patterns.
+ * Patterns with no literal prefix (e.g. starting with a group or a character class,
+ * or with alternatives at the top level) are candidates for all paths.
+ * <br />
+ * The results for the last {@code cacheSize} paths are cached.
+ * Instances are thread-safe.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class PatternClassifier {
+
+    /**
+     * Default number of cached results.
+     */
+    public static final int DEF_CACHE_SIZE = 10000;
+    private static final String METACHARS = "[](){}.*+?^$|";
+    private static final String OPTIONAL_QUANTIFIERS = "?*{";
+    // marks paths with no matching pattern in the cache
+    private static final Pattern NO_MATCH = Pattern.compile("");
+    private final Pattern[] patterns;
+    private final Node root = new Node();
+    private final Map<String, Pattern> cache;
+
+    /**
+     * Node of the prefix trie.
+     */
+    private static class Node {
+
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+        // patterns whose prefix ends in this node
+        private final BitSet patterns = new BitSet();
+    }
+
+    /**
+     * Builds the trie of the patterns.
+     * @param patterns The patterns, in the order of preference
+     * @param cacheSize Number of cached results
+     */
+    public PatternClassifier(List<Pattern> patterns, final int cacheSize) {
+        this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+        for (int i = 0; i < this.patterns.length; i++) {
+            Node node = root;
+            for (char c : literalPrefix(this.patterns[i]).toCharArray()) {
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.patterns.set(i);
+        }
+        this.cache = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the first pattern that matches the whole path, or null if none does.
+     */
+    public Pattern classify(String path) {
+        Pattern result;
+        synchronized (cache) {
+            result = cache.get(path);
+        }
+        if (result == null) {
+            result = match(path);
+            synchronized (cache) {
+                cache.put(path, result);
+            }
+        }
+        return result != NO_MATCH ? result : null;
+    }
+
+    /**
+     * Matches the path against the candidate patterns, in order.
+     * @return The first matching pattern, or {@link #NO_MATCH}
+     */
+    private Pattern match(String path) {
+        BitSet candidates = new BitSet(patterns.length);
+        Node node = root;
+        candidates.or(node.patterns);
+        for (int i = 0; i < path.length() && (node = node.children.get(path.charAt(i))) != null; i++) {
+            candidates.or(node.patterns);
+        }
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (patterns[i].matcher(path).matches()) {
+                return patterns[i];
+            }
+        }
+        return NO_MATCH;
+    }
+
+    /**
+     * Returns the characters every string matched by the pattern starts with.
+     * The prefix ends before the first metacharacter, escape of a character class
+     * and before a literal that may be omitted (followed by an optional quantifier).
+     */
+    private static String literalPrefix(Pattern pattern) {
+        String regex = pattern.pattern();
+        if ((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.LITERAL)) != 0
+                || hasTopLevelAlternatives(regex)) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break;// class, boundary, back-reference or quotation
+                }
+                c = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (METACHARS.indexOf(c) >= 0) {
+                break;
+            } else {
+                next = i + 1;
+            }
+            if (next < regex.length() && OPTIONAL_QUANTIFIERS.indexOf(regex.charAt(next)) >= 0) {
+                break;
+            }
+            prefix.append(c);
+            if (next < regex.length() && regex.charAt(next) == '+') {
+                break;
+            }
+            i = next;
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Indicates whether the regex contains {@code |} outside of groups and character classes.
+     */
+    private static boolean hasTopLevelAlternatives(String regex) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                inClass = c != ']';
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '|' && depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
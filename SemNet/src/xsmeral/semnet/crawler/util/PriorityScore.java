@@ -0,0 +1,92 @@
+package xsmeral.semnet.crawler.util;
+
+import xsmeral.semnet.crawler.model.URLEntry;
+
+/**
+ * Priority of URLs in the crawl frontier.
+ * <br />
+ * The priority of an URL is stored as a rank - the time (in seconds) at which
+ * the URL is due (<tt>last_visited + update_freq</tt>), advanced by a number
+ * of update periods given by the value of the URL. URLs are claimed in the
+ * order of increasing rank, so among the current URLs, the most stale and the
+ * most valuable come first. Since the rank doesn't depend on the current time,
+ * it is stored with the URL and indexed.
+ * <br />
+ * The value (in update periods) is
+ * <pre>    (WEIGHT * weight + INLINKS * ln(1 + inlinks) + YIELD * ln(1 + yield)) * reliability</pre>
+ * where {@code weight} is the weight of the entity relative to the heaviest one
+ * of the host (1 for source URLs), {@code inlinks} is the number of times a link
+ * to the URL has been found, {@code yield} is the average number of new entity links
+ * found at the URL and {@code reliability} falls from 1 to 1/4 with the error score.
+ * The value is never negative, so the rank is never later than the due time.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class PriorityScore {
+
+    /**
+     * Weight of the relative entity weight, in update periods.
+     */
+    public static final double WEIGHT = 1.0;
+    /**
+     * Weight of the logarithm of in-link count, in update periods.
+     */
+    public static final double INLINKS = 0.5;
+    /**
+     * Weight of the logarithm of yield, in update periods.
+     */
+    public static final double YIELD = 0.5;
+    /**
+     * Smoothing factor of the yield (weight of the last visit).
+     */
+    public static final float YIELD_SMOOTHING = 0.3f;
+
+    private PriorityScore() {
+    }
+
+    /**
+     * Returns the value of the URL in update periods, see the class description.
+     * @param weight Weight of the entity relative to the heaviest entity of the host, between 0 and 1
+     */
+    public static double value(URLEntry entry, double weight) {
+        double value = WEIGHT * weight
+                + INLINKS * Math.log(1 + Math.max(0, entry.getInlinks()))
+                + YIELD * Math.log(1 + Math.max(0, entry.getYield()));
+        return value * reliability(entry.getScore());
+    }
+
+    /**
+     * Returns the rank of the URL, lower rank means higher priority.
+     * @param weight Weight of the entity relative to the heaviest entity of the host, between 0 and 1
+     */
+    public static int rank(URLEntry entry, double weight) {
+        long due = entry.getLastVisited().getTime() / 1000 + entry.getUpdateFreq();
+        long rank = due - Math.round(entry.getUpdateFreq() * value(entry, weight));
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, rank));
+    }
+
+    /**
+     * Returns the decrease of rank caused by finding more links to the URL.
+     * Ignores reliability, the rank is recomputed exactly when the URL is visited.
+     * @param inlinks Number of in-links before
+     * @param added Number of in-links found
+     */
+    public static int inlinkBoost(int updateFreq, int inlinks, int added) {
+        return (int) Math.round(updateFreq * INLINKS * (Math.log(1 + inlinks + added) - Math.log(1 + inlinks)));
+    }
+
+    /**
+     * Returns the yield after a visit that found the given number of new entity links.
+     */
+    public static float updateYield(float yield, long newLinks) {
+        return (1 - YIELD_SMOOTHING) * yield + YIELD_SMOOTHING * newLinks;
+    }
+
+    /**
+     * Returns the factor reducing value of URLs with errors,
+     * 1 for score 0, 1/4 for the minimum score.
+     */
+    private static double reliability(short score) {
+        return (double) (Math.max(score, URLEntry.SCORE_MIN) - URLEntry.SCORE_MIN + 1) / (1 - URLEntry.SCORE_MIN);
+    }
+}
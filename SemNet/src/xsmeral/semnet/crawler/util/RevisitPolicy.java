@@ -0,0 +1,147 @@
+package xsmeral.semnet.crawler.util;
+
+import xsmeral.semnet.crawler.model.URLEntry;
+
+/**
+ * Adaptive update frequencies (revisit intervals) of URLs.
+ * <br />
+ * Changes of a page are modelled as a Poisson process. Each revisit only tells
+ * whether the page has changed since the last visit, so from {@code X} changes
+ * detected in {@code n} revisits, the number of changes is estimated as
+ * <pre>    -n * ln((n - X + 0.5) / (n + 0.5))</pre>
+ * (the estimator of Cho and Garcia-Molina, which doesn't diverge for {@code X = n}).
+ * The update frequency {@code F} configured for the URL pattern acts as a prior
+ * worth one change in {@code F} seconds, so after observing the URL for {@code T}
+ * seconds (sum of the revisit intervals), the interval is the expected time
+ * between changes
+ * <pre>    (F + T) / (1 + changes)</pre>
+ * A page that doesn't change is revisited less and less often, a page that changes
+ * on each revisit more and more often, within the bounds of {@code minUpdateFreq}
+ * and {@code maxUpdateFreq}.
+ * <br />
+ * If a budget of revisits per day is set, the intervals are multiplied by a common
+ * scale, so that the number of revisits per day needed by all URLs (the sum of
+ * {@code DAY_SEC / interval} over the stored, already scaled intervals) stays within
+ * the budget. The demand is set from the frontier store before each run and tracked
+ * as the intervals change and URLs are added. Since the stored intervals carry the scale
+ * they were computed with, the demand alone doesn't determine the scale; instead,
+ * the scale is multiplied by the ratio of the demand to the budget before each run,
+ * which converges as the URLs are revisited (and starts from 1 in a new instance).
+ * <br />
+ * Instances are thread-safe.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class RevisitPolicy {
+
+    private final int minUpdateFreq;
+    private final int maxUpdateFreq;
+    private final double budget;
+    // revisits per day needed by the stored intervals, guarded by this
+    private double demand;
+    // factor of the computed intervals, guarded by this
+    private double scale = 1;
+
+    /**
+     * Initializes the bounds and the budget.
+     * @param minUpdateFreq The shortest interval, in seconds
+     * @param maxUpdateFreq The longest interval, in seconds
+     * @param budget Maximum number of revisits per day, 0 for unlimited
+     */
+    public RevisitPolicy(int minUpdateFreq, int maxUpdateFreq, double budget) {
+        this.minUpdateFreq = Math.max(1, minUpdateFreq);
+        this.maxUpdateFreq = Math.max(this.minUpdateFreq, maxUpdateFreq);
+        this.budget = budget;
+    }
+
+    /**
+     * Sets the number of revisits per day needed by the stored update frequencies of all URLs.
+     * @see xsmeral.semnet.crawler.FrontierStore#getRevisitRate()
+     */
+    public synchronized void setDemand(double demand) {
+        this.demand = Math.max(0, demand);
+    }
+
+    /**
+     * Returns the number of revisits per day needed by the stored update frequencies of all URLs.
+     */
+    public synchronized double getDemand() {
+        return demand;
+    }
+
+    /**
+     * Corrects the scale by the ratio of the demand to the budget.
+     * Should be called once per run, after the demand is set.
+     */
+    public synchronized void adjustScale() {
+        if (budget > 0) {
+            scale = Math.max(1, scale * demand / budget);
+        }
+    }
+
+    /**
+     * Returns the scale of intervals used to keep the demand within the budget (at least 1).
+     */
+    public synchronized double getScale() {
+        return scale;
+    }
+
+    /**
+     * Records the result of a revisit in the entry.
+     * Must be called before the visit time of the entry is updated.
+     * @param changed Whether the content has changed since the last visit
+     * @param now Time of the revisit
+     */
+    public void observe(URLEntry entry, boolean changed, long now) {
+        long elapsed = (now - entry.getLastVisited().getTime()) / 1000;
+        if (elapsed > 0) {
+            entry.setObservedTime((int) Math.min(Integer.MAX_VALUE, entry.getObservedTime() + elapsed));
+            if (changed) {
+                entry.setChangeCount(entry.getChangeCount() + 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the new update frequency of the visited entry and accounts for
+     * the change in the demand.
+     * @param configuredFreq The update frequency configured for the URL pattern
+     * @param backoff Factor of the interval (at least 1), e.g. of a {@link SourceThrottle}
+     */
+    public int updateFreq(URLEntry entry, int configuredFreq, double backoff) {
+        int prior = configuredFreq > 0 ? configuredFreq : entry.getUpdateFreq();
+        double interval = clamp(backoff * (prior + (double) entry.getObservedTime()) / (1 + changes(entry)));
+        synchronized (this) {
+            int freq = (int) clamp(interval * scale);
+            if (entry.getUpdateFreq() > 0) {
+                demand -= Math.min(demand, (double) URLEntry.DAY_SEC / entry.getUpdateFreq());
+            }
+            demand += (double) URLEntry.DAY_SEC / freq;
+            return freq;
+        }
+    }
+
+    /**
+     * Accounts for URLs added with the given (stored) update frequency.
+     * @param count Number of the added URLs
+     */
+    public synchronized void added(int updateFreq, double count) {
+        if (updateFreq > 0) {
+            demand += count * URLEntry.DAY_SEC / updateFreq;
+        }
+    }
+
+    /**
+     * Returns the estimated number of changes of the entry.
+     */
+    private static double changes(URLEntry entry) {
+        // the first visit is not a revisit
+        int n = Math.max(0, entry.getVisitCount() - 1);
+        int x = Math.min(entry.getChangeCount(), n);
+        return n > 0 ? -n * Math.log((n - x + 0.5) / (n + 0.5)) : 0;
+    }
+
+    private double clamp(double interval) {
+        return Math.max(minUpdateFreq, Math.min(maxUpdateFreq, interval));
+    }
+}
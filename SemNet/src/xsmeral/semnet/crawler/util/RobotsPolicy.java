@@ -1,20 +1,32 @@
 package xsmeral.semnet.crawler.util;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import xsmeral.semnet.crawler.model.URLEntry;
+import xsmeral.semnet.util.URLUtil;
 
 /**
  * Represents site crawling policy defined in
@@ -24,8 +36,23 @@ import java.util.regex.Pattern;
  * This implementation allows non-standard, however, widely used extensions
  * {@code Allow}, {@code Crawl-delay} and wildcards in URIs.<br />
  * The parser is lenient, ignoring non-matching lines and unknown fields.<br />
- * A more specific rule overrides a less specific rule (if a rule exists for
- * one specific user agent, it overrides the rule for *).
+ * A more specific rule overrides a less specific rule (if a group of rules exists for
+ * one specific user agent, it overrides the group for *).
+ * <br />
+ * As in <a href="http://www.rfc-editor.org/rfc/rfc9309">RFC 9309</a>, a group
+ * starts with one or more {@code User-agent} lines, groups for the same user agent
+ * are merged, {@code *} in a rule matches any sequence of characters and {@code $}
+ * at its end anchors it at the end of the URI. The longest matching rule decides,
+ * {@code Allow} wins over {@code Disallow} of the same length.
+ * The rules are compiled into a {@link PatternClassifier} in this order of precedence,
+ * so the deciding rule is found by one walk along the URI and a check of the rules
+ * with wildcards on the way. {@code /robots.txt} itself is always allowed.
+ * <br />
+ * If a cache directory is set, the loaded robots.txt is saved there and used
+ * instead of requesting it again until it is older than the TTL. If the policy
+ * can't be loaded, an expired cached copy (or the previously loaded policy) is used.
+ * If an executor is set, an expired policy is reloaded in the background
+ * on the next check, the old policy is used meanwhile.
  *
  * @author Ron Šmeral (xsmeral@fi.muni.cz)
  */
@@ -36,6 +63,10 @@ public class RobotsPolicy {
      *  # comment
      */
 
+    /**
+     * Default time to live of a policy, in seconds.
+     */
+    public static final int DEF_TTL = URLEntry.DAY_SEC;
     // file format constants
     private static final String ROBOTS_TXT = "/robots.txt";
     private static final String DISALLOW = "Disallow";
@@ -43,8 +74,12 @@ public class RobotsPolicy {
     private static final String CRAWL_DELAY = "Crawl-delay";
     private static final String USER_AGENT = "User-agent";
     private static final String WILDCARD = "*";
+    private static final String END_ANCHOR = "$";
     private static final String OR = "|";
     private static final String COLON = ":";
+    private static final String CHARSET = "UTF-8";
+    private static final String CACHE_SUFFIX = ".robots.txt";
+    private static final int RULE_CACHE_SIZE = 1000;
     // regex parts
     private static final String OPT_SPACE = "\\s*";
     private static final String OPT_COMMENT = "(#.*)?";
@@ -59,93 +94,167 @@ public class RobotsPolicy {
             Pattern.CASE_INSENSITIVE);
     // vars
     private String userAgent;
+    private String productToken;
+    private ConnectionManager connMgr;
     private URL host;
-    private boolean allowAll;
-    private float crawlDelay;
-    private List<String> allows;
-    private List<String> disallows;
+    private File cacheDir;
+    private long ttlMillis;
+    private Executor refresher;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Rules rules;
+
+    /**
+     * Compiled rules of the group for the user agent, immutable.
+     */
+    private static final class Rules {
+
+        private final long loadedAt;
+        private final float crawlDelay;
+        // null if all URIs are allowed
+        private final PatternClassifier classifier;
+        private final Map<Pattern, Boolean> allowed;
+
+        private Rules(long loadedAt, float crawlDelay, PatternClassifier classifier, Map<Pattern, Boolean> allowed) {
+            this.loadedAt = loadedAt;
+            this.crawlDelay = crawlDelay;
+            this.classifier = classifier;
+            this.allowed = allowed;
+        }
+    }
 
     /**
-     * Calls {@link #load(java.net.URL) load} for the specified host and user agent.
+     * A rule of the group, compared by precedence.
+     */
+    private static final class Rule implements Comparable<Rule> {
+
+        private final String path;
+        private final boolean allow;
+
+        private Rule(String path, boolean allow) {
+            this.path = path;
+            this.allow = allow;
+        }
+
+        /**
+         * Longer rules first, {@code Allow} before {@code Disallow} of the same length.
+         */
+        @Override
+        public int compareTo(Rule o) {
+            if (path.length() != o.path.length()) {
+                return o.path.length() - path.length();
+            }
+            return allow == o.allow ? 0 : (allow ? -1 : 1);
+        }
+    }
+
+    /**
+     * Calls {@link #load(java.net.URL) load} for the specified host and user agent,
+     * using the {@linkplain ConnectionManager#getDefault() default} connection settings.
      *
      * @param host The host to get the policy for
      * @param userAgent User agent, rules for which are searched
      */
     public RobotsPolicy(URL host, String userAgent) {
-        this.userAgent = userAgent;
+        setUserAgent(userAgent);
+        this.connMgr = ConnectionManager.getDefault();
         load(host);
     }
 
     /**
-     * Tries to load robots.txt at the specified host.
+     * Calls {@link #load(java.net.URL) load} for the specified host, searching rules
+     * for the user agent of the supplied connection manager.
+     *
+     * @param host The host to get the policy for
+     * @param connMgr Connection settings used to load the policy
+     */
+    public RobotsPolicy(URL host, ConnectionManager connMgr) {
+        this(host, connMgr, null, 0, null);
+    }
+
+    /**
+     * Calls {@link #load(java.net.URL) load} for the specified host, searching rules
+     * for the user agent of the supplied connection manager.
+     *
+     * @param host The host to get the policy for
+     * @param connMgr Connection settings used to load the policy
+     * @param cacheDir Directory of cached policies, or null
+     * @param ttl Time (in seconds) after which the policy expires, 0 for never
+     * @param refresher Executor reloading expired policies, or null
+     */
+    public RobotsPolicy(URL host, ConnectionManager connMgr, File cacheDir, int ttl, Executor refresher) {
+        setUserAgent(connMgr.getUserAgent());
+        this.connMgr = connMgr;
+        this.cacheDir = cacheDir;
+        this.ttlMillis = ttl * 1000L;
+        this.refresher = refresher;
+        load(host);
+    }
+
+    private void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+        this.productToken = userAgent != null ? userAgent.split("[/\\s]", 2)[0] : null;
+    }
+
+    /**
+     * Tries to load robots.txt at the specified host, or from the cache,
+     * if it contains a copy that has not expired.
      * <br />
      * If the file doesn't exist, is empty or otherwise malformed,
-     * the policy is considered to allow all user agents to all URLs
+     * the policy is considered to allow all user agents to all URLs.
+     * If it can't be loaded, an expired copy from the cache is used, or
+     * the previous policy is kept, if there is any.
      *
      * @param host The host to load the policy from
      */
-    public final void load(URL host) {
+    public final synchronized void load(URL host) {
         this.host = host;
-        allows = new ArrayList<String>();
-        disallows = new ArrayList<String>();
-        allowAll = false;
-        crawlDelay = 0;
+        File cached = getCacheFile();
+        long now = System.currentTimeMillis();
+        String text = null;
+        long loadedAt = now;
+        if (cached != null && cached.isFile() && (ttlMillis <= 0 || now - cached.lastModified() < ttlMillis)) {
+            text = readCached(cached);
+            loadedAt = cached.lastModified();
+        }
+        if (text == null) {
+            text = fetch();
+            if (text != null && cached != null) {
+                writeCached(cached, text);
+            }
+        }
+        if (text == null && cached != null && cached.isFile()) {
+            text = readCached(cached);
+        }
+        if (text != null) {
+            rules = compile(text, loadedAt);
+        } else if (rules != null) {
+            // keep the previous policy, try again after the TTL
+            rules = new Rules(now, rules.crawlDelay, rules.classifier, rules.allowed);
+        } else {
+            rules = new Rules(now, 0, null, null);
+        }
+    }
+
+    /**
+     * Requests robots.txt of the host.
+     * @return The content, empty if the file doesn't exist, or null if it can't be read
+     */
+    private String fetch() {
         BufferedReader br = null;
         try {
             URL robotsURL = host.toURI().resolve(ROBOTS_TXT).toURL();
-            InputStream is = ConnectionManager.getInputStream(robotsURL, 2);
-            br = new BufferedReader(new InputStreamReader(is));
-            boolean userAgentMatch = false, specific = false, general = false, foundSpecific = false;
-            while (br.ready()) {
-                String line = br.readLine();
-                Matcher m = ROBOTS_LINE.matcher(line);
-                String currentField;
-                String currentValue;
-                if (m.matches()) {
-                    currentField = m.group(FIELD_GROUP);
-                    currentValue = m.group(VALUE_GROUP);
-                    if (currentField != null) {
-                        if (currentField.equalsIgnoreCase(USER_AGENT)) {
-                            specific = currentValue.equals(userAgent);
-                            general = currentValue.equals(WILDCARD);
-                            if (specific && !foundSpecific) {
-                                disallows.clear();
-                                allows.clear();
-                                crawlDelay = 0;
-                                foundSpecific = specific;
-                            }
-                            userAgentMatch = currentValue != null && (specific || general);
-                        } else if (userAgentMatch && (!general || !foundSpecific) && currentField.equalsIgnoreCase(DISALLOW)) {
-                            if (currentValue != null && !currentValue.isEmpty()) {
-                                disallows.add(currentValue);
-                            }
-                        } else if (userAgentMatch && currentField.equalsIgnoreCase(ALLOW)) {
-                            if (currentValue != null && !currentValue.isEmpty()) {
-                                allows.add(currentValue);
-                            }
-                        } else if (userAgentMatch && currentField.equalsIgnoreCase(CRAWL_DELAY)) {
-                            try {
-                                crawlDelay = Float.parseFloat(currentValue);
-                            } catch (NumberFormatException ex) {
-                                //ignore error, interpret the number as 0
-                            }
-                        }
-                    }
-                }
-            }
-            allowAll = disallows.isEmpty();
+            InputStream is = connMgr.getInputStream(robotsURL, 2);
+            br = new BufferedReader(new InputStreamReader(is, CHARSET));
+            return read(br);
         } catch (FileNotFoundException ex) {
             Logger.getLogger(RobotsPolicy.class.getName()).log(Level.INFO, "Robots policy file not found");
-            allowAll = true;
+            return "";
         } catch (URISyntaxException ex) {
             Logger.getLogger(RobotsPolicy.class.getName()).log(Level.INFO, "Can't read Robots policy file");
-            allowAll = true;
         } catch (MalformedURLException ex) {
             Logger.getLogger(RobotsPolicy.class.getName()).log(Level.INFO, "Can't read Robots policy file");
-            allowAll = true;
         } catch (IOException ex) {
             Logger.getLogger(RobotsPolicy.class.getName()).log(Level.INFO, "Can't read Robots policy file");
-            allowAll = true;
         } finally {
             try {
                 if (br != null) {
@@ -155,6 +264,171 @@ public class RobotsPolicy {
                 Logger.getLogger(RobotsPolicy.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        return null;
+    }
+
+    private static String read(BufferedReader br) throws IOException {
+        StringBuilder text = new StringBuilder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the file of the cached policy of the host, or null if there's no cache.
+     */
+    private File getCacheFile() {
+        if (cacheDir == null) {
+            return null;
+        }
+        String name = host.getHost() + (host.getPort() != -1 ? "_" + host.getPort() : "");
+        return new File(cacheDir, name.replaceAll("[^\\w.-]", "_") + CACHE_SUFFIX);
+    }
+
+    private String readCached(File file) {
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            return read(br);
+        } catch (IOException ex) {
+            Logger.getLogger(RobotsPolicy.class.getName()).log(Level.WARNING, "Can''t read cached Robots policy file {0}", file);
+            return null;
+        } finally {
+            try {
+                if (br != null) {
+                    br.close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(RobotsPolicy.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the policy to a temporary file, then replaces the cached file with it.
+     */
+    private void writeCached(File file, String text) {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temp), CHARSET);
+            writer.write(text);
+            writer.close();
+            writer = null;
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Can't rename " + temp);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(RobotsPolicy.class.getName()).log(Level.WARNING, "Can''t cache Robots policy file: {0}", ex.getMessage());
+            temp.delete();
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(RobotsPolicy.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Parses the content of robots.txt and compiles the rules of the group
+     * for the user agent (or for *, if there's no specific group).
+     */
+    private Rules compile(String text, long loadedAt) {
+        List<Rule> specificRules = new ArrayList<Rule>();
+        List<Rule> generalRules = new ArrayList<Rule>();
+        Float specificDelay = null, generalDelay = null;
+        boolean inAgents = false, specific = false, general = false, foundSpecific = false;
+        for (String line : text.split("\n")) {
+            Matcher m = ROBOTS_LINE.matcher(line);
+            if (!m.matches() || m.group(FIELD_GROUP) == null) {
+                continue;
+            }
+            String currentField = m.group(FIELD_GROUP);
+            String currentValue = m.group(VALUE_GROUP);
+            if (currentField.equalsIgnoreCase(USER_AGENT)) {
+                // consecutive User-agent lines share the group
+                if (!inAgents) {
+                    specific = general = false;
+                }
+                inAgents = true;
+                if (currentValue.equalsIgnoreCase(userAgent) || currentValue.equalsIgnoreCase(productToken)) {
+                    specific = foundSpecific = true;
+                } else if (currentValue.equals(WILDCARD)) {
+                    general = true;
+                }
+                continue;
+            }
+            inAgents = false;
+            List<Rule> groupRules = specific ? specificRules : (general ? generalRules : null);
+            if (groupRules == null) {
+                continue;
+            }
+            if (currentField.equalsIgnoreCase(CRAWL_DELAY)) {
+                try {
+                    float delay = Float.parseFloat(currentValue);
+                    if (specific) {
+                        specificDelay = delay;
+                    } else {
+                        generalDelay = delay;
+                    }
+                } catch (NumberFormatException ex) {
+                    //ignore error, interpret the number as 0
+                }
+            } else if (!currentValue.isEmpty()) {
+                groupRules.add(new Rule(URLUtil.decodeUnreserved(currentValue), currentField.equalsIgnoreCase(ALLOW)));
+            }
+        }
+        List<Rule> groupRules = foundSpecific ? specificRules : generalRules;
+        Float delay = foundSpecific ? specificDelay : generalDelay;
+        float crawlDelay = delay != null ? delay : 0;
+        boolean anyDisallow = false;
+        for (Rule rule : groupRules) {
+            anyDisallow |= !rule.allow;
+        }
+        if (!anyDisallow) {
+            return new Rules(loadedAt, crawlDelay, null, null);
+        }
+        Collections.sort(groupRules);
+        List<Pattern> patterns = new ArrayList<Pattern>(groupRules.size());
+        Map<Pattern, Boolean> allowed = new HashMap<Pattern, Boolean>();
+        for (Rule rule : groupRules) {
+            Pattern pattern = toPattern(rule.path);
+            patterns.add(pattern);
+            allowed.put(pattern, rule.allow);
+        }
+        return new Rules(loadedAt, crawlDelay, new PatternClassifier(patterns, RULE_CACHE_SIZE), allowed);
+    }
+
+    /**
+     * Converts the rule to a regex matching the URIs the rule applies to.
+     * Characters other than letters and digits are escaped, so that the classifier
+     * can find the literal prefix of the rule.
+     */
+    private static Pattern toPattern(String path) {
+        boolean anchored = path.endsWith(END_ANCHOR);
+        if (anchored) {
+            path = path.substring(0, path.length() - 1);
+        }
+        StringBuilder regex = new StringBuilder(path.length() * 2 + 2);
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (Character.isLetterOrDigit(c) || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        if (!anchored) {
+            regex.append(".*");
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
     }
 
     /**
@@ -168,40 +442,51 @@ public class RobotsPolicy {
     }
 
     /**
-     * Complementary to {@link #allows(java.lang.String) allows}
+     * Complementary to {@link #allows(java.lang.String) allows}.
+     * Starts reloading of the policy, if it has expired and there is an executor.
      *
      * @param relativeUri An URI relative to the host
      * @return True, if the uri is NOT allowed in this host's robots policy
      */
     public boolean disallows(String relativeUri) {
-        if (allowAll) {
+        Rules current = rules;
+        refreshIfExpired(current);
+        if (current.classifier == null) {
             return false;
         }
-        boolean disallowed = false;
-        if (relativeUri.charAt(0) != '/') {
+        if (relativeUri.isEmpty() || relativeUri.charAt(0) != '/') {
             relativeUri = "/" + relativeUri;
         }
-        Iterator<String> it = disallows.iterator();
-        while (it.hasNext() && !disallowed) {
-            String disallowedURI = it.next();
-            if (relativeUri.startsWith(disallowedURI)) {
-                disallowed = true;
-            } else if (disallowedURI.contains("*")) {
-                disallowed = Pattern.matches("^" + disallowedURI.replaceAll("\\*", "[^/]+") + ".*$", relativeUri);
-            }
+        if (relativeUri.equals(ROBOTS_TXT)) {
+            return false;
         }
-        if (disallowed) {
-            it = allows.iterator();
-            while (it.hasNext() && disallowed) {
-                String allowedURI = it.next();
-                if (relativeUri.startsWith(allowedURI)) {
-                    disallowed = false;
-                } else if (allowedURI.contains("*")) {
-                    disallowed = !Pattern.matches("^" + allowedURI.replaceAll("\\*", "[^/]+") + ".*$", relativeUri);
-                }
+        Pattern rule = current.classifier.classify(relativeUri);
+        return rule != null && !current.allowed.get(rule);
+    }
+
+    /**
+     * Reloads the expired policy in the background, at most once at a time.
+     */
+    private void refreshIfExpired(Rules current) {
+        if (refresher != null && ttlMillis > 0 && System.currentTimeMillis() - current.loadedAt >= ttlMillis
+                && refreshing.compareAndSet(false, true)) {
+            try {
+                refresher.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            load(host);
+                            Logger.getLogger(RobotsPolicy.class.getName()).log(Level.FINE, "Robots policy of {0} reloaded", host);
+                        } finally {
+                            refreshing.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                refreshing.set(false);
             }
         }
-        return disallowed;
     }
 
     /**
@@ -210,24 +495,24 @@ public class RobotsPolicy {
      * @return True, if all URLs are allowed for this user-agent
      */
     public boolean allowsAll() {
-        return allowAll;
+        return rules.classifier == null;
     }
 
     /**
      * Returns the crawl delay in seconds.<br />
      * Crawl delay is the minimal amount of time a crawler should wait before
      * any two consequent requests to the same host.
-     * 
+     *
      * @return The crawl delay in seconds
      */
     public float getCrawlDelay() {
-        return crawlDelay;
+        return rules.crawlDelay;
     }
 
     /**
      * Returns the crawl delay in milliseconds
      */
     public int getCrawlDelayMillis() {
-        return (int) (crawlDelay * 1000);
+        return (int) (getCrawlDelay() * 1000);
     }
 }
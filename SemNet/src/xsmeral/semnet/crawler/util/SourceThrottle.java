@@ -0,0 +1,91 @@
+package xsmeral.semnet.crawler.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import xsmeral.semnet.crawler.model.URLEntry;
+
+/**
+ * Lowers the revisit frequency of source URLs that yield few new entities.
+ * <br />
+ * The yield of a source URL is the (smoothed) number of new entity links added
+ * on its visits (see {@link URLEntry#getYield()}). The yield of each URL pattern
+ * is tracked as well, the yield of the pattern serves as a prior for URLs
+ * with few visits, worth {@value #PRIOR_VISITS} visits.
+ * If the resulting yield is lower than {@code minYield}, the update frequency
+ * of the URL is multiplied by a backoff of <tt>minYield / yield</tt>, at most
+ * {@code maxBackoff}. The visits saved on unproductive sources are left
+ * to other URLs (and to the revisit budget, if any).
+ * <br />
+ * Instances are thread-safe.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class SourceThrottle {
+
+    /**
+     * Weight of the yield of the pattern, in visits of the URL.
+     */
+    public static final int PRIOR_VISITS = 2;
+    private final double minYield;
+    private final double maxBackoff;
+    // yields of patterns by host ID and pattern, guarded by this
+    private final Map<Integer, Map<String, Float>> patternYields = new HashMap<Integer, Map<String, Float>>();
+
+    /**
+     * Initializes the limits.
+     * @param minYield Yield below which the URLs are throttled
+     * @param maxBackoff The maximum factor of update frequency, 1 disables throttling
+     */
+    public SourceThrottle(double minYield, double maxBackoff) {
+        this.minYield = minYield;
+        this.maxBackoff = Math.max(1, maxBackoff);
+    }
+
+    /**
+     * Adds a visit of an URL of the pattern that added the given number of new entities.
+     */
+    public synchronized void record(int hostId, String pattern, long newEntities) {
+        Map<String, Float> hostYields = patternYields.get(hostId);
+        if (hostYields == null) {
+            hostYields = new HashMap<String, Float>();
+            patternYields.put(hostId, hostYields);
+        }
+        Float yield = hostYields.get(pattern);
+        hostYields.put(pattern, yield != null ? PriorityScore.updateYield(yield, newEntities) : newEntities);
+    }
+
+    /**
+     * Returns the yield of the pattern, or null if no URL of the pattern has been visited.
+     */
+    public synchronized Float getPatternYield(int hostId, String pattern) {
+        Map<String, Float> hostYields = patternYields.get(hostId);
+        return hostYields != null ? hostYields.get(pattern) : null;
+    }
+
+    /**
+     * Returns the yields of all patterns of the host, by pattern.
+     */
+    public synchronized Map<String, Float> getPatternYields(int hostId) {
+        Map<String, Float> hostYields = patternYields.get(hostId);
+        return hostYields != null ? new HashMap<String, Float>(hostYields) : new HashMap<String, Float>();
+    }
+
+    /**
+     * Returns the factor (at least 1) by which the update frequency of the visited
+     * URL is multiplied. Entity URLs are not throttled.
+     */
+    public double backoff(URLEntry entry, int hostId) {
+        if (entry.isEntity() || maxBackoff == 1) {
+            return 1;
+        }
+        double yield = entry.getYield();
+        Float patternYield = getPatternYield(hostId, entry.getPattern());
+        if (patternYield != null) {
+            yield = (entry.getVisitCount() * yield + PRIOR_VISITS * patternYield) / (entry.getVisitCount() + PRIOR_VISITS);
+        }
+        if (yield >= minYield) {
+            return 1;
+        }
+        return yield > 0 ? Math.min(maxBackoff, minYield / yield) : maxBackoff;
+    }
+}
@@ -114,6 +114,27 @@ public class JobRunner {
         System.err.println("Usage: java " + JobRunner.class.getSimpleName() + " <file name>");
     }
 
+    /**
+     * Creates an instance for the job specified by a path to a job file or
+     * a name of a directory that contains the job file with
+     * {@linkplain ProcessingJob#DEFAULT_FILENAME default name}.
+     * @param path Path to the job file or directory
+     * @throws ConfigurationException If the file does not exist or the job can't be created
+     */
+    public static JobRunner forPath(String path) throws ConfigurationException {
+        File argFile = new File(path);
+        if (!argFile.exists()) {
+            throw new ConfigurationException("File '" + path + "' does not exist");
+        }
+        String workDir = argFile.isDirectory() ? path : argFile.getAbsoluteFile().getParent();
+        String jobFileName = argFile.isDirectory() ? workDir + File.separator + ProcessingJob.DEFAULT_FILENAME : path;
+        if (!new File(jobFileName).exists()) {
+            throw new ConfigurationException("File '" + jobFileName + "' does not exist");
+        }
+        ProcessingJob job = Util.objectFromXml(jobFileName, ProcessingJob.class);
+        return new JobRunner(job, workDir);
+    }
+
     /**
      * Executes the supplied job.
      * The first command line argument should be a path to a job file or a name
@@ -122,27 +143,13 @@ public class JobRunner {
      */
     public static void main(String[] args) {
         if (args.length > 0) {
-            String argFileName = args[0];
-            File argFile = new File(argFileName);
-            if (argFileName != null && argFile.exists()) {
-                String workDir = argFile.isDirectory() ? argFileName : argFile.getAbsoluteFile().getParent();
-                String jobFileName = argFile.isDirectory() ? workDir + File.separator + ProcessingJob.DEFAULT_FILENAME : argFileName;
-                if (new File(jobFileName).exists()) {
-                    try {
-                        ProcessingJob job = Util.objectFromXml(jobFileName, ProcessingJob.class);
-                        JobRunner runner = new JobRunner(job, workDir);
-                        runner.run();
-                    } catch (ObjectProcessorException ex) {
-                        Logger.getLogger(JobRunner.class.getName()).log(Level.SEVERE, "Can''t start pipe: {0}", ex.getMessage());
-                    } catch (ConfigurationException ex) {
-                        Logger.getLogger(JobRunner.class.getName()).log(Level.SEVERE, "Can''t start processing job: {0}", ex.getMessage());
-                    }
-                } else {
-                    Logger.getLogger(JobRunner.class.getName()).log(Level.SEVERE, "File ''{0}'' does not exist", jobFileName);
-                    System.err.println();
-                }
-            } else {
-                Logger.getLogger(JobRunner.class.getName()).log(Level.SEVERE, "File ''{0}'' does not exist", argFileName);
+            try {
+                JobRunner runner = forPath(args[0]);
+                runner.run();
+            } catch (ObjectProcessorException ex) {
+                Logger.getLogger(JobRunner.class.getName()).log(Level.SEVERE, "Can''t start pipe: {0}", ex.getMessage());
+            } catch (ConfigurationException ex) {
+                Logger.getLogger(JobRunner.class.getName()).log(Level.SEVERE, "Can''t start processing job: {0}", ex.getMessage());
             }
         } else {
             printUsage();
@@ -0,0 +1,107 @@
+package xsmeral.semnet.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import xsmeral.pipe.ObjectProcessorException;
+import xsmeral.pipe.context.PipeContext;
+import xsmeral.semnet.crawler.ConfigurationException;
+
+/**
+ * Executor of multiple processing jobs in one JVM.
+ * <br />
+ * Each job runs its own pipe in a separate thread. The jobs share
+ * {@link SharedResources} - equal DB layers, repositories and a thread pool,
+ * in which each job can run at most {@linkplain ProcessingJob#getTaskQuota() task quota}
+ * tasks at the same time. Each job can use at most
+ * {@linkplain ProcessingJob#getConnectionQuota() connection quota} connections
+ * of a shared DB layer at the same time.
+ *
+ * @see JobRunner
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class MultiJobRunner {
+
+    private final List<JobRunner> runners;
+    private final SharedResources shared;
+
+    /**
+     * Creates an instance for the supplied job runners and puts shared
+     * resources to their pipes' contexts.
+     */
+    public MultiJobRunner(List<JobRunner> runners) {
+        this.runners = runners;
+        this.shared = new SharedResources();
+        for (JobRunner runner : runners) {
+            PipeContext ctx = runner.getPipe().getContext();
+            ctx.setParameter(SharedResources.CONTEXT_PARAM, shared);
+            ctx.setParameter(SharedResources.EXECUTOR_PARAM, shared.newExecutor(runner.getJob().getTaskQuota()));
+            ctx.setParameter(SharedResources.CONNECTION_QUOTA_PARAM, runner.getJob().getConnectionQuota());
+        }
+    }
+
+    /**
+     * Starts all jobs, waits for them to stop and releases the shared resources.
+     */
+    public void run() {
+        List<Thread> threads = new ArrayList<Thread>(runners.size());
+        for (final JobRunner runner : runners) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        runner.run();
+                    } catch (ObjectProcessorException ex) {
+                        Logger.getLogger(MultiJobRunner.class.getName()).log(Level.SEVERE, "Can''t start pipe of job {0}: {1}", new Object[]{runner.getJob().getName(), ex.getMessage()});
+                    }
+                }
+            }, "job-" + runner.getJob().getName());
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(MultiJobRunner.class.getName()).log(Level.WARNING, "Interrupted while waiting for jobs to stop");
+        }
+        shared.shutdown();
+    }
+
+    /**
+     * Returns the resources shared by the jobs.
+     */
+    public SharedResources getSharedResources() {
+        return shared;
+    }
+
+    private static void printUsage() {
+        System.err.println(MultiJobRunner.class.getSimpleName() + ": runs multiple processing jobs in one JVM");
+        System.err.println("Usage: java " + MultiJobRunner.class.getSimpleName() + " <file name> [<file name>...]");
+    }
+
+    /**
+     * Executes the supplied jobs.
+     * Each command line argument should be a path to a job file or a name
+     * of a directory that contains the job file with
+     * {@linkplain ProcessingJob#DEFAULT_FILENAME default name}.
+     */
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            try {
+                List<JobRunner> runners = new ArrayList<JobRunner>(args.length);
+                for (String path : args) {
+                    runners.add(JobRunner.forPath(path));
+                }
+                new MultiJobRunner(runners).run();
+            } catch (ConfigurationException ex) {
+                Logger.getLogger(MultiJobRunner.class.getName()).log(Level.SEVERE, "Can''t start processing job: {0}", ex.getMessage());
+            }
+        } else {
+            printUsage();
+        }
+    }
+}
@@ -23,6 +23,8 @@ public class ProcessingJob {
     private String description;
     private List<Configuration> processorChain;
     private List<Configuration> attached;
+    private int taskQuota;
+    private int connectionQuota;
 
     public ProcessingJob() {
     }
@@ -84,6 +86,30 @@ public class ProcessingJob {
         this.attached = attached;
     }
 
+    /**
+     * Returns the maximum number of tasks the job can run concurrently in the
+     * thread pool shared by jobs run by {@link MultiJobRunner}. 0 means no limit.
+     */
+    public int getTaskQuota() {
+        return taskQuota;
+    }
+
+    public void setTaskQuota(int taskQuota) {
+        this.taskQuota = taskQuota;
+    }
+
+    /**
+     * Returns the maximum number of connections of DB layers shared by jobs run by
+     * {@link MultiJobRunner} the job can use concurrently. 0 means no limit.
+     */
+    public int getConnectionQuota() {
+        return connectionQuota;
+    }
+
+    public void setConnectionQuota(int connectionQuota) {
+        this.connectionQuota = connectionQuota;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -0,0 +1,200 @@
+package xsmeral.semnet.manager;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openrdf.repository.RepositoryException;
+import xsmeral.semnet.crawler.RDBLayer;
+import xsmeral.semnet.sink.RepositoryFactory;
+
+/**
+ * Resources shared by processing jobs running in one JVM.
+ * <br />
+ * An instance is put to the context of each job's pipe (as the parameter
+ * {@link #CONTEXT_PARAM}) by {@link MultiJobRunner}. Processors that find it
+ * there use it to share:
+ * <ul>
+ *  <li>{@link RDBLayer}s - equal DB layers are replaced by views of one instance,
+ *      so that the jobs share its connection pool; each job's view is limited to
+ *      the job's connection quota (the parameter {@link #CONNECTION_QUOTA_PARAM})
+ *      and reports its own stats</li>
+ *  <li>{@link RepositoryFactory RepositoryFactories} - repositories with equal
+ *      {@linkplain RepositoryFactory#getStoreKey(java.util.Properties) store keys}
+ *      (the same store) are opened only once</li>
+ *  <li>a thread pool - each job gets its own {@link QuotaExecutor}
+ *      (as the parameter {@link #EXECUTOR_PARAM}), which limits the number
+ *      of tasks the job can run in the pool at the same time</li>
+ * </ul>
+ * When a resource is looked up and created if missing, the lookup and the
+ * creation should be done while holding the lock of this object.
+ *
+ * @see MultiJobRunner
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class SharedResources {
+
+    /**
+     * The context parameter name for the shared resources
+     */
+    public static final String CONTEXT_PARAM = "sharedResources";
+    /**
+     * The context parameter name for the job's executor
+     */
+    public static final String EXECUTOR_PARAM = "sharedExecutor";
+    /**
+     * The context parameter name for the job's maximum number of DB connections in use
+     */
+    public static final String CONNECTION_QUOTA_PARAM = "sharedConnectionQuota";
+
+    /**
+     * Executor that runs tasks in a shared executor, at most {@code quota} of
+     * them at the same time. Tasks over the quota wait in a queue.
+     */
+    public static class QuotaExecutor implements Executor {
+
+        private final Executor executor;
+        private final int quota;
+        private final Queue<Runnable> waiting;
+        private int running = 0;
+
+        /**
+         * Creates an executor running tasks in the supplied executor.
+         * @param quota Maximum number of concurrently running tasks, 0 means no limit
+         */
+        public QuotaExecutor(Executor executor, int quota) {
+            this.executor = executor;
+            this.quota = quota;
+            this.waiting = new LinkedList<Runnable>();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (waiting) {
+                if (quota > 0 && running >= quota) {
+                    waiting.add(task);
+                    return;
+                }
+                running++;
+            }
+            submit(task);
+        }
+
+        /**
+         * Submits the task to the shared executor, the task runs the next
+         * waiting task when finished.
+         */
+        private void submit(final Runnable task) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        runNext();
+                    }
+                }
+            });
+        }
+
+        private void runNext() {
+            Runnable next;
+            synchronized (waiting) {
+                next = waiting.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            submit(next);
+        }
+
+        /**
+         * Returns the maximum number of concurrently running tasks, 0 means no limit.
+         */
+        public int getQuota() {
+            return quota;
+        }
+    }
+
+    private final Map<RDBLayer, RDBLayer> dbLayers;
+    private final Map<Object, RepositoryFactory> repositories;
+    private final ExecutorService executor;
+
+    /**
+     * Creates empty resource maps and the shared thread pool.
+     */
+    public SharedResources() {
+        this.dbLayers = new HashMap<RDBLayer, RDBLayer>();
+        this.repositories = new HashMap<Object, RepositoryFactory>();
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Returns a view of the shared instance equal to the supplied DB layer,
+     * with its own connection quota and stats (see {@link RDBLayer#share(int)}).
+     * If there is no shared instance, the supplied one becomes shared.
+     * @param connectionQuota Maximum number of connections in use through the view, 0 for no limit
+     */
+    public synchronized RDBLayer shareDBLayer(RDBLayer db, int connectionQuota) {
+        if (db == null) {
+            return null;
+        }
+        RDBLayer shared = dbLayers.get(db);
+        if (shared == null) {
+            dbLayers.put(db, db);
+            shared = db;
+        }
+        return shared.share(connectionQuota);
+    }
+
+    /**
+     * Returns the shared repository factory of the store with the supplied key,
+     * or null if there is none.
+     * @see RepositoryFactory#getStoreKey(java.util.Properties)
+     */
+    public synchronized RepositoryFactory getRepositoryFactory(Object storeKey) {
+        return repositories.get(storeKey);
+    }
+
+    /**
+     * Shares an initialized repository factory of the store with the supplied key.
+     */
+    public synchronized void putRepositoryFactory(Object storeKey, RepositoryFactory factory) {
+        repositories.put(storeKey, factory);
+    }
+
+    /**
+     * Returns a new executor running tasks in the shared thread pool.
+     * @param quota Maximum number of concurrently running tasks, 0 means no limit
+     */
+    public QuotaExecutor newExecutor(int quota) {
+        return new QuotaExecutor(executor, quota);
+    }
+
+    /**
+     * Shuts down the thread pool and shared repositories and closes idle DB connections.
+     * Should be called after all jobs have stopped.
+     */
+    public synchronized void shutdown() {
+        executor.shutdown();
+        for (RepositoryFactory factory : repositories.values()) {
+            try {
+                factory.getRepository().shutDown();
+            } catch (RepositoryException ex) {
+                Logger.getLogger(SharedResources.class.getName()).log(Level.WARNING, "Failed to shut down repository: {0}", ex.getMessage());
+            }
+        }
+        repositories.clear();
+        for (RDBLayer db : dbLayers.values()) {
+            db.closeIdleConnections();
+        }
+        dbLayers.clear();
+    }
+}
@@ -1,6 +1,7 @@
 package xsmeral.semnet.sink;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Properties;
@@ -28,20 +29,47 @@ public class NativeStoreFactory extends RepositoryFactory {
 
     private static final String DEF_WORKING_DIR = ".";
 
+    /**
+     * Returns the data directory, resolved against the working directory, or null if not set.
+     */
+    private static File getDataDir(Properties props) {
+        String dataDirName = props.getProperty("dataDir");
+        if (dataDirName == null) {
+            return null;
+        }
+        File dataDirFile = new File(dataDirName);
+        if (!dataDirFile.isAbsolute()) {
+            String workingDir = props.getProperty(RepositoryFactory.PROP_WORKING_DIR);
+            dataDirFile = new File((workingDir != null ? workingDir : DEF_WORKING_DIR) + File.separator + dataDirName);
+        }
+        return dataDirFile;
+    }
+
+    /**
+     * Returns the canonical path of the data directory.
+     */
+    @Override
+    public Object getStoreKey(Properties props) {
+        File dataDirFile = getDataDir(props);
+        if (dataDirFile == null) {
+            return super.getStoreKey(props);
+        }
+        try {
+            return dataDirFile.getCanonicalPath();
+        } catch (IOException ex) {
+            return dataDirFile.getAbsolutePath();
+        }
+    }
+
     @Override
     public void initialize() throws RepositoryException {
         Properties props = getProperties();
-        String dataDirName = props.getProperty("dataDir");
+        File dataDirFile = getDataDir(props);
         String indexes = props.getProperty("indexes");
         String inferencerClassName = props.getProperty("inferencer");
-        if (dataDirName == null || indexes == null) {
+        if (dataDirFile == null || indexes == null) {
             throw new RepositoryException("Invalid parameters for repository");
         } else {
-            File dataDirFile = new File(dataDirName);
-            if (!dataDirFile.isAbsolute()) {
-                String workingDir = props.getProperty(RepositoryFactory.PROP_WORKING_DIR);
-                dataDirFile = new File((workingDir != null ? workingDir : DEF_WORKING_DIR) + File.separator + dataDirName);
-            }
             NotifyingSail nativeStore = new NativeStore(dataDirFile, indexes);
             Sail sail = nativeStore;
             if (inferencerClassName != null && !inferencerClassName.isEmpty()) {
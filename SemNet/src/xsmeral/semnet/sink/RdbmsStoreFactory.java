@@ -1,5 +1,6 @@
 package xsmeral.semnet.sink;
 
+import java.util.Arrays;
 import java.util.Properties;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryException;
@@ -20,6 +21,14 @@ import org.openrdf.sail.rdbms.RdbmsStore;
  */
 public class RdbmsStoreFactory extends RepositoryFactory {
 
+    /**
+     * Returns the JDBC URL and user of the store.
+     */
+    @Override
+    public Object getStoreKey(Properties props) {
+        return Arrays.asList(getClass().getName(), props.getProperty("url"), props.getProperty("user"));
+    }
+
     @Override
     public void initialize() throws RepositoryException {
         Properties props = getProperties();
@@ -1,5 +1,6 @@
 package xsmeral.semnet.sink;
 
+import java.util.Arrays;
 import java.util.Properties;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryException;
@@ -40,6 +41,18 @@ public abstract class RepositoryFactory {
         return props;
     }
 
+    /**
+     * Returns a key identifying the store a factory of this class opens when initialized
+     * with the supplied properties. Factories with equal keys open the same store, so one
+     * of them can be shared instead (see {@link xsmeral.semnet.manager.SharedResources}).
+     * <br />
+     * By default, the key is the class with all the properties, including the working directory.
+     * Implementations should return the resolved location of the store.
+     */
+    public Object getStoreKey(Properties props) {
+        return Arrays.asList(getClass().getName(), props);
+    }
+
     /**
      * Sets the properties and calls {@link #initialize()}
      * @param props
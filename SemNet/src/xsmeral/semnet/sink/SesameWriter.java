@@ -20,6 +20,7 @@ import xsmeral.pipe.interfaces.Param;
 import xsmeral.pipe.stats.StatFunction;
 import xsmeral.pipe.stats.Stats;
 import xsmeral.pipe.stats.Sum;
+import xsmeral.semnet.manager.SharedResources;
 
 /**
  * Writes Statements to a Sesame database.
@@ -88,6 +89,8 @@ public class SesameWriter extends LocalObjectSink<Statement> {
 
     /**
      * Reads the supplied configuration (Properties) file, sets working directory, initializes repository factory.
+     * If {@link SharedResources} are present in the context, a repository
+     * of the same store already opened by another job is reused.
      * @see RepositoryFactory
      */
     @Override
@@ -97,9 +100,24 @@ public class SesameWriter extends LocalObjectSink<Statement> {
             File propsFile = ((FSContext) getContext()).getFile(propsFileName);
             props.load(new FileReader(propsFile));
             props.setProperty(RepositoryFactory.PROP_WORKING_DIR, propsFile.getAbsoluteFile().getParent());
-            Class factory = Class.forName(props.getProperty("connFactory"));
-            RepositoryFactory rf = (RepositoryFactory) factory.newInstance();
-            rf.initialize(props);
+            RepositoryFactory rf;
+            SharedResources shared = (SharedResources) getContext().getParameterValue(SharedResources.CONTEXT_PARAM);
+            if (shared != null) {
+                synchronized (shared) {
+                    rf = newFactory(props);
+                    Object storeKey = rf.getStoreKey(props);
+                    RepositoryFactory sharedFactory = shared.getRepositoryFactory(storeKey);
+                    if (sharedFactory != null) {
+                        rf = sharedFactory;
+                    } else {
+                        rf.initialize(props);
+                        shared.putRepositoryFactory(storeKey, rf);
+                    }
+                }
+            } else {
+                rf = newFactory(props);
+                rf.initialize(props);
+            }
             this.conn = rf.getRepository().getConnection();
             if (conn == null) {
                 failStart("Invalid Sesame connection");
@@ -122,6 +140,11 @@ public class SesameWriter extends LocalObjectSink<Statement> {
         }
     }
 
+    private RepositoryFactory newFactory(Properties props) throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+        Class factory = Class.forName(props.getProperty("connFactory"));
+        return (RepositoryFactory) factory.newInstance();
+    }
+
     /**
      * Adds a read statement to the database.
      */
@@ -0,0 +1,151 @@
+package xsmeral.semnet.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import xsmeral.pipe.replay.ObjectCodec;
+import xsmeral.pipe.replay.TapeFormat;
+
+/**
+ * Compact codec of Sesame {@link Statement}s for recording links
+ * between scrapers, mappers and writers.
+ * <br />
+ * URIs (including datatypes) are kept in a dictionary, so a repeated URI
+ * (e.g. a predicate) is written only as its index.
+ *
+ * @see xsmeral.pipe.replay.LinkRecorder
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class StatementCodec implements ObjectCodec<Statement> {
+
+    private static final int MAX_DICTIONARY_SIZE = 65536;
+    private static final String CHARSET = "UTF-8";
+    private static final byte NULL = 0;
+    private static final byte URI = 1;
+    private static final byte BNODE = 2;
+    private static final byte LITERAL = 3;
+    private static final byte LANG_LITERAL = 4;
+    private static final byte TYPED_LITERAL = 5;
+    private static final ValueFactory f = ValueFactoryImpl.getInstance();
+    private final Map<String, Integer> writeDictionary = new HashMap<String, Integer>();
+    private final List<String> readDictionary = new ArrayList<String>();
+
+    @Override
+    public void write(Statement st, DataOutput out) throws IOException {
+        writeValue(st.getSubject(), out);
+        writeValue(st.getPredicate(), out);
+        writeValue(st.getObject(), out);
+        writeValue(st.getContext(), out);
+    }
+
+    @Override
+    public Statement read(DataInput in) throws IOException {
+        Resource subj = (Resource) readValue(in);
+        URI pred = (URI) readValue(in);
+        Value obj = readValue(in);
+        Resource ctx = (Resource) readValue(in);
+        return ctx != null ? f.createStatement(subj, pred, obj, ctx) : f.createStatement(subj, pred, obj);
+    }
+
+    private void writeValue(Value value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof URI) {
+            out.writeByte(URI);
+            writeURI(value.stringValue(), out);
+        } else if (value instanceof BNode) {
+            out.writeByte(BNODE);
+            writeString(((BNode) value).getID(), out);
+        } else {
+            Literal literal = (Literal) value;
+            if (literal.getLanguage() != null) {
+                out.writeByte(LANG_LITERAL);
+                writeString(literal.getLabel(), out);
+                writeString(literal.getLanguage(), out);
+            } else if (literal.getDatatype() != null) {
+                out.writeByte(TYPED_LITERAL);
+                writeString(literal.getLabel(), out);
+                writeURI(literal.getDatatype().stringValue(), out);
+            } else {
+                out.writeByte(LITERAL);
+                writeString(literal.getLabel(), out);
+            }
+        }
+    }
+
+    private Value readValue(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case URI:
+                return f.createURI(readURI(in));
+            case BNODE:
+                return f.createBNode(readString(in));
+            case LITERAL:
+                return f.createLiteral(readString(in));
+            case LANG_LITERAL:
+                String label = readString(in);
+                return f.createLiteral(label, readString(in));
+            case TYPED_LITERAL:
+                String typedLabel = readString(in);
+                return f.createLiteral(typedLabel, f.createURI(readURI(in)));
+            default:
+                throw new IOException("Invalid value type: " + type);
+        }
+    }
+
+    /**
+     * Writes index of the URI in dictionary (plus one), or 0 followed by
+     * the URI if it is not in the dictionary.
+     */
+    private void writeURI(String uri, DataOutput out) throws IOException {
+        Integer index = writeDictionary.get(uri);
+        if (index != null) {
+            TapeFormat.writeVarLong(out, index + 1);
+        } else {
+            TapeFormat.writeVarLong(out, 0);
+            writeString(uri, out);
+            if (writeDictionary.size() < MAX_DICTIONARY_SIZE) {
+                writeDictionary.put(uri, writeDictionary.size());
+            }
+        }
+    }
+
+    private String readURI(DataInput in) throws IOException {
+        int index = (int) TapeFormat.readVarLong(in);
+        if (index > 0) {
+            return readDictionary.get(index - 1);
+        } else {
+            String uri = readString(in);
+            if (readDictionary.size() < MAX_DICTIONARY_SIZE) {
+                readDictionary.add(uri);
+            }
+            return uri;
+        }
+    }
+
+    private void writeString(String str, DataOutput out) throws IOException {
+        byte[] bytes = str.getBytes(CHARSET);
+        TapeFormat.writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[(int) TapeFormat.readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
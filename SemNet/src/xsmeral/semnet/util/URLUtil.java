@@ -8,14 +8,13 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.apache.commons.lang.StringEscapeUtils;
 
 /**
@@ -32,20 +31,19 @@ public class URLUtil {
     private static final String QUESTION_MARK = "?";
     private static final String FWD_SLASH = "/";
     private static final String DOT = ".";
+    private static final String HEX_DIGITS = "0123456789ABCDEF";
     //
     private static String URL_CHARSET = "UTF-8";
-    private static final String URLENCODED_SYMBOL_PATTERN = "%(\\p{XDigit}{2})";
-    private static final Pattern urlEncSymbolPattern = Pattern.compile(URLENCODED_SYMBOL_PATTERN);
     // common parameters, usually of no significance to the content (session ids, analytics, etc.)
-    private static final String[] unwantedStrings = {"^utm_", "session"};
-    private static final List<Pattern> unwantedPatterns = new ArrayList<Pattern>(unwantedStrings.length);
-
-    static {
-        // pre-compile unwanted parameter patterns
-        for (String unwantedStr : unwantedStrings) {
-            unwantedPatterns.add(Pattern.compile(unwantedStr));
-        }
-    }
+    private static final String[] unwantedPrefixes = {"utm_"};
+    private static final String[] unwantedParts = {"session"};
+    /**
+     * Maximum number of remembered normalized URLs.
+     */
+    public static final int MEMO_SIZE = 50000;
+    // normalized URLs by the original string, emptied when full
+    private static final Map<String, URL> memo = new ConcurrentHashMap<String, URL>();
+    private static final AtomicInteger memoCount = new AtomicInteger();
 
     /**
      * Returns scheme and authority part of URL with trailing slash.
@@ -65,13 +63,17 @@ public class URLUtil {
      * @return Normalized URL, or the supplied string unchanged in case of failure
      */
     public static URL normalize(String url) throws MalformedURLException {
-        URL normalized = null;
+        URL normalized = memo.get(url);
+        if (normalized != null) {
+            return normalized;
+        }
         try {
             normalized = normalize(new URL(url));
         } catch (MalformedURLException ex) {
             // try adding http://, may help
             normalized = !url.startsWith("http://") ? normalize("http://" + url) : null;
         }
+        remember(url, normalized);
         return normalized;
     }
 
@@ -91,13 +93,40 @@ public class URLUtil {
      * <li>normalizes path (resolves dot-segments and adds trailing slash to empty path)</li>
      * <li>tries to add http:// if the input url doesn't have protocol</li>
      * </ul>
+     * The results are remembered (up to {@value #MEMO_SIZE} URLs), so that
+     * URLs repeated on many pages (e.g. navigation links) are normalized once.
      *
      * @author Ron Šmeral (xsmeral@fi.muni.cz)
      */
     public static URL normalize(URL url) {
+        String key = url.toExternalForm();
+        URL normalized = memo.get(key);
+        if (normalized == null) {
+            normalized = normalizeURL(url);
+            remember(key, normalized);
+        }
+        return normalized;
+    }
+
+    /**
+     * Remembers the normalized form of the URL string.
+     * The memo is emptied when full, it then fills up with the URLs repeated since.
+     */
+    private static void remember(String url, URL normalized) {
+        if (normalized != null && memo.put(url, normalized) == null
+                && memoCount.incrementAndGet() > MEMO_SIZE) {
+            memo.clear();
+            memoCount.set(0);
+        }
+    }
+
+    /**
+     * Performs the normalization steps of {@link #normalize(java.net.URL)}.
+     */
+    private static URL normalizeURL(URL url) {
         int port = url.getPort();
         String path = url.getPath();
-        String query = sortAndCleanParams(StringEscapeUtils.unescapeHtml(url.getQuery()));
+        String query = sortAndCleanParams(unescapeHtml(url.getQuery()));
         if (path == null || path.isEmpty()) {
             path = FWD_SLASH;
         }
@@ -119,6 +148,19 @@ public class URLUtil {
         }
     }
 
+    /**
+     * Calls {@link StringEscapeUtils#unescapeHtml(java.lang.String) StringEscapeUtils.unescapeHtml}
+     * only if the string may contain an entity reference ({@code &} followed by {@code ;}),
+     * other strings are returned unchanged.
+     */
+    private static String unescapeHtml(String str) {
+        if (str == null) {
+            return null;
+        }
+        int amp = str.indexOf('&');
+        return amp >= 0 && str.indexOf(';', amp) >= 0 ? StringEscapeUtils.unescapeHtml(str) : str;
+    }
+
     /**
      * Used for parameter sorting and filtering
      * 
@@ -135,46 +177,76 @@ public class URLUtil {
 
         // if there is no delimiter and the query string doesn't contain equals sign, leave the query as is
         if (delimiter == null && !query.contains(EQUALS_SIGN)) {
-            return URLEncode(URLDecode(query));
+            return recode(query);
         }
 
         // sort and filter the params
-        String[] params = (delimiter != null) ? query.split(delimiter) : new String[]{query};
-        SortedSet<Param> paramSet = new TreeSet<Param>();
-
-        for (int i = 0; i < params.length; i++) {
-            String paramStr = params[i];
-            if (!paramStr.isEmpty()) {
-                boolean hasEquals = paramStr.contains(EQUALS_SIGN);
-                int equalsPos = hasEquals ? paramStr.indexOf(EQUALS_SIGN) : -1;
-                int paramLen = paramStr.length();
-                String field = URLEncode(URLDecode(hasEquals ? paramStr.substring(0, equalsPos) : paramStr));
-                String value = ((hasEquals && (equalsPos != paramLen - 1)) ? URLEncode(URLDecode(paramStr.substring(equalsPos + 1, paramLen))) : "");
-                boolean isUnwanted = false;
-                for (int j = 0; j < unwantedStrings.length && !isUnwanted; j++) {
-                    isUnwanted = isUnwanted || unwantedPatterns.get(j).matcher(field).find();
+        List<Param> paramList = new ArrayList<Param>();
+        int paramStart = 0;
+        while (paramStart <= query.length()) {
+            int paramEnd = delimiter != null ? query.indexOf(delimiter, paramStart) : -1;
+            if (paramEnd < 0) {
+                paramEnd = query.length();
+            }
+            if (paramEnd > paramStart) {
+                int equalsPos = query.indexOf(EQUALS_SIGN, paramStart);
+                boolean hasEquals = equalsPos >= 0 && equalsPos < paramEnd;
+                String field = recode(query.substring(paramStart, hasEquals ? equalsPos : paramEnd));
+                String value = (hasEquals && (equalsPos != paramEnd - 1)) ? recode(query.substring(equalsPos + 1, paramEnd)) : "";
+                if (!isUnwanted(field)) {
+                    paramList.add(new Param(field, value));
                 }
-                if (!isUnwanted) {
-                    paramSet.add(new Param(field, value, i));
+            }
+            paramStart = paramEnd + 1;
+        }
+        Collections.sort(paramList);
+
+        // put the query string back together, without duplicate params
+        StringBuilder queryString = new StringBuilder(query.length() + 10);
+        Param last = null;
+        for (Param param : paramList) {
+            if (last == null || param.compareTo(last) != 0) {
+                if (last != null) {
+                    queryString.append(delimiter);
                 }
+                queryString.append(param.getField()).append(EQUALS_SIGN).append(param.getValue());
+                last = param;
             }
         }
+        return queryString.toString();
+    }
 
-        // put the query string back together
-        switch (paramSet.size()) {
-            case 0:
-                return "";
-            case 1:
-                return paramSet.first().toString();
-            default:
-                Iterator<Param> it = paramSet.iterator();
-                StringBuilder queryString = new StringBuilder(query.length() + 10);
-                queryString.append(it.next().toString());
-                while (it.hasNext()) {
-                    queryString.append(delimiter).append(it.next());
-                }
-                return queryString.toString();
+    /**
+     * Indicates whether the parameter is of no significance to the content.
+     */
+    private static boolean isUnwanted(String field) {
+        for (String prefix : unwantedPrefixes) {
+            if (field.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String part : unwantedParts) {
+            if (field.contains(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes and encodes the parameter field or value.
+     * Strings of characters left unchanged by both {@link URLDecoder} and {@link URLEncoder}
+     * (letters, digits and {@code .-*_}) are returned as they are.
+     */
+    private static String recode(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' || c == '-' || c == '*' || c == '_')) {
+                return URLEncode(URLDecode(str));
+            }
         }
+        return str;
     }
 
     /**
@@ -185,30 +257,43 @@ public class URLUtil {
      * @param str Input string
      * @return String with percent-sequences only for reserved characters
      */
-    private static String decodeUnreserved(String str) {
+    public static String decodeUnreserved(String str) {
         if (str == null || str.isEmpty()) {
             return "";
         }
-        if (!str.contains(PERCENT)) {
+        int pct = str.indexOf(PERCENT);
+        if (pct < 0) {
             return str;
         }
-        Matcher m = urlEncSymbolPattern.matcher(str);
-        StringBuffer buf = new StringBuffer();
-        String rep;
-        while (m.find()) {
-            int v = Integer.parseInt(m.group(1), 16);
-            if ((v >= 'a' && v <= 'z') || (v >= 'A' && v <= 'Z') || (v >= '0' && v <= '9')
-                    || v == '-' || v == '.' || v == '_' || v == '~') {
-                rep = String.valueOf((char) v);
+        StringBuilder buf = new StringBuilder(str.length());
+        buf.append(str, 0, pct);
+        for (int i = pct; i < str.length(); i++) {
+            char c = str.charAt(i);
+            int hi, lo;
+            if (c == '%' && i + 2 < str.length() && (hi = hexValue(str.charAt(i + 1))) >= 0
+                    && (lo = hexValue(str.charAt(i + 2))) >= 0) {
+                int v = hi * 16 + lo;
+                if ((v >= 'a' && v <= 'z') || (v >= 'A' && v <= 'Z') || (v >= '0' && v <= '9')
+                        || v == '-' || v == '.' || v == '_' || v == '~') {
+                    buf.append((char) v);
+                } else {
+                    buf.append('%').append(HEX_DIGITS.charAt(hi)).append(HEX_DIGITS.charAt(lo));
+                }
+                i += 2;
             } else {
-                rep = m.group().toUpperCase();
+                buf.append(c);
             }
-            m.appendReplacement(buf, rep);
         }
-        m.appendTail(buf);
         return buf.toString();
     }
 
+    /**
+     * Returns the value of the ASCII hexadecimal digit, or -1.
+     */
+    private static int hexValue(char c) {
+        return c < 128 ? HEX_DIGITS.indexOf(Character.toUpperCase(c)) : -1;
+    }
+
     /**
      * Wrapper, calls {@link URLEncoder URLEncoder}.{@link URLEncoder#encode(java.lang.String, java.lang.String) encode}{@code (str, "UTF-8")}
      * @param str String to URL-encode, should be fully decoded
@@ -242,7 +327,7 @@ public class URLUtil {
      * Represents one query string param. Implements Comparable,
      * the sorting keys are field, value and original position in query string
      */
-    private static final class Param implements Comparable {
+    private static final class Param implements Comparable<Param> {
 
         private int origPosition;
         private String field;
@@ -286,12 +371,11 @@ public class URLUtil {
 
         /**
          * Compares by field, value and original position in query string
-         * @param obj Other object
+         * @param o Other param
          * @return Result of comparison
          */
         @Override
-        public int compareTo(Object obj) {
-            Param o = (Param) obj;
+        public int compareTo(Param o) {
             int fieldDiff = this.field.compareTo(o.getField());
             if (fieldDiff != 0) {
                 return fieldDiff;
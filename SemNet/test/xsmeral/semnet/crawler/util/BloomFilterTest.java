@@ -0,0 +1,74 @@
+package xsmeral.semnet.crawler.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link BloomFilter} has no false negatives and about the configured
+ * false positive probability.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class BloomFilterTest {
+
+    private static final int EXPECTED = 100000;
+    private static final double FPP = 0.001;
+    private static final int PROBES = 100000;
+
+    private static String url(int i) {
+        return "http://www.example.com/film/" + i + "-title/";
+    }
+
+    @Test
+    public void testNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(EXPECTED, FPP);
+        for (int i = 0; i < EXPECTED; i++) {
+            filter.add(url(i));
+        }
+        for (int i = 0; i < EXPECTED; i++) {
+            assertTrue(url(i), filter.mightContain(url(i)));
+        }
+        assertFalse(filter.isFull());
+        // beyond the expected number, false positives grow, but no string is lost
+        for (int i = EXPECTED; i < 3 * EXPECTED; i++) {
+            filter.add(url(i));
+        }
+        assertTrue(filter.isFull());
+        for (int i = 0; i < 3 * EXPECTED; i++) {
+            assertTrue(url(i), filter.mightContain(url(i)));
+        }
+    }
+
+    @Test
+    public void testFalsePositives() {
+        BloomFilter filter = new BloomFilter(EXPECTED, FPP);
+        for (int i = 0; i < EXPECTED; i++) {
+            filter.add(url(i));
+        }
+        int positives = 0;
+        for (int i = 0; i < PROBES; i++) {
+            if (filter.mightContain(url(-1 - i))) {
+                positives++;
+            }
+        }
+        assertTrue("false positives: " + positives, positives < 3 * FPP * PROBES);
+    }
+
+    @Test
+    public void testAdd() {
+        BloomFilter filter = new BloomFilter(10, FPP);
+        assertFalse(filter.mightContain(""));
+        assertTrue(filter.add(""));
+        assertTrue(filter.mightContain(""));
+        assertTrue(filter.add(url(1)));
+        assertFalse(filter.add(url(1)));
+        assertEquals(2, filter.getCount());
+        assertEquals(10, filter.getExpected());
+        try {
+            new BloomFilter(10, 1);
+            fail("Probability 1 accepted");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package xsmeral.semnet.crawler.util;
+
+import java.io.UnsupportedEncodingException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests which changes of a page {@link ContentFingerprint#simHash(byte[], String)} ignores.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class ContentFingerprintTest {
+
+    private static final String CHARSET = "UTF-8";
+    private static final String PAGE = "<html><head><title>%1$s</title><script>var t = %3$s;</script></head><body>"
+            + "<h1>Pelíšky (1999)</h1><p>Hodnocení: %1$s %%, %2$s hodnocení</p>"
+            + "<p>Komedie o dvou rodinách v jednom domě v Praze na sklonku šedesátých let.</p>"
+            + "<p class=\"updated\">Aktualizováno %4$s</p></body></html>";
+
+    private static long hash(String rating, String votes, String epoch, String updated) throws UnsupportedEncodingException {
+        return ContentFingerprint.simHash(String.format(PAGE, rating, votes, epoch, updated).getBytes(CHARSET), CHARSET);
+    }
+
+    @Test
+    public void testTimestampsIgnored() throws Exception {
+        long base = hash("90", "51234", "1287450000", "19. 10. 2026 12:30");
+        assertEquals(0, ContentFingerprint.distance(base, hash("90", "51234", "1287453600", "20. 10. 2026 8:05")));
+        assertEquals(0, ContentFingerprint.distance(base, hash("90", "51234", "1287450000", "2026-10-20T08:05:00")));
+    }
+
+    @Test
+    public void testNumbersKept() throws Exception {
+        long base = hash("90", "51234", "1287450000", "19. 10. 2026 12:30");
+        assertTrue(ContentFingerprint.distance(base, hash("89", "51234", "1287450000", "19. 10. 2026 12:30")) > 0);
+        assertTrue(ContentFingerprint.distance(base, hash("90", "51300", "1287450000", "19. 10. 2026 12:30")) > 0);
+    }
+
+    @Test
+    public void testDigest() throws Exception {
+        byte[] content = "<p>a</p>".getBytes(CHARSET);
+        assertEquals(ContentFingerprint.digest(content), ContentFingerprint.digest(content.clone()));
+        assertEquals(40, ContentFingerprint.digest(content).length());
+        assertFalse(ContentFingerprint.digest(content).equals(ContentFingerprint.digest("<p>b</p>".getBytes(CHARSET))));
+    }
+}
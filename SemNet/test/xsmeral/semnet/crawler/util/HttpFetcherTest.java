@@ -0,0 +1,255 @@
+package xsmeral.semnet.crawler.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link HttpFetcher} against a stub HTTP server on the loopback interface.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class HttpFetcherTest {
+
+    private static final String CHARSET = "ISO-8859-1";
+    private static final int TIMEOUT = 10000;
+    private static final int BIG_SIZE = 1 << 20;
+    private StubServer server;
+    private HttpFetcher fetcher;
+
+    /**
+     * Serves canned responses by the requested path, keeps connections alive.
+     * <ul>
+     *  <li>{@code /plain} - body delimited by Content-Length</li>
+     *  <li>{@code /chunked} - {@link #BIG_SIZE} bytes in small chunks, written in pieces</li>
+     *  <li>{@code /redirect} - redirect to {@code /plain}</li>
+     *  <li>{@code /silent} - no response</li>
+     * </ul>
+     */
+    private static class StubServer implements Runnable {
+
+        private final ServerSocket socket;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger requests = new AtomicInteger();
+        private final Set<Socket> clients = Collections.synchronizedSet(new HashSet<Socket>());
+
+        public StubServer() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread t = new Thread(this, "stub-server");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        public String url(String path) {
+            return "http://localhost:" + socket.getLocalPort() + path;
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket client = socket.accept();
+                    connections.incrementAndGet();
+                    clients.add(client);
+                    Thread t = new Thread(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    }, "stub-client");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                InputStream in = client.getInputStream();
+                OutputStream out = client.getOutputStream();
+                String head;
+                while ((head = readHead(in)) != null) {
+                    requests.incrementAndGet();
+                    String path = head.split(" ")[1];
+                    if (path.equals("/plain")) {
+                        byte[] body = "Hello".getBytes(CHARSET);
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes(CHARSET));
+                        out.write(body);
+                    } else if (path.equals("/chunked")) {
+                        out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(CHARSET));
+                        byte[] body = bigBody();
+                        for (int pos = 0; pos < body.length; pos += 1000) {
+                            int size = Math.min(1000, body.length - pos);
+                            out.write((Integer.toHexString(size) + "\r\n").getBytes(CHARSET));
+                            out.write(body, pos, size);
+                            out.write("\r\n".getBytes(CHARSET));
+                            if (pos % 100000 == 0) {
+                                out.flush();
+                            }
+                        }
+                        out.write("0\r\n\r\n".getBytes(CHARSET));
+                    } else if (path.equals("/redirect")) {
+                        out.write("HTTP/1.1 302 Found\r\nLocation: /plain\r\nContent-Length: 0\r\n\r\n".getBytes(CHARSET));
+                    } else if (path.equals("/silent")) {
+                        continue;
+                    } else {
+                        out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(CHARSET));
+                    }
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                // client closed
+            } finally {
+                close(client);
+            }
+        }
+
+        private static String readHead(InputStream in) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                head.write(b);
+                byte[] data = head.toByteArray();
+                int n = data.length;
+                if (n >= 4 && data[n - 4] == '\r' && data[n - 3] == '\n' && data[n - 2] == '\r' && data[n - 1] == '\n') {
+                    return new String(data, CHARSET);
+                }
+            }
+            return null;
+        }
+
+        public void close() {
+            close(socket);
+            synchronized (clients) {
+                for (Socket client : clients) {
+                    close(client);
+                }
+            }
+        }
+
+        private static void close(java.io.Closeable c) {
+            try {
+                c.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    private static byte[] bigBody() {
+        byte[] body = new byte[BIG_SIZE];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+        ConnectionManager connMgr = new ConnectionManager();
+        connMgr.setCompression(false);
+        connMgr.setReadTimeout(2000);
+        fetcher = new HttpFetcher(connMgr);
+    }
+
+    @After
+    public void tearDown() {
+        fetcher.shutdown();
+        server.close();
+    }
+
+    private HttpFetcher.Response fetch(String path, int retries) throws Exception {
+        fetcher.submit(new URL(server.url(path)), 0, retries, null, null, path);
+        HttpFetcher.Response response = fetcher.poll(TIMEOUT);
+        assertNotNull("No response to " + path, response);
+        assertEquals(path, response.getAttachment());
+        return response;
+    }
+
+    @Test
+    public void testContentLength() throws Exception {
+        HttpFetcher.Response response = fetch("/plain", 0);
+        assertTrue(response.isSuccess());
+        assertEquals(200, response.getStatus());
+        assertEquals("text/plain", response.getHeader("content-type"));
+        assertEquals("Hello", new String(response.getBody(), CHARSET));
+        assertEquals(0, fetcher.getOutstanding());
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        HttpFetcher.Response response = fetch("/chunked", 0);
+        assertTrue(response.isSuccess());
+        assertTrue(Arrays.equals(bigBody(), response.getBody()));
+    }
+
+    @Test
+    public void testRedirect() throws Exception {
+        HttpFetcher.Response response = fetch("/redirect", 0);
+        assertTrue(response.isSuccess());
+        assertEquals(new URL(server.url("/plain")), response.getFinalURL());
+        assertEquals(new URL(server.url("/redirect")), response.getURL());
+        assertEquals("Hello", new String(response.getBody(), CHARSET));
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(fetch("/plain", 0).isSuccess());
+        }
+        assertEquals(3, server.requests.get());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testConcurrentHosts() throws Exception {
+        // the same server under two host names
+        fetcher.submit(new URL(server.url("/chunked")), 0, 0, null, null, "a");
+        fetcher.submit(new URL(server.url("/plain").replace("localhost", "127.0.0.1")), 0, 0, null, null, "b");
+        HttpFetcher.Response first = fetcher.poll(TIMEOUT);
+        HttpFetcher.Response second = fetcher.poll(TIMEOUT);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(new HashSet<Object>(Arrays.asList("a", "b")),
+                new HashSet<Object>(Arrays.asList(first.getAttachment(), second.getAttachment())));
+        assertTrue(first.isSuccess() && second.isSuccess());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        HttpFetcher.Response response = fetch("/silent", 0);
+        assertFalse(response.isSuccess());
+        assertEquals(-1, response.getStatus());
+        assertNotNull(response.getError());
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        int port = closed.getLocalPort();
+        closed.close();
+        fetcher.submit(new URL("http://localhost:" + port + "/"), 0, 0, null, null, null);
+        HttpFetcher.Response response = fetcher.poll(TIMEOUT);
+        assertNotNull(response);
+        assertFalse(response.isSuccess());
+        assertNotNull(response.getError());
+    }
+}
@@ -0,0 +1,123 @@
+package xsmeral.semnet.crawler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link PatternClassifier#classify(String)} with matching the patterns
+ * one by one, in order.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class PatternClassifierTest {
+
+    private static final long SEED = 42;
+    private static final int GENERATED = 20000;
+    private static final int MAX_PARTS = 6;
+    private static final int CACHE_SIZE = 3;
+    // prefixes shared by several patterns, optional and repeated literals, escapes, groups and alternatives
+    private static final String[] REGEXES = {
+        "/film/\\d+-[^/]*/",
+        "/film/\\d+/",
+        "/tvurci/\\d+.*",
+        "/a+b/x",
+        "(/x|/y)/z",
+        "/film/|/q",
+        "/z?opt",
+        "/lit\\.html",
+        "/lit.html",
+        "\\Q/quoted\\E.*",
+        "^/anchored/.*",
+        "[a-z]+/w",
+        "/(?i)case/.*",
+        "/ab{0,2}c",
+        "/film/.*",
+        "/.*\\.pdf"
+    };
+    private static final String CATCH_ALL = ".*";
+    // path pieces, including prefixes of the patterns and characters of the escapes
+    private static final String[] PARTS = {
+        "/", "film", "/film/", "123", "-", "abc", "tvurci", "a", "b", "x", "y", "z", "q", "opt",
+        "lit", ".", "html", "\\", "Q", "quoted", "anchored", "w", "case", "CASE", "c", ".pdf"
+    };
+    private static final String[] HANDWRITTEN = {
+        "/film/123-abc/", "/film/123/", "/film/", "/film/x", "/tvurci/5x", "/aaab/x", "/b/x", "/x/z", "/y/z",
+        "/q", "/opt", "/zopt", "/zzopt", "/lit.html", "/litxhtml", "/quoted/a", "\\Q/quoted", "/anchored/",
+        "abc/w", "/CASE/a", "/case/a", "/ac", "/abbc", "/abbbc", "/a.pdf", "/nothing", ""
+    };
+    private List<Pattern> patterns;
+    private PatternClassifier classifier;
+
+    @Before
+    public void setUp() {
+        patterns = compile();
+        // some paths match no pattern
+        classifier = new PatternClassifier(patterns, CACHE_SIZE);
+    }
+
+    private static List<Pattern> compile() {
+        List<Pattern> compiled = new ArrayList<Pattern>();
+        for (String regex : REGEXES) {
+            compiled.add(Pattern.compile(regex));
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the first pattern matching the path, or null.
+     */
+    private Pattern firstMatch(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return pattern;
+            }
+        }
+        return null;
+    }
+
+    private void assertClassifiedInOrder(String path) {
+        Pattern expected = firstMatch(patterns, path);
+        assertSame(path, expected, classifier.classify(path));
+        // cached result
+        assertSame(path, expected, classifier.classify(path));
+    }
+
+    @Test
+    public void testHandwritten() {
+        for (String path : HANDWRITTEN) {
+            assertClassifiedInOrder(path);
+        }
+    }
+
+    @Test
+    public void testGenerated() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < GENERATED; i++) {
+            StringBuilder path = new StringBuilder();
+            int parts = random.nextInt(MAX_PARTS);
+            for (int j = 0; j < parts; j++) {
+                path.append(PARTS[random.nextInt(PARTS.length)]);
+            }
+            assertClassifiedInOrder(path.toString());
+        }
+    }
+
+    @Test
+    public void testCatchAll() {
+        List<Pattern> all = compile();
+        // no literal prefix is used for case-insensitive patterns
+        all.add(0, Pattern.compile("/CASE/.*", Pattern.CASE_INSENSITIVE));
+        all.add(Pattern.compile(CATCH_ALL));
+        PatternClassifier catchAll = new PatternClassifier(all, PatternClassifier.DEF_CACHE_SIZE);
+        for (String path : HANDWRITTEN) {
+            assertSame(path, firstMatch(all, path), catchAll.classify(path));
+        }
+        assertSame(all.get(0), catchAll.classify("/case/x"));
+        assertSame(all.get(all.size() - 1), catchAll.classify("/nothing"));
+    }
+}
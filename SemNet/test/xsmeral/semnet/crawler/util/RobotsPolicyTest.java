@@ -0,0 +1,130 @@
+package xsmeral.semnet.crawler.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests matching of URIs against the rules of {@link RobotsPolicy}.
+ * The policies are read from a cache directory, so no request is made.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class RobotsPolicyTest {
+
+    private static final String CHARSET = "UTF-8";
+    private static final String HOST = "example.invalid";
+    private static final String USER_AGENT = "SemNetBot/1.0";
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = File.createTempFile("robots", "");
+        assertTrue(cacheDir.delete() && cacheDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : cacheDir.listFiles()) {
+            file.delete();
+        }
+        cacheDir.delete();
+    }
+
+    /**
+     * Returns the policy for the given robots.txt lines.
+     */
+    private RobotsPolicy policy(String... lines) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(cacheDir, HOST + ".robots.txt")), CHARSET);
+        try {
+            for (String line : lines) {
+                writer.write(line + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        ConnectionManager connMgr = new ConnectionManager();
+        connMgr.setUserAgent(USER_AGENT);
+        return new RobotsPolicy(new URL("http://" + HOST + "/"), connMgr, cacheDir, 0, null);
+    }
+
+    @Test
+    public void testLongestMatch() throws IOException {
+        RobotsPolicy p = policy("User-agent: *", "Disallow: /a", "Allow: /a/b", "Disallow: /a/b/c");
+        assertFalse(p.allows("/a"));
+        assertFalse(p.allows("/a/x"));
+        assertTrue(p.allows("/a/b"));
+        assertTrue(p.allows("/a/b/x"));
+        assertFalse(p.allows("/a/b/c/x"));
+        assertTrue(p.allows("/b"));
+        // the order of the rules doesn't matter
+        p = policy("User-agent: *", "Disallow: /a/b/c", "Allow: /a/b", "Disallow: /a");
+        assertFalse(p.allows("/a/x"));
+        assertTrue(p.allows("/a/b/x"));
+        assertFalse(p.allows("/a/b/c/x"));
+    }
+
+    @Test
+    public void testAllowWinsTie() throws IOException {
+        RobotsPolicy p = policy("User-agent: *", "Disallow: /page", "Allow: /page");
+        assertTrue(p.allows("/page"));
+        assertTrue(p.allows("/page/1"));
+        p = policy("User-agent: *", "Allow: /page", "Disallow: /page");
+        assertTrue(p.allows("/page/1"));
+        // rules with wildcards are compared by their length, too
+        p = policy("User-agent: *", "Disallow: /*.php", "Allow: /a/*.p");
+        assertTrue(p.allows("/a/x.php"));
+        assertFalse(p.allows("/b/x.php"));
+    }
+
+    @Test
+    public void testWildcards() throws IOException {
+        RobotsPolicy p = policy("User-agent: *", "Disallow: /*.pdf$", "Disallow: /private*/x", "Allow: /*.html");
+        assertFalse(p.allows("/a.pdf"));
+        assertFalse(p.allows("/dir/a.pdf"));
+        assertTrue(p.allows("/a.pdfx"));
+        assertTrue(p.allows("/a.pdf?download"));
+        assertFalse(p.allows("/private/x"));
+        assertFalse(p.allows("/private-1/a/x"));
+        assertTrue(p.allows("/private/y"));
+        // the Disallow is longer than the Allow
+        assertFalse(p.allows("/private/x.html"));
+        assertTrue(p.allows("/private/y.html"));
+        // $ anchors the whole rule
+        p = policy("User-agent: *", "Disallow: /$");
+        assertFalse(p.allows("/"));
+        assertTrue(p.allows("/a"));
+    }
+
+    @Test
+    public void testGroups() throws IOException {
+        RobotsPolicy p = policy(
+                "User-agent: *",
+                "Disallow: /",
+                "",
+                "User-agent: OtherBot",
+                "User-agent: SemNetBot",
+                "Disallow: /a",
+                "Crawl-delay: 2",
+                "",
+                "User-agent: semnetbot",
+                "Disallow: /b");
+        assertFalse(p.allows("/a"));
+        assertFalse(p.allows("/b"));
+        assertTrue(p.allows("/c"));
+        assertEquals(2000, p.getCrawlDelayMillis());
+        p = policy("User-agent: *", "Disallow: /");
+        assertFalse(p.allows("/"));
+        assertFalse(p.allows("page"));
+        assertTrue(p.allows("/robots.txt"));
+        p = policy("User-agent: *", "Allow: /a", "Disallow:");
+        assertTrue(p.allowsAll());
+    }
+}
@@ -0,0 +1,107 @@
+package xsmeral.semnet.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link URLUtil#normalize(String)} with the previous implementation,
+ * {@link LegacyURLUtil}, on handwritten and generated URLs.
+ *
+ * @author Ron Šmeral (xsmeral@fi.muni.cz)
+ */
+public class URLUtilTest {
+
+    private static final long SEED = 42;
+    private static final int GENERATED = 100000;
+    private static final int MAX_PARTS = 12;
+    private static final String[] HOSTS = {
+        "http://Example.COM", "http://a.b:80", "http://x.y:8080", "HTTP://h.cz", "example.org", "http://h"
+    };
+    // path, query and fragment pieces, including escapes, entities and unwanted params
+    private static final String[] PARTS = {
+        "/", "a", "B", "%41", "%2f", "%2F", "%7e", "%zz", "%", "%%41", "..", ".", "&", "&amp;", ";", "=",
+        "utm_x", "session", "q", "1", "+", " ", "é", "#frag", "?", "%20", "&lt;", "&#38;", "-", "*", "_",
+        "~", "|", "%C3%A9", "sid", "utm_"
+    };
+    private static final String[] HANDWRITTEN = {
+        "http://www.example.com",
+        "http://www.example.com/",
+        "http://WWW.Example.Com:80/a/./b/../c",
+        "http://www.example.com/%7Euser/%41%62c",
+        "http://www.example.com/a?b=2&a=1&a=1",
+        "http://www.example.com/a?utm_source=x&id=3&jsessionid=abc",
+        "http://www.example.com/a?q=h%C3%A9llo&sort=a+b",
+        "http://www.example.com/a?x=1&amp;y=2",
+        "http://www.example.com/a?=&&=x&y=",
+        "http://www.example.com/a;jsessionid=1?b",
+        "http://www.example.com/a#top",
+        "http://www.example.com:8080/?",
+        "www.example.com/a",
+        "http://",
+        "http://www.example.com/a b",
+        "http://www.example.com/%zz?%zz=%"
+    };
+    private static Level level;
+
+    @BeforeClass
+    public static void setUpClass() {
+        // both implementations log the URLs they reject
+        Logger root = Logger.getLogger("");
+        level = root.getLevel();
+        root.setLevel(Level.OFF);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Logger.getLogger("").setLevel(level);
+    }
+
+    /**
+     * Returns the normalized URL as a string, or the name of the thrown exception.
+     */
+    private static String normalize(String url, boolean legacy) {
+        try {
+            return String.valueOf(legacy ? LegacyURLUtil.normalize(url) : URLUtil.normalize(url));
+        } catch (Exception ex) {
+            return ex.getClass().getName();
+        }
+    }
+
+    private static void assertNormalizedAsBefore(String url) {
+        String expected = normalize(url, true);
+        assertEquals(url, expected, normalize(url, false));
+        // remembered result
+        assertEquals(url, expected, normalize(url, false));
+    }
+
+    @Test
+    public void testHandwritten() {
+        for (String url : HANDWRITTEN) {
+            assertNormalizedAsBefore(url);
+        }
+    }
+
+    @Test
+    public void testGenerated() {
+        Random random = new Random(SEED);
+        List<String> urls = new ArrayList<String>(GENERATED);
+        for (int i = 0; i < GENERATED; i++) {
+            StringBuilder url = new StringBuilder(HOSTS[random.nextInt(HOSTS.length)]);
+            int parts = random.nextInt(MAX_PARTS);
+            for (int j = 0; j < parts; j++) {
+                url.append(PARTS[random.nextInt(PARTS.length)]);
+            }
+            urls.add(url.toString());
+        }
+        for (String url : urls) {
+            assertNormalizedAsBefore(url);
+        }
+    }
+}
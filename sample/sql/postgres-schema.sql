@@ -38,6 +38,18 @@ CREATE TABLE artnet.url
   entity boolean NOT NULL,
   pattern character varying(100),
   working boolean,
+  score smallint DEFAULT 0,
+  lease_owner integer,
+  lease_until integer,
+  etag character varying(256),
+  last_modified character varying(64),
+  digest character(40),
+  simhash bigint DEFAULT 0,
+  inlinks integer DEFAULT 0,
+  yield real DEFAULT 0,
+  priority integer DEFAULT 0,
+  change_count integer DEFAULT 0,
+  observed_time integer DEFAULT 0,
   CONSTRAINT url_pkey PRIMARY KEY (urlid),
   CONSTRAINT url_host FOREIGN KEY (hostid)
       REFERENCES artnet.host (hostid) MATCH SIMPLE
@@ -58,21 +70,57 @@ CREATE INDEX fki_url_host
   USING btree
   (hostid);
 
--- Table: artnet.url_lock
+-- Index: artnet.url_due
 
+-- DROP INDEX artnet.url_due;
+
+-- matches claims of current URLs of a host/pattern (hostid = ? AND pattern = ? AND working AND ? > last_visited + update_freq)
+CREATE INDEX url_due
+  ON artnet.url
+  USING btree
+  (hostid, pattern, (last_visited + update_freq))
+  WHERE working;
+
+-- Index: artnet.url_priority
+
+-- DROP INDEX artnet.url_priority;
+
+-- matches claims of current URLs of a host in the order of priority (hostid = ? AND working AND ? > priority ORDER BY priority)
+CREATE INDEX url_priority
+  ON artnet.url
+  USING btree
+  (hostid, priority)
+  WHERE working;
+
+-- Index: artnet.url_leased
+
+-- DROP INDEX artnet.url_leased;
+
+CREATE INDEX url_leased
+  ON artnet.url
+  USING btree
+  (urlid)
+  WHERE lease_owner IS NOT NULL;
+
+-- Migration to conditional revisits:
+
+-- ALTER TABLE artnet.url ADD COLUMN etag character varying(256), ADD COLUMN last_modified character varying(64);
+
+-- Migration to content fingerprints:
+
+-- ALTER TABLE artnet.url ADD COLUMN digest character(40), ADD COLUMN simhash bigint DEFAULT 0;
+
+-- Migration from locks in table artnet.url_lock (URLs are now leased in table artnet.url, claims require PostgreSQL 9.5+):
+
+-- ALTER TABLE artnet.url ADD COLUMN lease_owner integer, ADD COLUMN lease_until integer;
+-- ALTER TABLE artnet.url ADD COLUMN score smallint DEFAULT 0; -- only if missing, the column was used but not listed in this schema
 -- DROP TABLE artnet.url_lock;
 
-CREATE TABLE artnet.url_lock
-(
-  "owner" integer NOT NULL,
-  urlid integer NOT NULL,
-  "time" timestamp without time zone,
-  CONSTRAINT urlid_pkey PRIMARY KEY (urlid),
-  CONSTRAINT url_lock_urlid FOREIGN KEY (urlid)
-      REFERENCES artnet.url (urlid) MATCH SIMPLE
-      ON UPDATE CASCADE ON DELETE CASCADE
-)
-WITH (
-  OIDS=FALSE
-);
-ALTER TABLE artnet.url_lock OWNER TO artnet;
+-- Migration to priority-ordered frontier:
+
+-- ALTER TABLE artnet.url ADD COLUMN inlinks integer DEFAULT 0, ADD COLUMN yield real DEFAULT 0, ADD COLUMN priority integer DEFAULT 0;
+-- UPDATE artnet.url SET priority = last_visited + update_freq;
+
+-- Migration to adaptive update frequencies:
+
+-- ALTER TABLE artnet.url ADD COLUMN change_count integer DEFAULT 0, ADD COLUMN observed_time integer DEFAULT 0;